@@ -0,0 +1,301 @@
+package custom.ai;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads {@code choices[0].delta.content} from the JSON of a streamed chat completion chunk without building
+ * the whole document. Keys are compared as bytes and everything else is skipped, so a chunk costs one
+ * {@link String} for its content. Chunks carrying tool calls, function calls, usage or an error, and anything
+ * that is not understood, are reported as needing a full parse.
+ *
+ * <p>Instances reuse their decoding buffer and are not thread safe.</p>
+ */
+public class ChatDeltaParser {
+    private static final byte[] CHOICES = key("choices");
+    private static final byte[] DELTA = key("delta");
+    private static final byte[] CONTENT = key("content");
+    private static final byte[] TOOL_CALLS = key("tool_calls");
+    private static final byte[] FUNCTION_CALL = key("function_call");
+    private static final byte[] USAGE = key("usage");
+    private static final byte[] ERROR = key("error");
+
+    private final Member topLevel = this::topLevel;
+    private final Member choice = this::choice;
+    private final Member delta = this::delta;
+
+    private byte[] json;
+    private int end;
+    private int position;
+    private char[] chars = new char[256];
+    private String content;
+
+    /**
+     * Read a chunk; its content is then available from {@link #content()}
+     *
+     * @return false if the chunk has to be parsed in full
+     */
+    public boolean parse(byte[] json, int offset, int length) {
+        this.json = json;
+        this.position = offset;
+        this.end = offset + length;
+        this.content = null;
+        try {
+            return object(topLevel) && skipWhitespace() == end;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        } finally {
+            this.json = null;
+        }
+    }
+
+    /**
+     * @return The delta content of the last chunk read, or null if it had none
+     */
+    public String content() {
+        return content;
+    }
+
+    private interface Member {
+        /**
+         * Read the value of a member whose key spans {@code [keyStart, keyEnd)}
+         *
+         * @return false if the chunk needs a full parse
+         */
+        boolean value(int keyStart, int keyEnd);
+    }
+
+    private boolean topLevel(int keyStart, int keyEnd) {
+        if (is(keyStart, keyEnd, CHOICES)) {
+            return choices();
+        }
+        if (is(keyStart, keyEnd, USAGE) || is(keyStart, keyEnd, ERROR)) {
+            return nullValue();
+        }
+        return skipValue();
+    }
+
+    private boolean choice(int keyStart, int keyEnd) {
+        return is(keyStart, keyEnd, DELTA) ? peek() == 'n' ? skipValue() : object(delta) : skipValue();
+    }
+
+    private boolean delta(int keyStart, int keyEnd) {
+        if (is(keyStart, keyEnd, CONTENT)) {
+            if (peek() == '"') {
+                content = string();
+                return content != null;
+            }
+            return skipValue();
+        }
+        if (is(keyStart, keyEnd, TOOL_CALLS) || is(keyStart, keyEnd, FUNCTION_CALL)) {
+            return nullValue();
+        }
+        return skipValue();
+    }
+
+    /**
+     * Only the first choice is read, the others are skipped
+     */
+    private boolean choices() {
+        if (peek() != '[') {
+            return skipValue();
+        }
+        position++;
+        if (peek() == ']') {
+            position++;
+            return true;
+        }
+
+        if (peek() != '{' || !object(choice)) {
+            return false;
+        }
+        while (peek() == ',') {
+            position++;
+            skipWhitespace();
+            if (!skipValue()) {
+                return false;
+            }
+        }
+        if (peek() != ']') {
+            return false;
+        }
+        position++;
+        return true;
+    }
+
+    private boolean object(Member member) {
+        if (peek() != '{') {
+            return false;
+        }
+        position++;
+        if (peek() == '}') {
+            position++;
+            return true;
+        }
+
+        while (true) {
+            if (peek() != '"') {
+                return false;
+            }
+            int keyStart = position + 1;
+            if (!skipString()) {
+                return false;
+            }
+            int keyEnd = position - 1;
+            if (peek() != ':') {
+                return false;
+            }
+            position++;
+            skipWhitespace();
+            if (!member.value(keyStart, keyEnd)) {
+                return false;
+            }
+
+            byte next = peek();
+            position++;
+            if (next == '}') {
+                return true;
+            }
+            if (next != ',') {
+                return false;
+            }
+            skipWhitespace();
+        }
+    }
+
+    /**
+     * A member that is only understood when it is null
+     */
+    private boolean nullValue() {
+        if (end - position >= 4 && json[position] == 'n' && json[position + 1] == 'u'
+                && json[position + 2] == 'l' && json[position + 3] == 'l') {
+            position += 4;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            return skipString();
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (position < end) {
+                b = json[position];
+                if (b == '"') {
+                    if (!skipString()) {
+                        return false;
+                    }
+                    continue;
+                }
+                position++;
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Number, true, false or null
+        int valueStart = position;
+        while (position < end && (b = json[position]) != ',' && b != '}' && b != ']'
+                && b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+            position++;
+        }
+        return position > valueStart;
+    }
+
+    private boolean skipString() {
+        position++;
+        while (position < end) {
+            byte b = json[position++];
+            if (b == '\\') {
+                position++;
+            } else if (b == '"') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the string at the position from UTF-8 and JSON escapes
+     */
+    private String string() {
+        position++;
+        int length = 0;
+        while (position < end) {
+            int b = json[position++];
+            if (b == '"') {
+                return new String(chars, 0, length);
+            }
+            if (length + 2 > chars.length) {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+
+            if (b == '\\') {
+                char escaped = (char) json[position++];
+                switch (escaped) {
+                    case 'n': chars[length++] = '\n'; break;
+                    case 't': chars[length++] = '\t'; break;
+                    case 'r': chars[length++] = '\r'; break;
+                    case 'b': chars[length++] = '\b'; break;
+                    case 'f': chars[length++] = '\f'; break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(json[position++], 16);
+                            if (digit < 0) {
+                                return null;
+                            }
+                            code = code << 4 | digit;
+                        }
+                        chars[length++] = (char) code;
+                        break;
+                    default: chars[length++] = escaped;
+                }
+            } else if (b >= 0) {
+                chars[length++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[length++] = (char) ((b & 0x1F) << 6 | json[position++] & 0x3F);
+            } else if ((b & 0xF0) == 0xE0) {
+                chars[length++] = (char) ((b & 0x0F) << 12 | (json[position++] & 0x3F) << 6 | json[position++] & 0x3F);
+            } else {
+                int codePoint = (b & 0x07) << 18 | (json[position++] & 0x3F) << 12
+                        | (json[position++] & 0x3F) << 6 | json[position++] & 0x3F;
+                chars[length++] = Character.highSurrogate(codePoint);
+                chars[length++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        return null;
+    }
+
+    private byte peek() {
+        return skipWhitespace() < end ? json[position] : 0;
+    }
+
+    private int skipWhitespace() {
+        while (position < end) {
+            byte b = json[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private boolean is(int keyStart, int keyEnd, byte[] key) {
+        return Arrays.equals(json, keyStart, keyEnd, key, 0, key.length);
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,388 @@
+package custom.ai;
+
+import org.tinystruct.ApplicationException;
+import org.tinystruct.data.component.Builder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP client shared by the providers. One {@link HttpClient} keeps connections alive between calls and
+ * multiplexes concurrent requests to the same host over HTTP/2 where the server supports it, so chat turns and
+ * embedding batches no longer set up TCP and TLS each time.
+ *
+ * <p>For every provider the time to the response headers and the time to read the body are recorded.
+ * {@link HttpClient} does not report connection setup separately; it is part of the time to headers of the
+ * first request to a host.</p>
+ *
+ * <p>The response timeout only covers the wait for the headers. While a body is read, a watchdog aborts the
+ * read once no bytes have arrived for the read timeout, so a stalled stream does not hold its thread.</p>
+ */
+public final class HttpTransport {
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_RESPONSE_TIMEOUT_SECONDS = 120;
+    public static final int DEFAULT_READ_TIMEOUT_SECONDS = 60;
+
+    private static volatile HttpTransport instance;
+
+    private final HttpClient client;
+    private final Duration responseTimeout;
+    private final long readTimeoutNanos;
+    private final ScheduledExecutorService watchdog;
+    private final Map<String, Timings> timings = new ConcurrentHashMap<>();
+
+    private HttpTransport(int connectTimeoutSeconds, int responseTimeoutSeconds, int readTimeoutSeconds) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.responseTimeout = Duration.ofSeconds(responseTimeoutSeconds);
+        this.readTimeoutNanos = TimeUnit.SECONDS.toNanos(readTimeoutSeconds);
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "http-read-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static HttpTransport getInstance() {
+        if (instance == null) {
+            configure(DEFAULT_CONNECT_TIMEOUT_SECONDS, DEFAULT_RESPONSE_TIMEOUT_SECONDS, DEFAULT_READ_TIMEOUT_SECONDS);
+        }
+        return instance;
+    }
+
+    /**
+     * Create the shared client with the given timeouts, unless it already exists
+     *
+     * @param connectTimeoutSeconds  Time allowed to open a connection
+     * @param responseTimeoutSeconds Time allowed until the response headers arrive
+     * @param readTimeoutSeconds     Time allowed between two reads of the body that return data
+     */
+    public static synchronized void configure(int connectTimeoutSeconds, int responseTimeoutSeconds, int readTimeoutSeconds) {
+        if (instance == null) {
+            instance = new HttpTransport(Math.max(1, connectTimeoutSeconds), Math.max(1, responseTimeoutSeconds),
+                    Math.max(1, readTimeoutSeconds));
+        }
+    }
+
+    /**
+     * Start a request with the response timeout. Plain http is sent as HTTP/1.1, as upgrading to HTTP/2 without
+     * TLS is not supported by many servers.
+     */
+    public HttpRequest.Builder request(String url) throws ApplicationException {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            throw new ApplicationException("Invalid URL " + url + ": " + e.getMessage(), e);
+        }
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(responseTimeout);
+        if ("http".equalsIgnoreCase(uri.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        return builder;
+    }
+
+    /**
+     * Send a request and read the whole body, whatever the status code
+     *
+     * @param provider Name the timings are recorded under
+     * @param request  The request
+     * @return The response body
+     */
+    public String send(String provider, HttpRequest request) throws ApplicationException {
+        Timings timing = timings(provider);
+        long start = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long headers = System.nanoTime();
+            String body;
+            try (InputStream watched = new WatchedStream(response.body(), request);
+                 InputStream in = decode(response, watched)) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            timing.record(headers - start, System.nanoTime() - headers);
+            return body;
+        } catch (IOException e) {
+            timing.failed();
+            throw new ApplicationException("Request to " + request.uri().getHost() + " failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            timing.failed();
+            Thread.currentThread().interrupt();
+            throw new ApplicationException("Interrupted while calling " + request.uri().getHost(), e);
+        }
+    }
+
+    /**
+     * Send a request and return the body as it arrives. The body time is recorded when the stream is closed.
+     *
+     * @param provider Name the timings are recorded under
+     * @param request  The request
+     * @return The response body
+     * @throws ApplicationException if the status code is not 200
+     */
+    public InputStream stream(String provider, HttpRequest request) throws ApplicationException {
+        Timings timing = timings(provider);
+        long start = System.nanoTime();
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            timing.failed();
+            throw new ApplicationException("Request to " + request.uri().getHost() + " failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            timing.failed();
+            Thread.currentThread().interrupt();
+            throw new ApplicationException("Interrupted while calling " + request.uri().getHost(), e);
+        }
+
+        long headers = System.nanoTime();
+        if (response.statusCode() != 200) {
+            timing.failed();
+            try (InputStream in = response.body()) {
+                in.readAllBytes();
+            } catch (IOException ignored) {
+                // The status code is what gets reported
+            }
+            throw new ApplicationException("HTTP error code " + response.statusCode());
+        }
+
+        return new WatchedStream(response.body(), request) {
+            private boolean recorded;
+
+            @Override
+            public void close() throws IOException {
+                if (!recorded) {
+                    recorded = true;
+                    if (isTimedOut()) {
+                        timing.failed();
+                    } else {
+                        timing.record(headers - start, System.nanoTime() - headers);
+                    }
+                }
+                super.close();
+            }
+        };
+    }
+
+    private static InputStream decode(HttpResponse<InputStream> response, InputStream body) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+        if (encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(body);
+        }
+        if (encoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * A response body that is closed when a read gets no data within the read timeout. The {@link HttpClient}
+     * body ignores interrupts, but closing it cancels the exchange and ends a blocked read with an
+     * {@link IOException}.
+     */
+    private class WatchedStream extends FilterInputStream {
+        private final HttpRequest request;
+        private final ScheduledFuture<?> check;
+        private volatile long lastData = System.nanoTime();
+        private volatile boolean reading;
+        private volatile boolean timedOut;
+
+        WatchedStream(InputStream body, HttpRequest request) {
+            super(body);
+            this.request = request;
+            long period = Math.max(TimeUnit.MILLISECONDS.toNanos(100), readTimeoutNanos / 4);
+            this.check = watchdog.scheduleAtFixedRate(this::check, period, period, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int read() throws IOException {
+            begin();
+            try {
+                int b = super.read();
+                lastData = System.nanoTime();
+                return b;
+            } catch (IOException e) {
+                throw failure(e);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            begin();
+            try {
+                int read = super.read(buffer, offset, length);
+                lastData = System.nanoTime();
+                return read;
+            } catch (IOException e) {
+                throw failure(e);
+            } finally {
+                end();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        private void check() {
+            if (reading && System.nanoTime() - lastData > readTimeoutNanos) {
+                timedOut = true;
+                check.cancel(false);
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    System.err.println("Warning: Failed to abort stalled response from " + request.uri().getHost() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void begin() throws IOException {
+            if (timedOut) {
+                throw failure(null);
+            }
+            reading = true;
+        }
+
+        private void end() {
+            reading = false;
+        }
+
+        private IOException failure(IOException e) {
+            if (!timedOut) {
+                return e;
+            }
+            return new IOException("No data from " + request.uri().getHost() + " for " +
+                    TimeUnit.NANOSECONDS.toSeconds(readTimeoutNanos) + " seconds", e);
+        }
+    }
+
+    private Timings timings(String provider) {
+        return timings.computeIfAbsent(provider, name -> new Timings());
+    }
+
+    /**
+     * @return Requests, failures and phase latencies by provider
+     */
+    public Builder stats() {
+        Builder builder = new Builder();
+        for (Map.Entry<String, Timings> entry : new TreeMap<>(timings).entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().toBuilder());
+        }
+        return builder;
+    }
+
+    /**
+     * @return A form body of URL encoded parameters
+     */
+    public static HttpRequest.BodyPublisher form(Map<String, Object> parameters) {
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            if (body.length() > 0) {
+                body.append('&');
+            }
+            body.append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(String.valueOf(parameter.getValue()), StandardCharsets.UTF_8));
+        }
+        return HttpRequest.BodyPublishers.ofString(body.toString());
+    }
+
+    /**
+     * A multipart/form-data body of fields and files
+     */
+    public static final class Multipart {
+        private final String boundary = "----smalltalk" + UUID.randomUUID().toString().replace("-", "");
+        private final List<byte[]> parts = new ArrayList<>();
+
+        public Multipart field(String name, Object value) {
+            parts.add(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value + "\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        public Multipart file(String name, String fileName, String contentType, byte[] data) {
+            parts.add(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName +
+                    "\"\r\nContent-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            parts.add(data);
+            parts.add("\r\n".getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        public String contentType() {
+            return "multipart/form-data; boundary=" + boundary;
+        }
+
+        public HttpRequest.BodyPublisher body() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (byte[] part : parts) {
+                body.writeBytes(part);
+            }
+            body.writeBytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            return HttpRequest.BodyPublishers.ofByteArray(body.toByteArray());
+        }
+    }
+
+    private static final class Timings {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder headersNanos = new LongAdder();
+        private final LongAdder bodyNanos = new LongAdder();
+        private final AtomicLong maxHeadersNanos = new AtomicLong();
+
+        void record(long headers, long body) {
+            requests.increment();
+            headersNanos.add(headers);
+            bodyNanos.add(body);
+            maxHeadersNanos.accumulateAndGet(headers, Math::max);
+        }
+
+        void failed() {
+            failures.increment();
+        }
+
+        Builder toBuilder() {
+            long count = requests.sum();
+            Builder builder = new Builder();
+            builder.put("requests", count);
+            builder.put("failures", failures.sum());
+            builder.put("averageHeadersMillis", count > 0 ? headersNanos.sum() / 1e6 / count : 0.0);
+            builder.put("maxHeadersMillis", maxHeadersNanos.get() / 1e6);
+            builder.put("averageBodyMillis", count > 0 ? bodyNanos.sum() / 1e6 / count : 0.0);
+            return builder;
+        }
+    }
+}
@@ -3,19 +3,11 @@ package custom.ai;
 import org.tinystruct.AbstractApplication;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.data.component.Builder;
-import org.tinystruct.net.URLHandler;
-import org.tinystruct.net.URLHandlerFactory;
-import org.tinystruct.net.URLRequest;
-import org.tinystruct.net.URLResponse;
 import org.tinystruct.system.annotation.Action;
-import org.tinystruct.transfer.http.upload.ContentDisposition;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.InputStream;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.function.Consumer;
@@ -70,54 +62,43 @@ public class OpenAI extends AbstractApplication implements Provider {
             }
         }
 
-        try {
-            URLRequest request = new URLRequest(new URL(api));
-            request.setHeader("Authorization", "Bearer " + API_KEY);
-            request.setHeader("Content-Type", contentType);
-            request.setHeader("Accept", "application/json");
-
-            // Add OpenRouter specific headers
-            request.setHeader("Referer", "https://github.com/tinystruct/smalltalk");
-            request.setHeader("User-Agent", "Smalltalk/1.0.0");
-
-            if (getContext().getAttribute("payload") != null) {
-                payload = (Builder) getContext().getAttribute("payload");
-                if (contentType.equalsIgnoreCase("multipart/form-data")) {
-                    request.setParameter("prompt", payload.get("prompt").toString());
-                    request.setParameter("user", payload.get("user").toString());
-                    request.setParameter("n", Integer.parseInt(payload.get("n").toString()));
-                    request.setParameter("response_format", "b64_json");
-                } else {
-                    request.setBody(payload.toString());
-                }
+        HttpRequest.Builder request = HttpTransport.getInstance().request(api)
+                .header("Authorization", "Bearer " + API_KEY)
+                .header("Accept", "application/json")
+                // Add OpenRouter specific headers
+                .header("Referer", "https://github.com/tinystruct/smalltalk")
+                .header("User-Agent", "Smalltalk/1.0.0");
+
+        payload = (Builder) getContext().getAttribute("payload");
+        if (contentType.equalsIgnoreCase("multipart/form-data")) {
+            HttpTransport.Multipart form = new HttpTransport.Multipart();
+            if (payload != null) {
+                form.field("prompt", payload.get("prompt"))
+                        .field("user", payload.get("user"))
+                        .field("n", Integer.parseInt(payload.get("n").toString()))
+                        .field("response_format", "b64_json");
             }
-
             if (image != null) {
-                ContentDisposition imageContent = new ContentDisposition("image", "image.png", "image/png", Base64.getDecoder().decode(image.toString()));
-                request.setFormData(new ContentDisposition[]{imageContent});
-                if (mask != null) {
-                    ContentDisposition maskContent = new ContentDisposition("mask", "mask.png", "image/png", Base64.getDecoder().decode(mask.toString()));
-                    request.setFormData(new ContentDisposition[]{maskContent});
-                }
+                form.file("image", "image.png", "image/png", Base64.getDecoder().decode(image.toString()));
             }
-
-            URLHandler handler = URLHandlerFactory.getHandler(new URL(api));
-            URLResponse urlResponse = handler.handleRequest(request);
-            String response = urlResponse.getBody();
-
-            // Check if response looks like HTML
-            if (response.trim().startsWith("<!DOCTYPE html>") || response.trim().startsWith("<html>")) {
-                throw new ApplicationException("Received HTML response instead of JSON. API endpoint may be incorrect or returning an error page.");
+            if (mask != null) {
+                form.file("mask", "mask.png", "image/png", Base64.getDecoder().decode(mask.toString()));
             }
+            request.header("Content-Type", form.contentType()).POST(form.body());
+        } else {
+            request.header("Content-Type", contentType).POST(HttpRequest.BodyPublishers.ofString(payload.toString()));
+        }
 
-            Builder apiResponse = new Builder();
-            apiResponse.parse(response);
-            return apiResponse;
-        } catch (MalformedURLException e) {
-            throw new ApplicationException(e.getMessage(), e.getCause());
-        } catch (ApplicationException e) {
-            throw e;
+        String response = HttpTransport.getInstance().send("openai", request.build());
+
+        // Check if response looks like HTML
+        if (response.trim().startsWith("<!DOCTYPE html>") || response.trim().startsWith("<html>")) {
+            throw new ApplicationException("Received HTML response instead of JSON. API endpoint may be incorrect or returning an error page.");
         }
+
+        Builder apiResponse = new Builder();
+        apiResponse.parse(response);
+        return apiResponse;
     }
 
     /**
@@ -128,6 +109,30 @@ public class OpenAI extends AbstractApplication implements Provider {
      * @throws ApplicationException If an error occurs during the API call
      */
     public void streamChatCompletion(Builder payload, Consumer<Builder> chunkHandler) throws ApplicationException {
+        streamEvents(payload, (data, offset, length) -> parseChunk(new String(data, offset, length, StandardCharsets.UTF_8), chunkHandler));
+    }
+
+    /**
+     * Stream chat completion responses from OpenAI API, reading the delta content of each chunk straight from
+     * its bytes. Only chunks with tool calls, usage or errors are parsed in full.
+     *
+     * @param payload The request payload
+     * @param contentHandler Receives the delta content of each chunk
+     * @param chunkHandler Receives the chunks that were parsed in full
+     * @throws ApplicationException If an error occurs during the API call
+     */
+    public void streamChatContent(Builder payload, Consumer<String> contentHandler, Consumer<Builder> chunkHandler) throws ApplicationException {
+        ChatDeltaParser parser = new ChatDeltaParser();
+        streamEvents(payload, (data, offset, length) -> {
+            if (!parser.parse(data, offset, length)) {
+                parseChunk(new String(data, offset, length, StandardCharsets.UTF_8), chunkHandler);
+            } else if (parser.content() != null && !parser.content().isEmpty()) {
+                contentHandler.accept(parser.content());
+            }
+        });
+    }
+
+    private void streamEvents(Builder payload, SseReader.Handler handler) throws ApplicationException {
         if (payload == null) {
             throw new ApplicationException("Payload is required for streaming");
         }
@@ -163,76 +168,41 @@ public class OpenAI extends AbstractApplication implements Provider {
             }
         }
 
-        HttpURLConnection connection = null;
+        HttpRequest request = HttpTransport.getInstance().request(API_URL)
+                .header("Content-Type", "application/json")
+                .header("Accept", "text/event-stream")
+                .header("Authorization", "Bearer " + API_KEY)
+                .header("Referer", "https://github.com/tinystruct/smalltalk")
+                .header("User-Agent", "Smalltalk/1.0.0")
+                .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
+                .build();
+
+        InputStream body;
         try {
-            // Create connection
-            URL url = new URL(API_URL);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Accept", "text/event-stream");
-            connection.setRequestProperty("Authorization", "Bearer " + API_KEY);
-            connection.setRequestProperty("Referer", "https://github.com/tinystruct/smalltalk");
-            connection.setRequestProperty("User-Agent", "Smalltalk/1.0.0");
-            connection.setDoOutput(true);
-            connection.setChunkedStreamingMode(0);
-
-            // Send request
-            connection.getOutputStream().write(payload.toString().getBytes(StandardCharsets.UTF_8));
-
-            // Check response code
-            int responseCode = connection.getResponseCode();
-            if (responseCode != 200) {
-                throw new ApplicationException("Failed to stream from OpenAI API: HTTP error code " + responseCode);
-            }
+            body = HttpTransport.getInstance().stream("openai-stream", request);
+        } catch (ApplicationException e) {
+            throw new ApplicationException("Failed to stream from OpenAI API: " + e.getMessage(), e);
+        }
 
-            // Process streaming response
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                StringBuilder eventData = new StringBuilder();
-
-                while ((line = reader.readLine()) != null) {
-                    // Skip empty lines
-                    if (line.trim().isEmpty()) {
-                        // End of event, process the data if we have any
-                        if (eventData.length() > 0) {
-                            String data = eventData.toString();
-                            if (data.startsWith("data: ")) {
-                                data = data.substring(6);
-
-                                // Skip [DONE] message
-                                if (data.startsWith("[DONE]")) {
-                                    continue;
-                                }
-
-                                try {
-                                    // Parse the JSON data
-                                    Builder chunkBuilder = new Builder();
-                                    chunkBuilder.parse(data);
-
-                                    // Pass the chunk to the handler
-                                    chunkHandler.accept(chunkBuilder);
-                                } catch (Exception e) {
-                                    System.err.println("Error parsing chunk: " + e.getMessage());
-                                    System.err.println("Raw chunk data: " + data);
-                                }
-                            }
-
-                            // Reset for next event
-                            eventData.setLength(0);
-                        }
-                    } else if (line.startsWith("data: ")) {
-                        // Accumulate data lines
-                        eventData.append(line).append("\n");
-                    }
-                }
-            }
+        // Process streaming response
+        try (InputStream in = body) {
+            new SseReader(in).read(handler);
         } catch (IOException e) {
             throw new ApplicationException("Error streaming from OpenAI API: " + e.getMessage(), e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+        }
+    }
+
+    private static void parseChunk(String data, Consumer<Builder> chunkHandler) {
+        try {
+            // Parse the JSON data
+            Builder chunkBuilder = new Builder();
+            chunkBuilder.parse(data);
+
+            // Pass the chunk to the handler
+            chunkHandler.accept(chunkBuilder);
+        } catch (Exception e) {
+            System.err.println("Error parsing chunk: " + e.getMessage());
+            System.err.println("Raw chunk data: " + data);
         }
     }
 
@@ -3,9 +3,6 @@ package custom.ai;
 import org.tinystruct.AbstractApplication;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.data.component.Builder;
-import org.tinystruct.net.URLHandlerFactory;
-import org.tinystruct.net.URLRequest;
-import org.tinystruct.net.URLResponse;
 import org.tinystruct.system.annotation.Action;
 
 import javax.swing.text.MutableAttributeSet;
@@ -14,12 +11,12 @@ import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.parser.ParserDelegator;
 import java.io.IOException;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.http.HttpRequest;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,29 +35,28 @@ public class SearchAI extends AbstractApplication implements Provider {
         String url = SEARCH_URL;
 
         try {
-            URLRequest request = new URLRequest(new URL(url));
-            request.setHeader("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.13; rv:109.0) Gecko/20100101 Firefox/111.0");
-            request.setHeader("Accept", "text/html,application/xhtml+xml,application/xmlq=0.9,image/avif,image/webp,image/apng,*/*q=0.8,application/signed-exchangev=b3q=0.7");
-            request.setHeader("Accept-Encoding", "gzip, deflate, br");
+            HttpRequest.Builder request = HttpTransport.getInstance().request(url)
+                    .header("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10.13; rv:109.0) Gecko/20100101 Firefox/111.0")
+                    .header("Accept", "text/html,application/xhtml+xml,application/xmlq=0.9,image/avif,image/webp,image/apng,*/*q=0.8,application/signed-exchangev=b3q=0.7")
+                    .header("Accept-Encoding", "gzip, deflate");
 
             List<String> urls;
             if ((urls = this.extractUrls(query)) != null && urls.size() > 0) {
                 url = urls.get(0);
-                request.setMethod("Get");
+                request.GET();
             } else {
                 String contentType = "application/x-www-form-urlencoded";
-                request.setHeader("Content-Type", contentType);
-                request.setHeader("Referer", "https://lite.duckduckgo.com/");
-                request.setHeader("Host", "lite.duckduckgo.com");
-                request.setHeader("Origin", "https://lite.duckduckgo.com");
-                request.setHeader("Connection", "keep-alive");
-                request.setMethod("POST");
-
-                request.setParameter("q", query + "" + LocalDateTime.now().getYear() + "-" + LocalDateTime.now().getMonthValue());
-                request.setParameter("kl", "");
+                request.header("Content-Type", contentType);
+                request.header("Referer", "https://lite.duckduckgo.com/");
+                request.header("Origin", "https://lite.duckduckgo.com");
+
+                Map<String, Object> parameters = new LinkedHashMap<>();
+                parameters.put("q", query + "" + LocalDateTime.now().getYear() + "-" + LocalDateTime.now().getMonthValue());
+                parameters.put("kl", "");
+                request.POST(HttpTransport.form(parameters));
             }
 
-            URLResponse urlResponse = URLHandlerFactory.getHandler(request.getURL()).handleRequest(request);
+            String body = HttpTransport.getInstance().send("search", request.build());
             // Create a parser delegator
             ParserDelegator parserDelegator = new ParserDelegator();
 
@@ -129,7 +125,7 @@ public class SearchAI extends AbstractApplication implements Provider {
             // Remove all style tags manually as the HTMLEditorKit not working properly
             String pattern = "<style[^>]*>[\\s\\S]*?<\\/style>";
             Pattern regex = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-            Matcher matcher = regex.matcher(urlResponse.getBody());
+            Matcher matcher = regex.matcher(body);
 
             String html = matcher.replaceAll("");
 
@@ -141,8 +137,6 @@ public class SearchAI extends AbstractApplication implements Provider {
                 apiResponse.put("data", list);
 
             return apiResponse;
-        } catch (MalformedURLException | UnsupportedEncodingException e) {
-            throw new ApplicationException(e.getMessage(), e.getCause());
         } catch (ApplicationException e) {
             throw e;
         } catch (IOException e) {
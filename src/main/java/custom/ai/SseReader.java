@@ -0,0 +1,131 @@
+package custom.ai;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads server-sent events straight from the bytes of a response. The {@code data} lines of an event are
+ * collected into one reused buffer and handed over without decoding, so reading a stream allocates nothing per
+ * event. Comment lines and other fields are skipped, an event ends at a blank line and the {@code [DONE]}
+ * sentinel ends the stream.
+ */
+public class SseReader {
+    private static final byte[] DATA = {'d', 'a', 't', 'a'};
+    private static final byte[] DONE = {'[', 'D', 'O', 'N', 'E', ']'};
+
+    public interface Handler {
+        /**
+         * @param data   Buffer holding the data of the event, valid only during the call
+         * @param offset Start of the data
+         * @param length Length of the data
+         */
+        void event(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private final InputStream in;
+    private byte[] buffer = new byte[8192];
+    private int start;
+    private int end;
+    private int scanned;
+    private byte[] data = new byte[4096];
+    private int dataLength;
+    private boolean hasData;
+
+    public SseReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read events until the stream or the {@code [DONE]} sentinel ends
+     */
+    public void read(Handler handler) throws IOException {
+        while (true) {
+            int newline = indexOf((byte) '\n', Math.max(start, scanned), end);
+            if (newline < 0) {
+                scanned = end;
+                if (!fill()) {
+                    // An event without its blank line is incomplete and dropped
+                    return;
+                }
+                continue;
+            }
+
+            int lineEnd = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+            int lineStart = start;
+            start = newline + 1;
+
+            if (lineEnd == lineStart) {
+                if (hasData) {
+                    if (dataLength == DONE.length && Arrays.equals(data, 0, dataLength, DONE, 0, DONE.length)) {
+                        return;
+                    }
+                    handler.event(data, 0, dataLength);
+                    dataLength = 0;
+                    hasData = false;
+                }
+            } else if (isData(lineStart, lineEnd)) {
+                int valueStart = lineStart + DATA.length + 1;
+                if (valueStart < lineEnd && buffer[valueStart] == ' ') {
+                    valueStart++;
+                }
+                if (hasData) {
+                    append((byte) '\n');
+                }
+                append(buffer, valueStart, lineEnd - valueStart);
+                hasData = true;
+            }
+        }
+    }
+
+    private boolean isData(int lineStart, int lineEnd) {
+        return lineEnd - lineStart > DATA.length && buffer[lineStart + DATA.length] == ':'
+                && Arrays.equals(buffer, lineStart, lineStart + DATA.length, DATA, 0, DATA.length);
+    }
+
+    /**
+     * Move the unread bytes to the front and read more, growing the buffer for long lines
+     */
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanned -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append(byte b) {
+        if (dataLength == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[dataLength++] = b;
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (dataLength + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + length));
+        }
+        System.arraycopy(bytes, offset, data, dataLength, length);
+        dataLength += length;
+    }
+}
@@ -3,15 +3,9 @@ package custom.ai;
 import org.tinystruct.AbstractApplication;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.data.component.Builder;
-import org.tinystruct.net.URLHandler;
-import org.tinystruct.net.URLHandlerFactory;
-import org.tinystruct.net.URLRequest;
-import org.tinystruct.net.URLResponse;
 import org.tinystruct.system.annotation.Action;
-import org.tinystruct.transfer.http.upload.ContentDisposition;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.http.HttpRequest;
 import java.util.Base64;
 
 public class StabilityAI extends AbstractApplication implements Provider {
@@ -37,43 +31,33 @@ public class StabilityAI extends AbstractApplication implements Provider {
 
         // Replace YOUR_API_KEY with your actual API key
         String API_KEY = getConfiguration().get("stability.api_key");
-        try {
-            URLRequest request = new URLRequest(new URL(getConfiguration().get("stability.host") + "/" + api));
-            request.setHeader("Authorization", "Bearer " + API_KEY);
-            request.setHeader("Content-Type", contentType);
-            request.setHeader("Accept", "application/json");
-            request.setMethod("POST");
+        HttpRequest.Builder request = HttpTransport.getInstance().request(getConfiguration().get("stability.host") + "/" + api)
+                .header("Authorization", "Bearer " + API_KEY)
+                .header("Accept", "application/json");
 
-            if (getContext().getAttribute("payload") != null) {
-                payload = (Builder) getContext().getAttribute("payload");
-                if (contentType.equalsIgnoreCase("multipart/form-data")) {
-                    request.setParameter("text_prompts[0][text]", payload.get("text_prompts[0][text]").toString());
-                    request.setParameter("cfg_scale", Float.parseFloat(payload.get("cfg_scale").toString()));
-                    request.setParameter("clip_guidance_preset", payload.get("clip_guidance_preset").toString());
-                    request.setParameter("height", Integer.parseInt(payload.get("height").toString()));
-                    request.setParameter("width", Integer.parseInt(payload.get("width").toString()));
-                    request.setParameter("samples", Integer.parseInt(payload.get("samples").toString()));
-                    request.setParameter("steps", Integer.parseInt(payload.get("steps").toString()));
-                } else {
-                    request.setBody(payload.toString());
-                }
+        payload = (Builder) getContext().getAttribute("payload");
+        if (contentType.equalsIgnoreCase("multipart/form-data")) {
+            HttpTransport.Multipart form = new HttpTransport.Multipart();
+            if (payload != null) {
+                form.field("text_prompts[0][text]", payload.get("text_prompts[0][text]"))
+                        .field("cfg_scale", Float.parseFloat(payload.get("cfg_scale").toString()))
+                        .field("clip_guidance_preset", payload.get("clip_guidance_preset"))
+                        .field("height", Integer.parseInt(payload.get("height").toString()))
+                        .field("width", Integer.parseInt(payload.get("width").toString()))
+                        .field("samples", Integer.parseInt(payload.get("samples").toString()))
+                        .field("steps", Integer.parseInt(payload.get("steps").toString()));
             }
-
             if (image != null) {
-                ContentDisposition imageContent = new ContentDisposition("init_image", "image.png", "image/png", Base64.getDecoder().decode(image.toString()));
-                request.setFormData(new ContentDisposition[]{imageContent});
+                form.file("init_image", "image.png", "image/png", Base64.getDecoder().decode(image.toString()));
             }
-
-            URLHandler handler = URLHandlerFactory.getHandler(request.getURL());
-            URLResponse response = handler.handleRequest(request);
-            Builder apiResponse = new Builder();
-            apiResponse.parse(response.getBody());
-            return apiResponse;
-        } catch (MalformedURLException e) {
-            throw new ApplicationException(e.getMessage(), e.getCause());
-        } catch (ApplicationException e) {
-            throw e;
+            request.header("Content-Type", form.contentType()).POST(form.body());
+        } else {
+            request.header("Content-Type", contentType).POST(HttpRequest.BodyPublishers.ofString(payload.toString()));
         }
+
+        Builder apiResponse = new Builder();
+        apiResponse.parse(HttpTransport.getInstance().send("stability", request.build()));
+        return apiResponse;
     }
 
     /**
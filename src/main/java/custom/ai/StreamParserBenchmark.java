@@ -0,0 +1,181 @@
+package custom.ai;
+
+import org.tinystruct.data.component.Builder;
+import org.tinystruct.data.component.Builders;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark of reading a streamed chat completion. The line path is the former reader: lines decoded by a
+ * {@link BufferedReader} and every chunk parsed into a {@link Builder}. The byte path reads events with
+ * {@link SseReader} and the delta content with {@link ChatDeltaParser}, parsing only the usage chunk in full.
+ * Both paths must produce the same text.
+ *
+ * <pre>
+ * java -cp target/classes:tinystruct.jar custom.ai.StreamParserBenchmark [chunks]
+ * </pre>
+ */
+public class StreamParserBenchmark {
+    private static final int DEFAULT_CHUNKS = 2_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+    private static final String[] TOKENS = {"The", " report", " says", " \"", "growth", "\"", " was", " 12", ".5", "%", "\n\n",
+            "-", " Q", "3", ":", " naïve", " café", " 東京", " 🚀", "\\", " done", "."};
+
+    private interface Path {
+        String read(byte[] stream) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CHUNKS;
+        StringBuilder expected = new StringBuilder();
+        byte[] stream = stream(chunks, expected);
+        System.out.println(chunks + " chunks, " + stream.length / 1024 + " KB of events");
+        System.out.println(String.format("%-8s %12s %12s %10s %10s", "path", "ns/chunk", "bytes/chunk", "speed-up", "same text"));
+
+        String[] names = {"lines", "bytes"};
+        Path[] paths = {StreamParserBenchmark::readLines, StreamParserBenchmark::readBytes};
+        double baseline = 0;
+        for (int path = 0; path < paths.length; path++) {
+            String text = null;
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                text = paths[path].read(stream);
+            }
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                paths[path].read(stream);
+            }
+            double nanos = (double) (System.nanoTime() - start) / MEASURED_ROUNDS / chunks;
+            double bytes = (double) (allocatedBytes() - allocated) / MEASURED_ROUNDS / chunks;
+
+            if (path == 0) {
+                baseline = nanos;
+            }
+            System.out.println(String.format("%-8s %12.0f %12.0f %9.2fx %10s", names[path], nanos, bytes, baseline / nanos,
+                    expected.toString().equals(text)));
+        }
+    }
+
+    /**
+     * The reader used before {@link SseReader}
+     */
+    private static String readLines(byte[] stream) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream), StandardCharsets.UTF_8))) {
+            String line;
+            StringBuilder eventData = new StringBuilder();
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    if (eventData.length() > 0) {
+                        String data = eventData.toString();
+                        if (data.startsWith("data: ")) {
+                            data = data.substring(6);
+                            if (data.startsWith("[DONE]")) {
+                                continue;
+                            }
+                            content(parse(data.trim()), text);
+                        }
+                        eventData.setLength(0);
+                    }
+                } else if (line.startsWith("data: ")) {
+                    eventData.append(line).append("\n");
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private static String readBytes(byte[] stream) throws IOException {
+        StringBuilder text = new StringBuilder();
+        ChatDeltaParser parser = new ChatDeltaParser();
+        new SseReader(new ByteArrayInputStream(stream)).read((data, offset, length) -> {
+            if (!parser.parse(data, offset, length)) {
+                content(parse(new String(data, offset, length, StandardCharsets.UTF_8)), text);
+            } else if (parser.content() != null) {
+                text.append(parser.content());
+            }
+        });
+        return text.toString();
+    }
+
+    private static Builder parse(String data) {
+        Builder chunk = new Builder();
+        try {
+            chunk.parse(data);
+        } catch (Exception e) {
+            throw new IllegalStateException("Invalid chunk: " + data, e);
+        }
+        return chunk;
+    }
+
+    private static void content(Builder chunk, StringBuilder text) {
+        if (chunk.get("choices") != null) {
+            Builders choices = (Builders) chunk.get("choices");
+            if (!choices.isEmpty() && choices.get(0).get("delta") != null) {
+                Builder delta = (Builder) choices.get(0).get("delta");
+                if (delta.get("content") != null) {
+                    text.append(delta.get("content").toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Events as sent by the chat completions API: a role chunk, content chunks, a finish chunk, a usage chunk
+     */
+    private static byte[] stream(int chunks, StringBuilder expected) {
+        String prefix = "{\"id\":\"chatcmpl-9x2YbQmVd3TnRkLp\",\"object\":\"chat.completion.chunk\",\"created\":1718000000," +
+                "\"model\":\"gpt-4o-mini-2024-07-18\",\"system_fingerprint\":\"fp_0ba0d124f1\",\"choices\":[{\"index\":0,\"delta\":";
+        String suffix = ",\"logprobs\":null,\"finish_reason\":%s}],\"usage\":null}";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        event(out, prefix + "{\"role\":\"assistant\",\"content\":\"\",\"refusal\":null}" + String.format(suffix, "null"));
+        for (int i = 0; i < chunks; i++) {
+            String token = TOKENS[i % TOKENS.length];
+            expected.append(token);
+            event(out, prefix + "{\"content\":\"" + escape(token) + "\"}" + String.format(suffix, "null"));
+        }
+        event(out, prefix + "{}" + String.format(suffix, "\"stop\""));
+        event(out, "{\"id\":\"chatcmpl-9x2YbQmVd3TnRkLp\",\"object\":\"chat.completion.chunk\",\"created\":1718000000," +
+                "\"model\":\"gpt-4o-mini-2024-07-18\",\"choices\":[],\"usage\":{\"prompt_tokens\":812,\"completion_tokens\":" + chunks +
+                ",\"total_tokens\":" + (812 + chunks) + "}}");
+        event(out, "[DONE]");
+        return out.toByteArray();
+    }
+
+    private static void event(ByteArrayOutputStream out, String data) {
+        out.writeBytes(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String escape(String token) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : token.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c == '\n') {
+                escaped.append("\\n");
+            } else if (c > 0x7F && c < 0x3000) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -5,10 +5,11 @@ import custom.objects.User;
 import custom.util.AuthenticationService;
 import custom.util.DocumentProcessor;
 import custom.util.EmbeddingManager;
+import custom.util.IngestionJob;
+import custom.util.IngestionService;
 import org.tinystruct.AbstractApplication;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.http.Reforward;
-import org.tinystruct.system.ApplicationManager;
 
 import org.tinystruct.data.component.Builder;
 import org.tinystruct.data.component.Builders;
@@ -292,53 +293,24 @@ public class libraries extends AbstractApplication {
             System.out.println("Processing document with MIME type: " + mimeType);
 
             if (DocumentProcessor.isSupportedMimeType(mimeType)) {
+                // Extraction, chunking and embedding run on the ingestion workers; the client polls libraries/jobs/{id}
+                IngestionJob job = new IngestionJob(targetFile.getPath(), mimeType, userId.toString(), title, description, isPublic);
                 try {
-                    // Process the document with user information
-                    DocumentProcessor processor = new DocumentProcessor();
-                    List<DocumentFragment> fragments = processor.processDocument(
-                        targetFile.getPath(),
-                        mimeType,
-                        userId.toString(),
-                        title,
-                        description,
-                        isPublic
-                    );
-
-                    if (fragments.isEmpty()) {
-                        System.err.println("Warning: No fragments were generated from the document");
-                        response.setStatus(ResponseStatus.BAD_REQUEST);
-                        return "{ \"error\": \"processing_failed\", \"message\": \"Failed to extract content from document\" }";
-                    }
-
-                    // Save fragments to database
-                    for (DocumentFragment fragment : fragments) {
-                        // Save the fragment and get the generated ID
-                        fragment.appendAndGetId();
-
-                        // Log the fragment ID for debugging
-                        System.out.println("Saved fragment with ID: " + fragment.getId());
-                    }
+                    IngestionService.getInstance().submit(job, null);
+                } catch (ApplicationException e) {
+                    response.setStatus(ResponseStatus.SERVICE_UNAVAILABLE);
+                    return "{ \"error\": \"queue_full\", \"message\": \"" + e.getMessage() + "\" }";
+                }
 
-                    // Generate embeddings for the fragments
-                    EmbeddingManager embeddingManager = (EmbeddingManager) ApplicationManager.get(EmbeddingManager.class.getName());
-                    for (DocumentFragment fragment : fragments) {
-                        embeddingManager.generateEmbedding(fragment);
-                    }
+                response.setStatus(ResponseStatus.ACCEPTED);
+                Builder builder = new Builder();
+                builder.put("success", true);
+                builder.put("message", "Document uploaded and queued for processing");
+                builder.put("title", title);
+                builder.put("jobId", job.getId());
+                builder.put("status", job.getStatus().name().toLowerCase(Locale.ROOT));
 
-                    // Return success response
-                    Builder builder = new Builder();
-                    builder.put("success", true);
-                    builder.put("message", "Document uploaded and processed successfully");
-                    builder.put("title", title);
-                    builder.put("fragmentCount", fragments.size());
-
-                    return builder.toString();
-                } catch (Exception e) {
-                    System.err.println("Error processing document: " + e.getMessage());
-                    e.printStackTrace();
-                    response.setStatus(ResponseStatus.INTERNAL_SERVER_ERROR);
-                    return "{ \"error\": \"processing_error\", \"message\": \"" + e.getMessage() + "\" }";
-                }
+                return builder.toString();
             } else {
                 response.setStatus(ResponseStatus.BAD_REQUEST);
                 return "{ \"error\": \"unsupported_file_type\", \"message\": \"Unsupported file type: " + file.getContentType() + "\" }";
@@ -350,6 +322,26 @@ public class libraries extends AbstractApplication {
         }
     }
 
+    /**
+     * Status of a document ingestion job
+     */
+    @Action("libraries/jobs")
+    public String job(String id, Request request, Response response) throws ApplicationException {
+        Object userId = request.getSession().getAttribute("user_id");
+        if (userId == null) {
+            response.setStatus(ResponseStatus.UNAUTHORIZED);
+            return "{ \"error\": \"not_authenticated\", \"message\": \"User is not logged in\" }";
+        }
+
+        IngestionJob job = IngestionService.getInstance().getJob(id);
+        if (job == null || (job.getUserId() != null && !job.getUserId().equals(userId.toString()))) {
+            response.setStatus(ResponseStatus.NOT_FOUND);
+            return "{ \"error\": \"job_not_found\", \"message\": \"Job not found\" }";
+        }
+
+        return job.toBuilder().toString();
+    }
+
     /**
      * Create directory if it doesn't exist
      */
@@ -406,17 +398,8 @@ public class libraries extends AbstractApplication {
             firstFragment.setData(documents.get(0));
             String filePath = firstFragment.getFilePath();
 
-            // Delete all embeddings for this document's fragments
-            try (org.tinystruct.data.DatabaseOperator db = new org.tinystruct.data.DatabaseOperator()) {
-                // First delete embeddings
-                String deleteEmbeddingsSQL = "DELETE FROM document_embeddings WHERE fragment_id IN " +
-                        "(SELECT id FROM document_fragments WHERE document_id = '" + documentId + "')";
-                db.execute(deleteEmbeddingsSQL);
-
-                // Then delete fragments
-                String deleteFragmentsSQL = "DELETE FROM document_fragments WHERE document_id = '" + documentId + "'";
-                db.execute(deleteFragmentsSQL);
-            }
+            // Delete the fragments and their embeddings from the database and the search indexes
+            EmbeddingManager.deleteDocument(documentId);
 
             // Try to delete the physical file if it exists
             try {
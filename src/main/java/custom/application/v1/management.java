@@ -3,6 +3,7 @@ package custom.application.v1;
 import custom.objects.User;
 import custom.objects.DocumentFragment;
 import custom.util.AuthenticationService;
+import custom.util.EmbeddingManager;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.data.component.Row;
 import org.tinystruct.data.component.Table;
@@ -236,12 +237,14 @@ public class management extends AbstractApplication {
         }
 
         DocumentFragment document = new DocumentFragment();
-        if (document.findOneByKey("document_id", documentId) == null) {
+        Table fragments = document.findWith("WHERE document_id = ?", new Object[]{documentId});
+        if (fragments == null || fragments.isEmpty()) {
             response.setStatus(ResponseStatus.NOT_FOUND);
             return "{ \"error\": \"Document not found\" }";
         }
 
-        document.delete();
+        // Delete the embeddings together with all fragments of the document
+        EmbeddingManager.deleteDocument(documentId);
 
         return "{ \"success\": true, \"message\": \"Document deleted successfully\" }";
     }
@@ -1,11 +1,11 @@
 package custom.application.v1;
 
+import custom.ai.HttpTransport;
 import custom.ai.ImageProcessorType;
 import custom.ai.OpenAI;
 import custom.ai.SearchAI;
 import custom.ai.StabilityAI;
 import custom.objects.ChatHistory;
-import custom.objects.DocumentFragment;
 import custom.objects.User;
 import custom.util.*;
 import org.tinystruct.ApplicationContext;
@@ -54,17 +54,31 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
     private static final String DATE_FORMAT_PATTERN = "yyyy-M-d h:m:s";
     private static final String FILE_UPLOAD_DIR = "files";
     private static final int MAX_CONVERSATION_HISTORY = 5; // Store up to 5 message pairs for context
+    private static final int MAX_HISTORY_TOKENS = 4000; // Token budget of the previous messages sent as context
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4; // Role and separators of each chat message
 
     // Configuration keys
     public static final String CONFIG_OPENAI_API_KEY = "openai.api_key";
     public static final String CONFIG_OPENAI_API_ENDPOINT = "openai.api_endpoint";
     private static final String CONFIG_DEFAULT_CHAT_ENGINE = "default.chat.engine";
     private static final String CONFIG_SYSTEM_DIRECTORY = "system.directory";
+    private static final String CONFIG_AI_MAX_CONCURRENT = "ai.dispatch.max_concurrent";
+    private static final String CONFIG_AI_QUEUE_CAPACITY = "ai.dispatch.queue_capacity";
+    private static final String CONFIG_AI_PER_USER = "ai.dispatch.per_user";
+    private static final String CONFIG_AI_PER_MEETING = "ai.dispatch.per_meeting";
+    private static final String CONFIG_AI_VIRTUAL_THREADS = "ai.dispatch.virtual_threads";
+    private static final String CONFIG_STREAM_FLUSH_MILLIS = "ai.stream.flush_millis";
+    private static final String CONFIG_STREAM_FLUSH_CHARS = "ai.stream.flush_chars";
+    private static final String CONFIG_HTTP_CONNECT_TIMEOUT = "http.connect_timeout_seconds";
+    private static final String CONFIG_HTTP_RESPONSE_TIMEOUT = "http.response_timeout_seconds";
+    private static final String CONFIG_HTTP_READ_TIMEOUT = "http.read_timeout_seconds";
 
     private static final SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT_PATTERN);
     protected static final String MODEL = DEFAULT_MODEL;
     private boolean cliMode;
     private boolean chatGPT;
+    private int streamFlushMillis = DeltaCoalescer.DEFAULT_FLUSH_MILLIS;
+    private int streamFlushChars = DeltaCoalescer.DEFAULT_FLUSH_CHARS;
     private static final EventDispatcher dispatcher = EventDispatcher.getInstance();
 
     public void init() {
@@ -114,6 +128,9 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
     }
 
     private void initializeAIServices() {
+        HttpTransport.configure(getIntConfiguration(CONFIG_HTTP_CONNECT_TIMEOUT, HttpTransport.DEFAULT_CONNECT_TIMEOUT_SECONDS),
+                getIntConfiguration(CONFIG_HTTP_RESPONSE_TIMEOUT, HttpTransport.DEFAULT_RESPONSE_TIMEOUT_SECONDS),
+                getIntConfiguration(CONFIG_HTTP_READ_TIMEOUT, HttpTransport.DEFAULT_READ_TIMEOUT_SECONDS));
         ApplicationManager.install(new OpenAI());
         ApplicationManager.install(new StabilityAI());
         ApplicationManager.install(new SearchAI());
@@ -122,6 +139,48 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
         this.chatGPT = getConfiguration().get(CONFIG_DEFAULT_CHAT_ENGINE) != null
                 ? !getConfiguration().get(CONFIG_DEFAULT_CHAT_ENGINE).equals("gpt-3")
                 : false;
+
+        AiDispatcher.configure(getIntConfiguration(CONFIG_AI_MAX_CONCURRENT, AiDispatcher.DEFAULT_MAX_CONCURRENT),
+                getIntConfiguration(CONFIG_AI_QUEUE_CAPACITY, AiDispatcher.DEFAULT_QUEUE_CAPACITY),
+                getIntConfiguration(CONFIG_AI_PER_USER, AiDispatcher.DEFAULT_PER_USER),
+                getIntConfiguration(CONFIG_AI_PER_MEETING, AiDispatcher.DEFAULT_PER_MEETING),
+                !"false".equalsIgnoreCase(getConfiguration().get(CONFIG_AI_VIRTUAL_THREADS)));
+        this.streamFlushMillis = getIntConfiguration(CONFIG_STREAM_FLUSH_MILLIS, streamFlushMillis);
+        this.streamFlushChars = getIntConfiguration(CONFIG_STREAM_FLUSH_CHARS, streamFlushChars);
+    }
+
+    private int getIntConfiguration(String key, int defaultValue) {
+        String value = getConfiguration().get(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Warning: Invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Report the queue depth, wait times and counters of the @AI request dispatcher
+     *
+     * @return Dispatcher statistics
+     */
+    @Action(value = "ai/dispatch", description = "Report @AI request dispatcher statistics")
+    public String dispatchStats() {
+        return AiDispatcher.getInstance().stats().toString();
+    }
+
+    /**
+     * Report the requests, failures and latency per phase of the provider HTTP calls
+     *
+     * @return Transport statistics by provider
+     */
+    @Action(value = "ai/http", description = "Report provider HTTP latency statistics")
+    public String httpStats() {
+        return HttpTransport.getInstance().stats().toString();
     }
 
     private void setupEventHandling() {
@@ -463,19 +522,22 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
             if (message.contains("@" + AI)) {
                 final String finalMessage = message.replaceAll("@" + AI, "");
 
-                // Use a separate thread for processing to avoid request object issues
-                Thread processingThread = new Thread(() -> {
-                    try {
-                        processChatGPTResponseAsync(request, isStreaming, meetingCodeStr, sessionId, finalMessage, image);
-                    } catch (Exception e) {
-                        System.err.println("Error processing ChatGPT response: " + e.getMessage());
-                        sendErrorMessage(meetingCodeStr, sessionId, e.getMessage());
-                    }
-                });
-
-                // Start the thread after saving the user's message
+                // Save the user's message first, then queue the request off the request thread
                 this.save(meetingCodeStr, builder);
-                processingThread.start();
+                try {
+                    AiDispatcher.getInstance().submit(userId.toString(), meetingCodeStr, () -> {
+                        try {
+                            processChatGPTResponseAsync(request, isStreaming, meetingCodeStr, sessionId, finalMessage, image);
+                        } catch (Exception e) {
+                            System.err.println("Error processing ChatGPT response: " + e.getMessage());
+                            sendErrorMessage(meetingCodeStr, sessionId, e.getMessage());
+                        }
+                    });
+                } catch (ApplicationException e) {
+                    sendErrorMessage(meetingCodeStr, sessionId, e.getMessage());
+                    response.setStatus(ResponseStatus.SERVICE_UNAVAILABLE);
+                    return "{ \"error\": \"busy\", \"message\": \"" + e.getMessage() + "\" }";
+                }
 
                 return "{ \"status\": \"ok\", \"processing\": true }";
             }
@@ -572,41 +634,53 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
             // Process the streaming response
             StringBuilder fullResponse = new StringBuilder();
 
+            // Token deltas are sent to the meeting in batches rather than one message per token
+            DeltaCoalescer deltas = new DeltaCoalescer(streamFlushMillis, streamFlushChars, content -> {
+                final Builder chunkData = new Builder();
+                chunkData.put("user", AI);
+                chunkData.put("user_id", 0);
+                chunkData.put("session_id", sessionId);
+                chunkData.put("time", format.format(new Date()));
+                chunkData.put("id", messageId);
+                chunkData.put("message", content);
+                chunkData.put("streaming", true);
+                chunkData.put("final", false);
+                chunkData.put("chunk", content);
+                chunkData.put("incremental", true); // Flag to indicate this is an incremental update
+                save(meetingCode, chunkData);
+            });
+
             // Start streaming from OpenAI API
-            openAI.streamChatCompletion(payload, chunk -> {
-                try {
-                    if (chunk != null && chunk.get("choices") != null) {
-                        Builders choices = (Builders) chunk.get("choices");
-                        if (!choices.isEmpty()) {
-                            Builder choice = choices.get(0);
-                            if (choice.get("delta") != null) {
-                                Builder delta = (Builder) choice.get("delta");
-                                if (delta.get("content") != null) {
-                                    String content = delta.get("content").toString();
-
-                                    fullResponse.append(content);
-
-                                    // Send the chunk to all users in the meeting
-                                    final Builder chunkData = new Builder();
-                                    chunkData.put("user", AI);
-                                    chunkData.put("user_id", 0);
-                                    chunkData.put("session_id", sessionId);
-                                    chunkData.put("time", format.format(new Date()));
-                                    chunkData.put("id", messageId);
-                                    chunkData.put("message", content);
-                                    chunkData.put("streaming", true);
-                                    chunkData.put("final", false);
-                                    chunkData.put("chunk", content);
-                                    chunkData.put("incremental", true); // Flag to indicate this is an incremental update
-                                    save(meetingCode, chunkData);
+            try {
+                openAI.streamChatContent(payload, content -> {
+                    fullResponse.append(content);
+                    deltas.append(content);
+                }, chunk -> {
+                    // Chunks that could not be read in place, such as tool calls or usage
+                    try {
+                        if (chunk != null && chunk.get("choices") != null) {
+                            Builders choices = (Builders) chunk.get("choices");
+                            if (!choices.isEmpty()) {
+                                Builder choice = choices.get(0);
+                                if (choice.get("delta") != null) {
+                                    Builder delta = (Builder) choice.get("delta");
+                                    if (delta.get("content") != null) {
+                                        String content = delta.get("content").toString();
+
+                                        fullResponse.append(content);
+                                        deltas.append(content);
+                                    }
                                 }
                             }
                         }
+                    } catch (Exception e) {
+                        System.err.println("Error processing streaming chunk: " + e.getMessage());
                     }
-                } catch (Exception e) {
-                    System.err.println("Error processing streaming chunk: " + e.getMessage());
-                }
-            });
+                });
+            } finally {
+                // Send what is left before the final chunk
+                deltas.close();
+            }
 
             // Send a final chunk to indicate the end of streaming
             final Builder finalChunkData = new Builder();
@@ -903,7 +977,7 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
         messages.add(systemMessage);
 
         // Add previous context if available
-        addPreviousContext(messages, sessionId);
+        addPreviousContext(messages, sessionId, model);
 
         // Add current message
         Builder userMessage = new Builder();
@@ -988,22 +1062,35 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
                 "I will always prioritize context from our conversation and uploaded documents over my general knowledge.";
     }
 
-    private void addPreviousContext(Builders messages, String sessionId) {
+    /**
+     * Add the most recent message pairs of the conversation that fit in {@link #MAX_HISTORY_TOKENS}
+     */
+    private void addPreviousContext(Builders messages, String sessionId, String model) {
+        Tokenizer tokenizer = Tokenizer.forModel(model);
+        int budget = MAX_HISTORY_TOKENS;
+
         // Try to get conversation history from our manager first
         List<Map<String, String>> conversationHistory = ConversationHistoryManager.getConversationHistory(sessionId);
 
         if (conversationHistory != null && !conversationHistory.isEmpty()) {
             System.out.println("Adding previous context from conversation history manager");
 
-            // Add up to MAX_CONVERSATION_HISTORY previous message pairs
-            int count = Math.min(conversationHistory.size(), MAX_CONVERSATION_HISTORY);
-
-            for (int i = 0; i < count; i++) {
+            // Add up to MAX_CONVERSATION_HISTORY previous message pairs, newest first
+            int count = 0;
+            for (int i = 0; i < Math.min(conversationHistory.size(), MAX_CONVERSATION_HISTORY); i++) {
                 Map<String, String> messagePair = conversationHistory.get(i);
                 String userMessage = messagePair.get("user");
                 String assistantMessage = messagePair.get("assistant");
 
                 if (userMessage != null) {
+                    int tokens = messageTokens(tokenizer, userMessage) + messageTokens(tokenizer, assistantMessage);
+                    if (tokens > budget) {
+                        System.out.println("History token budget reached, older messages are left out");
+                        break;
+                    }
+                    budget -= tokens;
+                    count++;
+
                     Builder previousUser = new Builder();
                     previousUser.put("role", "user");
                     previousUser.put("content", userMessage);
@@ -1035,6 +1122,13 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
             String assistantMessage = pair[1];
 
             if (userMessage != null && !userMessage.isEmpty()) {
+                int tokens = messageTokens(tokenizer, userMessage) + messageTokens(tokenizer, assistantMessage);
+                if (tokens > budget) {
+                    System.out.println("History token budget reached, older messages are left out");
+                    break;
+                }
+                budget -= tokens;
+
                 Builder previousUser = new Builder();
                 previousUser.put("role", "user");
                 previousUser.put("content", userMessage);
@@ -1050,6 +1144,10 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
         }
     }
 
+    private static int messageTokens(Tokenizer tokenizer, String content) {
+        return content == null || content.isEmpty() ? 0 : tokenizer.count(content) + MESSAGE_OVERHEAD_TOKENS;
+    }
+
     /**
      * Call chat GPT API
      *
@@ -1109,7 +1207,7 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
             systemMessage.put("content", getSystemPrompt());
             messages.add(systemMessage);
 
-            addPreviousContext(messages, sessionId);
+            addPreviousContext(messages, sessionId, MODEL);
 
             // Try to add relevant document context for the query
             try {
@@ -1134,8 +1232,13 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
                 String contextualQuery = createContextualQuery(sessionId, message);
                 System.out.println("Created contextual query: '" + contextualQuery + "'");
 
+                // Only public fragments and the user's own uploads may be used as context
+                Session session = SessionManager.getInstance().getSession(sessionId);
+                Object userId = session != null ? session.getAttribute("user_id") : null;
+
                 // Add document context with meeting code and contextual query
-                boolean contextAdded = DocumentQA.addDocumentContextToMessages(contextualQuery, meetingCode, messages);
+                boolean contextAdded = DocumentQA.addDocumentContextToMessages(contextualQuery, meetingCode,
+                        userId != null ? userId.toString() : null, messages);
 
                 if (contextAdded) {
                     System.out.println("Successfully added document context to messages");
@@ -1556,9 +1659,12 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
         if (targetFile.exists() && targetFile.length() > 0) {
             System.out.println("File written successfully: " + targetFile.getPath() + " (" + targetFile.length() + " bytes)");
 
-            // Process document if it's a supported type
+            // Queue the document for ingestion if it's a supported type
             if (DocumentProcessor.isSupportedMimeType(file.getContentType())) {
-                processDocumentContent(targetFile.getPath(), file.getContentType(), meetingCode);
+                String jobId = processDocumentContent(targetFile.getPath(), file.getContentType(), meetingCode);
+                if (jobId != null) {
+                    builder.put("jobId", jobId);
+                }
             }
         } else {
             System.err.println("Warning: File appears to be empty after writing: " + targetFile.getPath());
@@ -1586,9 +1692,14 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
         }
     }
 
-    private void processDocumentContent(String filePath, String mimeType, String meetingCode) {
+    /**
+     * Queue an uploaded document for ingestion. A system message is sent to the meeting when the job finishes.
+     *
+     * @return The ingestion job ID, or null if the job could not be queued
+     */
+    private String processDocumentContent(String filePath, String mimeType, String meetingCode) {
         try {
-            System.out.println("Starting document processing for: " + filePath);
+            System.out.println("Queueing document processing for: " + filePath);
             System.out.println("MIME type: " + mimeType);
             System.out.println("Meeting code: " + meetingCode);
 
@@ -1619,74 +1730,34 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
             String description = "Uploaded by " + (username != null ? username : "anonymous user") + " on " +
                     new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
 
-            DocumentProcessor processor = new DocumentProcessor();
-            List<DocumentFragment> fragments = processor.processDocument(
-                    filePath,
-                    mimeType.trim(),
-                    userId,
-                    title,
-                    description,
+            IngestionJob job = new IngestionJob(filePath, mimeType.trim(), userId, title, description,
                     true  // Public by default
             );
-
-            System.out.println("Successfully processed document into " + fragments.size() + " fragments");
-
-            EmbeddingManager manager = (EmbeddingManager) ApplicationManager.get(EmbeddingManager.class.getName());
-            if (manager == null) {
-                System.err.println("ERROR: EmbeddingManager not found. Make sure it's properly initialized.");
-                throw new ApplicationException("EmbeddingManager not found");
-            }
-
-            // Save fragments to database
-            int successCount = 0;
-            for (DocumentFragment fragment : fragments) {
-                try {
-                    fragment.appendAndGetId();
-                    System.out.println("Saved fragment " + fragment.getId() + " to database");
-
-                    // Generate embedding for the fragment
-                    try {
-                        manager.generateEmbedding(fragment);
-                        successCount++;
-                        System.out.println("Generated embedding for fragment " + fragment.getId());
-                    } catch (Exception e) {
-                        System.err.println("Failed to generate embedding for document fragment: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                } catch (Exception e) {
-                    System.err.println("Failed to save document fragment: " + e.getMessage());
-                    e.printStackTrace();
+            IngestionService.getInstance().submit(job, finished -> {
+                // Completion event pushed to the meeting's SSE stream
+                final Builder messageBuilder = new Builder();
+                messageBuilder.put("user", "System");
+                messageBuilder.put("time", format.format(new Date()));
+                messageBuilder.put("job", finished.toBuilder());
+                if (finished.getStatus() == IngestionJob.Status.COMPLETED) {
+                    messageBuilder.put("message", String.format("Document '%s' has been processed into %d fragments and is now searchable.",
+                            fileName, finished.getFragmentCount()));
+                } else {
+                    messageBuilder.put("message", "Error processing document: " + finished.getError());
                 }
-            }
-
-            System.out.println("Document processing complete. Successfully processed " +
-                    successCount + " out of " + fragments.size() + " fragments.");
-
-            // Add a message to the chat about the document processing
-            final Builder messageBuilder = new Builder();
-            messageBuilder.put("user", "System");
-            messageBuilder.put("time", format.format(new Date()));
-            messageBuilder.put("message", String.format("Document '%s' has been processed into %d fragments and is now searchable.",
-                    new File(filePath).getName(), fragments.size()));
-            save(meetingCode, messageBuilder);
-        } catch (ApplicationException e) {
-            System.err.println("Error processing document: " + e.getMessage());
-            e.printStackTrace();
-            // Add error message to chat
-            final Builder errorBuilder = new Builder();
-            errorBuilder.put("user", "System");
-            errorBuilder.put("time", format.format(new Date()));
-            errorBuilder.put("message", "Error processing document: " + e.getMessage());
-            save(meetingCode, errorBuilder);
+                save(meetingCode, messageBuilder);
+            });
+            return job.getId();
         } catch (Exception e) {
-            System.err.println("Unexpected error processing document: " + e.getMessage());
+            System.err.println("Error queueing document: " + e.getMessage());
             e.printStackTrace();
             // Add error message to chat
             final Builder errorBuilder = new Builder();
             errorBuilder.put("user", "System");
             errorBuilder.put("time", format.format(new Date()));
-            errorBuilder.put("message", "Unexpected error processing document: " + e.getMessage());
+            errorBuilder.put("message", "Error processing document: " + e.getMessage());
             save(meetingCode, errorBuilder);
+            return null;
         }
     }
 
@@ -2059,9 +2130,10 @@ public class smalltalk extends DistributedMessageQueue implements SessionListene
         // Get all sessions in this meeting
         Set<String> sessionIds = this.sessions.get(meetingCode);
         if (sessionIds != null) {
-            // Broadcast to all sessions in the meeting
+            // Broadcast to all sessions in the meeting, serializing the message only once
+            final SerializedMessage message = SerializedMessage.of(data);
             for (String sessionId : sessionIds) {
-                SSEPushManager.getInstance().push(sessionId, data);
+                SSEPushManager.getInstance().push(sessionId, message);
             }
 
             // Only save to chat history if this is a final message
@@ -1,15 +1,12 @@
 package custom.objects;
 
+import custom.util.EmbeddingCodec;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.data.component.AbstractData;
 import org.tinystruct.data.component.Row;
 import org.tinystruct.data.component.Table;
 import org.tinystruct.system.ApplicationManager;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Vector;
@@ -24,6 +21,7 @@ public class DocumentEmbedding extends AbstractData implements Serializable {
     private String fragmentId;
     private byte[] embedding;
     private int embeddingDimension;
+    private String model;
     private Date createdAt;
 
     public String getId() {
@@ -55,6 +53,14 @@ public class DocumentEmbedding extends AbstractData implements Serializable {
         return this.embeddingDimension;
     }
 
+    public void setModel(String model) {
+        this.model = this.setFieldAsString("model", model);
+    }
+
+    public String getModel() {
+        return this.model;
+    }
+
     public void setCreatedAt(Date createdAt) {
         this.createdAt = this.setFieldAsDate("createdAt", createdAt);
     }
@@ -64,95 +70,103 @@ public class DocumentEmbedding extends AbstractData implements Serializable {
     }
 
     /**
-     * Store a Vector<Double> as a byte array in the embedding field
+     * Store a Vector<Double> as float32 values in the embedding field
      * @param embeddingVector The embedding vector
-     * @throws ApplicationException if serialization fails
+     * @throws ApplicationException if encoding fails
      */
     public void setEmbeddingVector(Vector<Double> embeddingVector) throws ApplicationException {
-        try {
-            if (embeddingVector == null) {
-                throw new ApplicationException("Cannot serialize null embedding vector");
-            }
-
-            System.out.println("Serializing embedding vector with dimension: " + embeddingVector.size());
-
-            // Print first few values for debugging
-            if (!embeddingVector.isEmpty()) {
-                StringBuilder sb = new StringBuilder("First 5 values: ");
-                for (int i = 0; i < Math.min(5, embeddingVector.size()); i++) {
-                    sb.append(embeddingVector.get(i));
-                    if (i < Math.min(4, embeddingVector.size() - 1)) {
-                        sb.append(", ");
-                    }
-                }
-                System.out.println(sb.toString());
-            }
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(embeddingVector);
-            oos.close();
-
-            byte[] serializedData = baos.toByteArray();
-            System.out.println("Serialized embedding to " + serializedData.length + " bytes");
+        if (embeddingVector == null) {
+            throw new ApplicationException("Cannot serialize null embedding vector");
+        }
 
-            this.setEmbedding(serializedData);
-            this.setEmbeddingDimension(embeddingVector.size());
-        } catch (Exception e) {
-            System.err.println("Error serializing embedding vector: " + e.getMessage());
-            e.printStackTrace();
-            throw new ApplicationException("Failed to serialize embedding vector: " + e.getMessage(), e);
+        float[] values = new float[embeddingVector.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = embeddingVector.get(i).floatValue();
         }
+        this.setEmbeddingValues(values, null, EmbeddingCodec.FLOAT32);
     }
 
     /**
-     * Get the embedding vector from the byte array
-     * @return The deserialized embedding vector
-     * @throws ApplicationException if deserialization fails
+     * Store embedding values in the embedding field using {@link EmbeddingCodec}
+     * @param values The embedding values
+     * @param model Name of the model that produced the embedding
+     * @param dataType {@link EmbeddingCodec#FLOAT32} or {@link EmbeddingCodec#FLOAT16}
+     * @throws ApplicationException if encoding fails
      */
-    public Vector<Double> getEmbeddingVector() throws ApplicationException {
+    public void setEmbeddingValues(float[] values, String model, byte dataType) throws ApplicationException {
+        if (values == null) {
+            throw new ApplicationException("Cannot serialize null embedding vector");
+        }
+
         try {
-            if (this.getEmbedding() == null) {
-                System.err.println("Warning: Embedding is null for fragment ID: " + this.getFragmentId());
-                return null;
+            this.setEmbedding(EmbeddingCodec.encode(values, model, dataType));
+            this.setEmbeddingDimension(values.length);
+            if (model != null) {
+                this.setModel(model);
             }
+        } catch (IllegalArgumentException e) {
+            throw new ApplicationException("Failed to serialize embedding vector: " + e.getMessage(), e);
+        }
+    }
 
-            byte[] embeddingData = this.getEmbedding();
-            System.out.println("Deserializing embedding data of size: " + embeddingData.length + " bytes for fragment ID: " + this.getFragmentId());
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(embeddingData);
-            ObjectInputStream ois = new ObjectInputStream(bais);
-            Object obj = ois.readObject();
-            ois.close();
-
-            System.out.println("Deserialized object class: " + (obj != null ? obj.getClass().getName() : "null"));
-
-            if (!(obj instanceof Vector)) {
-                System.err.println("Error: Deserialized object is not a Vector: " +
-                        (obj != null ? obj.getClass().getName() : "null") +
-                        " for fragment ID: " + this.getFragmentId());
-                return null;
-            }
+    /**
+     * Get the embedding values from the byte array, whether stored in the binary format
+     * or as a legacy serialized Vector<Double>
+     * @return The embedding values, or null if no embedding is stored in this row
+     * @throws ApplicationException if decoding fails
+     */
+    public float[] getEmbeddingValues() throws ApplicationException {
+        if (this.getEmbedding() == null) {
+            System.err.println("Warning: Embedding is null for fragment ID: " + this.getFragmentId());
+            return null;
+        }
 
-            @SuppressWarnings("unchecked")
-            Vector<Double> embeddingVector = (Vector<Double>) obj;
+        if (this.getEmbedding().length == 0) {
+            // Metadata-only row, the vector is kept in the segment files
+            return null;
+        }
 
-            // Validate the vector
-            if (embeddingVector.size() != this.getEmbeddingDimension()) {
-                System.err.println("Warning: Vector dimension (" + embeddingVector.size() +
+        try {
+            float[] values = EmbeddingCodec.decode(this.getEmbedding());
+            if (values.length != this.getEmbeddingDimension()) {
+                System.err.println("Warning: Vector dimension (" + values.length +
                         ") does not match stored dimension (" + this.getEmbeddingDimension() + ") " +
                         "for fragment ID: " + this.getFragmentId());
             }
-
-            return embeddingVector;
+            return values;
         } catch (Exception e) {
             System.err.println("Error deserializing embedding vector for fragment ID: " +
                     this.getFragmentId() + ": " + e.getMessage());
-            e.printStackTrace();
             throw new ApplicationException("Failed to deserialize embedding vector: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Check whether the embedding is still stored as a serialized Vector<Double>
+     * @return true if the row needs to be migrated to the binary format
+     */
+    public boolean isLegacyEncoding() {
+        return EmbeddingCodec.isLegacy(this.getEmbedding());
+    }
+
+    /**
+     * Get the embedding vector from the byte array
+     * @return The embedding vector
+     * @throws ApplicationException if decoding fails
+     */
+    public Vector<Double> getEmbeddingVector() throws ApplicationException {
+        float[] values = this.getEmbeddingValues();
+        if (values == null) {
+            return null;
+        }
+
+        Vector<Double> embeddingVector = new Vector<>(values.length);
+        for (float value : values) {
+            embeddingVector.add((double) value);
+        }
+        return embeddingVector;
+    }
+
     @Override
     public void setData(Row row) {
         if (row.getFieldInfo("id") != null) this.setId(row.getFieldInfo("id").stringValue());
@@ -166,7 +180,6 @@ public class DocumentEmbedding extends AbstractData implements Serializable {
                 if (embeddingObj == null) {
                     try {
                         embeddingObj = row.getFieldInfo("embedding").stringValue();
-                        System.out.println("Using stringValue() as fallback for embedding");
                     } catch (Exception e) {
                         System.err.println("Failed to get embedding using stringValue(): " + e.getMessage());
                     }
@@ -174,18 +187,12 @@ public class DocumentEmbedding extends AbstractData implements Serializable {
                 String fragmentId = row.getFieldInfo("fragment_id") != null ?
                         row.getFieldInfo("fragment_id").stringValue() : "unknown";
 
-                System.out.println("Retrieved embedding object for fragment ID: " + fragmentId +
-                        ", class: " + (embeddingObj != null ? embeddingObj.getClass().getName() : "null"));
-
+                // Rows are decoded in bulk when the vector index loads, so only problems are logged here
                 if (embeddingObj != null) {
                     if (embeddingObj instanceof byte[]) {
-                        byte[] embeddingBytes = (byte[]) embeddingObj;
-                        System.out.println("Setting embedding from byte array of size: " + embeddingBytes.length);
-                        this.setEmbedding(embeddingBytes);
+                        this.setEmbedding((byte[]) embeddingObj);
                     } else if (embeddingObj instanceof String) {
-                        String embeddingStr = (String) embeddingObj;
-                        System.out.println("Setting embedding from string of length: " + embeddingStr.length());
-                        this.setEmbedding(embeddingStr.getBytes());
+                        this.setEmbedding(((String) embeddingObj).getBytes());
                     } else {
                         System.err.println("Unexpected embedding data type: " + embeddingObj.getClass().getName());
                     }
@@ -200,6 +207,7 @@ public class DocumentEmbedding extends AbstractData implements Serializable {
             System.err.println("No embedding field found in row");
         }
         if (row.getFieldInfo("embedding_dimension") != null) this.setEmbeddingDimension(row.getFieldInfo("embedding_dimension").intValue());
+        if (row.getFieldInfo("model") != null) this.setModel(row.getFieldInfo("model").stringValue());
         if (row.getFieldInfo("created_at") != null) this.setCreatedAt(row.getFieldInfo("created_at").dateValue());
     }
 
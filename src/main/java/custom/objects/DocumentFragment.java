@@ -25,6 +25,7 @@ public class DocumentFragment extends AbstractData implements Serializable {
     private String title;
     private String description;
     private boolean isPublic;
+    private String contentHash;
 
     public String getId() {
         return String.valueOf(this.Id);
@@ -110,6 +111,14 @@ public class DocumentFragment extends AbstractData implements Serializable {
         return this.isPublic;
     }
 
+    public void setContentHash(String contentHash) {
+        this.contentHash = this.setFieldAsString("contentHash", contentHash);
+    }
+
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
 
     @Override
     public void setData(Row row) {
@@ -125,6 +134,7 @@ public class DocumentFragment extends AbstractData implements Serializable {
         if (row.getFieldInfo("title") != null) this.setTitle(row.getFieldInfo("title").stringValue());
         if (row.getFieldInfo("description") != null) this.setDescription(row.getFieldInfo("description").stringValue());
         if (row.getFieldInfo("is_public") != null) this.setIsPublic(row.getFieldInfo("is_public").booleanValue());
+        if (row.getFieldInfo("content_hash") != null) this.setContentHash(row.getFieldInfo("content_hash").stringValue());
     }
 
     @Override
@@ -0,0 +1,230 @@
+package custom.util;
+
+import org.tinystruct.ApplicationException;
+import org.tinystruct.data.component.Builder;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs requests to the language model for {@code @AI} mentions off the request threads.
+ * At most {@code maxConcurrent} requests run at once, each user and each meeting have their own cap,
+ * and requests over a cap wait in a bounded queue. Once the queue is full new requests are rejected
+ * right away, so a burst of mentions cannot pile up blocked threads.
+ *
+ * <p>Requests run on virtual threads when the JDK supports them and they are enabled, otherwise on a
+ * fixed pool of platform threads.</p>
+ */
+public class AiDispatcher {
+    public static final int DEFAULT_MAX_CONCURRENT = 16;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_PER_USER = 2;
+    public static final int DEFAULT_PER_MEETING = 4;
+
+    private static volatile AiDispatcher instance;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final int maxConcurrent;
+    private final int queueCapacity;
+    private final int perUser;
+    private final int perMeeting;
+
+    // Guarded by this
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private final Map<String, Integer> runningByUser = new HashMap<>();
+    private final Map<String, Integer> runningByMeeting = new HashMap<>();
+    private int running;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder waitMillis = new LongAdder();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private AiDispatcher(int maxConcurrent, int queueCapacity, int perUser, int perMeeting, boolean useVirtualThreads) {
+        this.maxConcurrent = maxConcurrent;
+        this.queueCapacity = queueCapacity;
+        this.perUser = perUser;
+        this.perMeeting = perMeeting;
+
+        ExecutorService virtual = useVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtualThreads = virtual != null;
+        if (virtual != null) {
+            this.executor = virtual;
+        } else {
+            AtomicInteger threads = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(maxConcurrent, runnable -> {
+                Thread thread = new Thread(runnable, "ai-dispatch-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        System.out.println("AI dispatcher runs at most " + maxConcurrent + " requests on " +
+                (virtualThreads ? "virtual threads" : "platform threads") + ", queue capacity " + queueCapacity +
+                ", " + perUser + " per user, " + perMeeting + " per meeting");
+    }
+
+    public static AiDispatcher getInstance() {
+        if (instance == null) {
+            configure(DEFAULT_MAX_CONCURRENT, DEFAULT_QUEUE_CAPACITY, DEFAULT_PER_USER, DEFAULT_PER_MEETING, true);
+        }
+        return instance;
+    }
+
+    /**
+     * Create the shared dispatcher with the given limits, unless it already exists
+     */
+    public static synchronized void configure(int maxConcurrent, int queueCapacity, int perUser, int perMeeting,
+                                              boolean useVirtualThreads) {
+        if (instance == null) {
+            instance = new AiDispatcher(Math.max(1, maxConcurrent), Math.max(0, queueCapacity),
+                    Math.max(1, perUser), Math.max(1, perMeeting), useVirtualThreads);
+        }
+    }
+
+    /**
+     * Virtual threads are created through reflection, as the code is compiled for Java 17
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a request as soon as the caps allow
+     *
+     * @param userId      The user asking
+     * @param meetingCode The meeting the request belongs to
+     * @param request     The request
+     * @throws ApplicationException if the queue is full
+     */
+    public void submit(String userId, String meetingCode, Runnable request) throws ApplicationException {
+        Task task = new Task(String.valueOf(userId), String.valueOf(meetingCode), request);
+        synchronized (this) {
+            if (!canStart(task) && queue.size() >= queueCapacity) {
+                rejected.increment();
+                throw new ApplicationException("The assistant is busy, please try again in a moment");
+            }
+
+            submitted.increment();
+            queue.addLast(task);
+            maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+        dispatch();
+    }
+
+    /**
+     * Start every queued request that fits within the caps, oldest first
+     */
+    private void dispatch() {
+        synchronized (this) {
+            Iterator<Task> iterator = queue.iterator();
+            while (running < maxConcurrent && iterator.hasNext()) {
+                Task task = iterator.next();
+                if (!canStart(task)) {
+                    continue;
+                }
+
+                iterator.remove();
+                running++;
+                runningByUser.merge(task.userId, 1, Integer::sum);
+                runningByMeeting.merge(task.meetingCode, 1, Integer::sum);
+                executor.execute(() -> run(task));
+            }
+        }
+    }
+
+    private boolean canStart(Task task) {
+        return running < maxConcurrent &&
+                runningByUser.getOrDefault(task.userId, 0) < perUser &&
+                runningByMeeting.getOrDefault(task.meetingCode, 0) < perMeeting;
+    }
+
+    private void run(Task task) {
+        long waited = System.currentTimeMillis() - task.queuedAt;
+        waitMillis.add(waited);
+        maxWaitMillis.accumulateAndGet(waited, Math::max);
+        try {
+            task.request.run();
+            completed.increment();
+        } catch (RuntimeException e) {
+            failed.increment();
+            System.err.println("AI request of user " + task.userId + " in meeting " + task.meetingCode + " failed: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                running--;
+                release(runningByUser, task.userId);
+                release(runningByMeeting, task.meetingCode);
+            }
+            dispatch();
+        }
+    }
+
+    private static void release(Map<String, Integer> counts, String key) {
+        counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * @return Queue depth, running requests, counters and wait times
+     */
+    public Builder stats() {
+        long started = completed.sum() + failed.sum();
+        Builder builder = new Builder();
+        synchronized (this) {
+            builder.put("queueDepth", queue.size());
+            builder.put("running", running);
+        }
+        builder.put("maxQueueDepth", maxQueueDepth.get());
+        builder.put("queueCapacity", queueCapacity);
+        builder.put("maxConcurrent", maxConcurrent);
+        builder.put("perUser", perUser);
+        builder.put("perMeeting", perMeeting);
+        builder.put("virtualThreads", virtualThreads);
+        builder.put("submitted", submitted.sum());
+        builder.put("rejected", rejected.sum());
+        builder.put("completed", completed.sum());
+        builder.put("failed", failed.sum());
+        builder.put("averageWaitMillis", started > 0 ? (double) waitMillis.sum() / started : 0.0);
+        builder.put("maxWaitMillis", maxWaitMillis.get());
+        return builder;
+    }
+
+    /**
+     * Stop accepting requests and wait briefly for running ones
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Task {
+        final String userId;
+        final String meetingCode;
+        final Runnable request;
+        final long queuedAt = System.currentTimeMillis();
+
+        Task(String userId, String meetingCode, Runnable request) {
+            this.userId = userId;
+            this.meetingCode = meetingCode;
+            this.request = request;
+        }
+    }
+}
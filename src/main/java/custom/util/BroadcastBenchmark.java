@@ -0,0 +1,133 @@
+package custom.util;
+
+import org.tinystruct.data.component.Builder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmark of broadcasting one meeting message to every participant. The per-recipient path serializes the
+ * message for each session, the way pushing a {@link Builder} to every session did. The serialized paths take the
+ * JSON or the whole SSE frame from a {@link SerializedMessage} made once per broadcast. All paths must write the
+ * same bytes to every participant.
+ *
+ * <pre>
+ * java -cp target/classes:tinystruct.jar custom.util.BroadcastBenchmark [participants] [message characters]
+ * </pre>
+ */
+public class BroadcastBenchmark {
+    private static final int DEFAULT_PARTICIPANTS = 200;
+    private static final int DEFAULT_MESSAGE_CHARS = 400;
+    private static final int WARMUP_ROUNDS = 2_000;
+    private static final int MEASURED_ROUNDS = 5_000;
+
+    private interface Broadcast {
+        void send(Builder message, List<ByteArrayOutputStream> participants) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int participants = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PARTICIPANTS;
+        int messageChars = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MESSAGE_CHARS;
+
+        List<ByteArrayOutputStream> channels = new ArrayList<>();
+        for (int i = 0; i < participants; i++) {
+            channels.add(new ByteArrayOutputStream());
+        }
+        Builder message = message(messageChars);
+
+        System.out.println(participants + " participants, " + message.toString().length() + " characters of JSON per message");
+        System.out.println(String.format("%-16s %14s %14s %10s %10s", "path", "us/broadcast", "KB/broadcast", "speed-up", "same bytes"));
+
+        byte[] expected = null;
+        double baseline = 0;
+        String[] names = {"per-recipient", "serialized json", "shared frame"};
+        Broadcast[] paths = {
+                (data, out) -> {
+                    for (ByteArrayOutputStream channel : out) {
+                        write(channel, ("data: " + data.toString() + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                },
+                (data, out) -> {
+                    SerializedMessage serialized = SerializedMessage.of(data);
+                    for (ByteArrayOutputStream channel : out) {
+                        write(channel, ("data: " + serialized.toString() + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                },
+                (data, out) -> {
+                    SerializedMessage serialized = SerializedMessage.of(data);
+                    for (ByteArrayOutputStream channel : out) {
+                        serialized.writeFrame(channel);
+                    }
+                }
+        };
+
+        for (int path = 0; path < paths.length; path++) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                broadcast(paths[path], message, channels);
+            }
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                broadcast(paths[path], message, channels);
+            }
+            double micros = (System.nanoTime() - start) / 1e3 / MEASURED_ROUNDS;
+            double kilobytes = (allocatedBytes() - allocated) / 1024.0 / MEASURED_ROUNDS;
+
+            byte[] written = channels.get(participants - 1).toByteArray();
+            if (expected == null) {
+                expected = written;
+                baseline = micros;
+            }
+            System.out.println(String.format("%-16s %14.1f %14.1f %9.2fx %10s", names[path], micros, kilobytes,
+                    baseline / micros, Arrays.equals(expected, written)));
+        }
+    }
+
+    private static void broadcast(Broadcast path, Builder message, List<ByteArrayOutputStream> channels) throws IOException {
+        for (ByteArrayOutputStream channel : channels) {
+            channel.reset();
+        }
+        path.send(message, channels);
+    }
+
+    private static void write(ByteArrayOutputStream channel, byte[] frame) {
+        channel.write(frame, 0, frame.length);
+    }
+
+    /**
+     * A streamed reply chunk as sent to a meeting
+     */
+    private static Builder message(int chars) {
+        StringBuilder text = new StringBuilder();
+        String[] words = {"The", "quarterly", "report", "\"draft\"", "is", "ready", "for", "review", "—", "see", "section", "3.2\n"};
+        for (int i = 0; text.length() < chars; i++) {
+            text.append(words[i % words.length]).append(' ');
+        }
+
+        Builder message = new Builder();
+        message.put("user", "AI");
+        message.put("user_id", 0);
+        message.put("session_id", "4f1c2e0a-7d3b-4c55-9e1f-2b6a8d0c9e71");
+        message.put("time", "2025-6-12 3:41:07");
+        message.put("id", "b3e0c1d2-5a6f-4e7b-8c9d-0a1b2c3d4e5f");
+        message.put("message", text.substring(0, chars));
+        message.put("streaming", true);
+        message.put("final", false);
+        message.put("incremental", true);
+        return message;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
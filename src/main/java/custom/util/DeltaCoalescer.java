@@ -0,0 +1,115 @@
+package custom.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the token deltas of one streamed reply and passes them on in larger pieces. The pending text
+ * is flushed once it reaches {@code flushChars} characters, or {@code flushMillis} after its first delta
+ * arrived, whichever comes first. Flushes happen one at a time in arrival order, so the pieces joined
+ * together are exactly the deltas joined together. The sink is called without holding the lock deltas
+ * are appended under, so a slow client does not hold up reading the reply.
+ */
+public class DeltaCoalescer implements AutoCloseable {
+    public static final int DEFAULT_FLUSH_MILLIS = 30;
+    public static final int DEFAULT_FLUSH_CHARS = 64;
+
+    // Timed flushes write to clients, so one slow client must not delay the flushes of other replies
+    private static final int FLUSH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(FLUSH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "delta-flush-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Sink {
+        void accept(String delta) throws Exception;
+    }
+
+    private final long flushMillis;
+    private final int flushChars;
+    private final Sink sink;
+    // Held while a piece is taken and sent, so pieces are sent in order
+    private final Object sending = new Object();
+    private final StringBuilder pending = new StringBuilder();
+    private ScheduledFuture<?> scheduled;
+    private boolean closed;
+
+    /**
+     * @param flushMillis Longest time a delta waits, 0 to pass every delta on as it arrives
+     * @param flushChars  Pending characters that trigger a flush right away
+     * @param sink        Receives the coalesced deltas
+     */
+    public DeltaCoalescer(long flushMillis, int flushChars, Sink sink) {
+        this.flushMillis = Math.max(0, flushMillis);
+        this.flushChars = Math.max(1, flushChars);
+        this.sink = sink;
+    }
+
+    public void append(String delta) {
+        synchronized (this) {
+            if (closed || delta == null || delta.isEmpty()) {
+                return;
+            }
+
+            pending.append(delta);
+            if (flushMillis > 0 && pending.length() < flushChars) {
+                if (scheduled == null) {
+                    scheduled = timer.schedule(this::flush, flushMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Pass the pending text on now
+     */
+    public void flush() {
+        synchronized (sending) {
+            String delta = take();
+            if (delta == null) {
+                return;
+            }
+
+            try {
+                sink.accept(delta);
+            } catch (Exception e) {
+                System.err.println("Error sending streamed delta: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Flush the pending text and ignore any later deltas
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    /**
+     * @return The pending text, or null if there is none
+     */
+    private synchronized String take() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        if (pending.length() == 0) {
+            return null;
+        }
+
+        String delta = pending.toString();
+        pending.setLength(0);
+        return delta;
+    }
+}
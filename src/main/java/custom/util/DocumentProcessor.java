@@ -4,11 +4,12 @@ import custom.objects.DocumentFragment;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.ApplicationRuntimeException;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -103,6 +104,8 @@ public class DocumentProcessor {
 
         fileName = fileName.toLowerCase();
         return fileName.endsWith(".docx") ||
+               fileName.endsWith(".xlsx") ||
+               fileName.endsWith(".pptx") ||
                fileName.endsWith(".doc") ||
                fileName.endsWith(".pdf") ||
                fileName.endsWith(".txt") ||
@@ -122,6 +125,99 @@ public class DocumentProcessor {
      * @throws ApplicationException if processing fails
      */
     public List<DocumentFragment> processDocument(String filePath, String mimeType, String userId, String title, String description, boolean isPublic) throws ApplicationException {
+        String content = extractDocument(filePath, mimeType);
+        return createFragments(content, filePath, mimeType, userId, title, description, isPublic);
+    }
+
+    /**
+     * Validate a document file and extract its text content
+     * @param filePath Path to the document file
+     * @param mimeType MIME type of the document
+     * @return The extracted text
+     * @throws ApplicationException if the file is unsupported or no content could be extracted
+     */
+    public String extractDocument(String filePath, String mimeType) throws ApplicationException {
+        validateDocument(filePath, mimeType);
+
+        try {
+            // Extract content using Tika for rich documents or direct reading for text files
+            String content = extractContent(filePath);
+
+            // Check if we got any content
+            if (content == null || content.trim().isEmpty()) {
+                throw new ApplicationException("Failed to extract any content from the document");
+            }
+            return content;
+        } catch (IOException e) {
+            throw new ApplicationException("Failed to process document: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Receives fragments while a document is streamed
+     */
+    public interface FragmentSink {
+        void accept(DocumentFragment fragment) throws ApplicationException;
+    }
+
+    /**
+     * Extract a document and hand each fragment to the sink as soon as it is complete.
+     * Text files are read through a {@link Reader}, Office Open XML files are parsed as a stream and PDF
+     * pages are extracted in parallel and chunked in page order, so memory use depends on the fragment size
+     * rather than the document size.
+     * @param filePath Path to the document file
+     * @param mimeType MIME type of the document
+     * @param userId ID of the user who uploaded the document
+     * @param title Title of the document
+     * @param description Description of the document
+     * @param isPublic Whether the document is publicly accessible
+     * @param sink Receives the fragments, not yet saved, in document order
+     * @return Number of fragments
+     * @throws ApplicationException if the file is unsupported, reading fails or the sink fails
+     */
+    public int streamFragments(String filePath, String mimeType, String userId, String title, String description,
+                               boolean isPublic, FragmentSink sink) throws ApplicationException {
+        validateDocument(filePath, mimeType);
+
+        String documentId = UUID.randomUUID().toString();
+        int[] index = {0};
+        FragmentChunker chunker = new FragmentChunker(MAX_TOKENS_PER_FRAGMENT, tokenizer(), content ->
+                sink.accept(newFragment(documentId, content, index[0]++, filePath, mimeType, userId, title, description, isPublic)));
+
+        File file = new File(filePath);
+        try {
+            if (OoxmlExtractor.supports(file.getName())) {
+                OoxmlExtractor.extract(file, chunker);
+            } else if (file.getName().toLowerCase().endsWith(".pdf") && PdfExtractor.isAvailable()) {
+                PdfExtractor.extract(file, chunker);
+            } else {
+                try (Reader reader = openText(file)) {
+                    chunker.read(reader);
+                }
+            }
+            int count = chunker.finish();
+            System.out.println("Streamed " + count + " fragments from " + filePath);
+            return count;
+        } catch (IOException e) {
+            throw new ApplicationException("Failed to process document: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Open the text of a document. Plain text files are read as they are; other formats are extracted first.
+     */
+    private Reader openText(File file) throws IOException, ApplicationException {
+        String fileName = file.getName().toLowerCase();
+        if (fileName.endsWith(".txt") || fileName.endsWith(".md") || fileName.endsWith(".csv")) {
+            return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        }
+        return new StringReader(extractContent(file));
+    }
+
+    /**
+     * Check that a document file exists and has a supported type
+     */
+    private void validateDocument(String filePath, String mimeType) throws ApplicationException {
         // Check if the file extension is supported
         if (!isSupportedFileExtension(filePath)) {
             throw new ApplicationException("Unsupported file type: " + filePath);
@@ -132,48 +228,76 @@ public class DocumentProcessor {
             throw new ApplicationException("Unsupported MIME type: " + mimeType);
         }
 
-        List<DocumentFragment> fragments = new ArrayList<>();
         File file = new File(filePath);
-
         if (!file.exists() || !file.isFile()) {
             throw new ApplicationException("File not found or is not a regular file: " + filePath);
         }
+    }
 
-        try {
-            // Extract content using Tika for rich documents or direct reading for text files
-            String content = extractContent(filePath);
+    /**
+     * Split extracted content into document fragments with user information
+     * @param content Text content of the document
+     * @param filePath Path to the document file
+     * @param mimeType MIME type of the document
+     * @param userId ID of the user who uploaded the document
+     * @param title Title of the document
+     * @param description Description of the document
+     * @param isPublic Whether the document is publicly accessible
+     * @return List of document fragments, not yet saved
+     */
+    public List<DocumentFragment> createFragments(String content, String filePath, String mimeType, String userId,
+                                                  String title, String description, boolean isPublic) {
+        List<DocumentFragment> fragments = new ArrayList<>();
+        String documentId = UUID.randomUUID().toString();
 
-            // Check if we got any content
-            if (content == null || content.trim().isEmpty()) {
-                throw new ApplicationException("Failed to extract any content from the document");
-            }
+        // Split content into fragments
+        List<String> contentFragments = splitContentIntoFragments(content);
 
-            String documentId = UUID.randomUUID().toString();
-
-            // Split content into fragments
-            List<String> contentFragments = splitContentIntoFragments(content);
-
-            // Create document fragments
-            for (int i = 0; i < contentFragments.size(); i++) {
-                DocumentFragment fragment = new DocumentFragment();
-                // Don't set ID - let the database generate it automatically
-                fragment.setDocumentId(documentId);
-                fragment.setContent(contentFragments.get(i));
-                fragment.setFragmentIndex(i);
-                fragment.setFilePath(filePath);
-                fragment.setMimeType(mimeType);
-                fragment.setCreatedAt(new Date());
-                fragment.setUserId(userId);
-                fragment.setTitle(title);
-                fragment.setDescription(description);
-                fragment.setIsPublic(isPublic);
-
-                fragments.add(fragment);
-            }
+        // Create document fragments
+        for (int i = 0; i < contentFragments.size(); i++) {
+            fragments.add(newFragment(documentId, contentFragments.get(i), i, filePath, mimeType, userId, title, description, isPublic));
+        }
 
-            return fragments;
-        } catch (IOException e) {
-            throw new ApplicationException("Failed to process document: " + e.getMessage(), e);
+        return fragments;
+    }
+
+    private DocumentFragment newFragment(String documentId, String content, int index, String filePath, String mimeType,
+                                         String userId, String title, String description, boolean isPublic) {
+        DocumentFragment fragment = new DocumentFragment();
+        // Don't set ID - let the database generate it automatically
+        fragment.setDocumentId(documentId);
+        fragment.setContent(content);
+        fragment.setFragmentIndex(index);
+        fragment.setFilePath(filePath);
+        fragment.setMimeType(mimeType);
+        fragment.setCreatedAt(new Date());
+        fragment.setUserId(userId);
+        fragment.setTitle(title);
+        fragment.setDescription(description);
+        fragment.setIsPublic(isPublic);
+        fragment.setContentHash(contentHash(content));
+        return fragment;
+    }
+
+    /**
+     * SHA-256 of the normalized fragment content: Unicode NFC with whitespace runs collapsed and trimmed.
+     * Fragments with the same hash share one embedding.
+     * @param content Fragment content
+     * @return Lowercase hex digest
+     */
+    public static String contentHash(String content) {
+        String normalized = Normalizer.normalize(content != null ? content : "", Normalizer.Form.NFC)
+                .replaceAll("\\s+", " ")
+                .trim();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte value : digest) {
+                hex.append(Character.forDigit((value >> 4) & 0x0F, 16)).append(Character.forDigit(value & 0x0F, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ApplicationRuntimeException("SHA-256 is not available", e);
         }
     }
 
@@ -239,6 +363,8 @@ public class DocumentProcessor {
             // Process based on file extension
             if (fileName.endsWith(".docx")) {
                 return extractDocx(file);
+            } else if (fileName.endsWith(".xlsx") || fileName.endsWith(".pptx")) {
+                return OoxmlExtractor.extractText(file);
             } else if (fileName.endsWith(".doc")) {
                 return extractDoc(file);
             } else if (fileName.endsWith(".pdf")) {
@@ -297,10 +423,12 @@ public class DocumentProcessor {
             System.err.println("Error extracting DOCX content with POI: " + e.getMessage());
         }
 
-        // Fallback: Try to read the file as a ZIP and extract text from document.xml
+        // Fallback: Parse word/document.xml from the ZIP as a stream
         try {
             System.out.println("Trying fallback method to extract DOCX content...");
-            return extractTextFromDocxAsZip(file);
+            String content = OoxmlExtractor.extractText(file);
+            System.out.println("Extracted " + content.length() + " characters from document.xml");
+            return content;
         } catch (IOException e) {
             System.err.println("Error extracting DOCX content as ZIP: " + e.getMessage());
             throw new IOException("Failed to extract DOCX content: " + e.getMessage(), e);
@@ -359,39 +487,20 @@ public class DocumentProcessor {
     private String extractPdf(File file) throws IOException {
         System.out.println("Extracting PDF file...");
 
-        try {
-            // Try using PDFBox if available
-            Class.forName("org.apache.pdfbox.pdmodel.PDDocument");
-
-            Object document = null;
+        if (!PdfExtractor.isAvailable()) {
+            System.err.println("PDFBox classes not available");
+        } else {
             try {
-                document = Class.forName("org.apache.pdfbox.pdmodel.PDDocument")
-                        .getMethod("load", File.class)
-                        .invoke(null, file);
+                // Page ranges are extracted in parallel and joined in page order
+                String content = PdfExtractor.extractText(file);
+                System.out.println("PDFBox extracted " + content.length() + " characters");
 
-                Object extractor = Class.forName("org.apache.pdfbox.text.PDFTextStripper")
-                        .getConstructor()
-                        .newInstance();
-
-                String content = (String) extractor.getClass().getMethod("getText",
-                        Class.forName("org.apache.pdfbox.pdmodel.PDDocument"))
-                        .invoke(extractor, document);
-
-                System.out.println("PDFBox extracted " + (content != null ? content.length() : 0) + " characters");
-
-                if (content != null && !content.trim().isEmpty()) {
+                if (!content.trim().isEmpty()) {
                     return content;
                 }
-            } finally {
-                // Close the document
-                if (document != null) {
-                    document.getClass().getMethod("close").invoke(document);
-                }
+            } catch (IOException e) {
+                System.err.println("Error extracting PDF content with PDFBox: " + e.getMessage());
             }
-        } catch (ClassNotFoundException e) {
-            System.err.println("PDFBox classes not available: " + e.getMessage());
-        } catch (Exception e) {
-            System.err.println("Error extracting PDF content with PDFBox: " + e.getMessage());
         }
 
         // No fallback available for PDF files
@@ -399,47 +508,10 @@ public class DocumentProcessor {
     }
 
     /**
-     * Extract text from a DOCX file by treating it as a ZIP archive and reading document.xml
-     * @param file The DOCX file
-     * @return The extracted text content
-     * @throws IOException if reading fails
+     * Fragments are sized in tokens of the embedding model
      */
-    private String extractTextFromDocxAsZip(File file) throws IOException {
-        StringBuilder content = new StringBuilder();
-        try (java.util.zip.ZipFile zipFile = new java.util.zip.ZipFile(file)) {
-            // Look for document.xml in the word directory
-            java.util.zip.ZipEntry documentEntry = zipFile.getEntry("word/document.xml");
-            if (documentEntry != null) {
-                try (java.io.InputStream is = zipFile.getInputStream(documentEntry)) {
-                    // Read the XML content
-                    byte[] buffer = new byte[1024];
-                    int read;
-                    StringBuilder xmlContent = new StringBuilder();
-                    while ((read = is.read(buffer)) != -1) {
-                        xmlContent.append(new String(buffer, 0, read, "UTF-8"));
-                    }
-
-                    // Extract text from XML - only get the actual text content between <w:t> tags
-                    String xml = xmlContent.toString();
-                    java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("<w:t[^>]*>(.*?)</w:t>", java.util.regex.Pattern.DOTALL);
-                    java.util.regex.Matcher matcher = pattern.matcher(xml);
-
-                    while (matcher.find()) {
-                        // Only add the actual text content (group 1), not the XML tags
-                        String textContent = matcher.group(1);
-                        if (textContent != null && !textContent.trim().isEmpty()) {
-                            content.append(textContent).append(" ");
-                        }
-                    }
-
-                    System.out.println("Extracted " + content.length() + " characters from document.xml");
-                }
-            } else {
-                System.err.println("Could not find word/document.xml in the DOCX file");
-            }
-        }
-
-        return content.toString().trim();
+    private static Tokenizer tokenizer() {
+        return Tokenizer.forModel(EmbeddingManager.getEmbeddingModel());
     }
 
     /**
@@ -449,154 +521,17 @@ public class DocumentProcessor {
      */
     private List<String> splitContentIntoFragments(String content) {
         List<String> fragments = new ArrayList<>();
-
-        // Calculate maximum characters per fragment based on token limit
-        int maxCharsPerFragment = MAX_TOKENS_PER_FRAGMENT * CHARS_PER_TOKEN;
-        System.out.println("Using max chars per fragment: " + maxCharsPerFragment +
-                          " (approx. " + MAX_TOKENS_PER_FRAGMENT + " tokens)");
-
-        // Split by paragraphs first (one or more newlines)
-        String[] paragraphs = content.split("\\n\\s*\\n");
-
-        StringBuilder currentFragment = new StringBuilder();
-        int estimatedTokens = 0;
-
-        for (String paragraph : paragraphs) {
-            // Skip empty paragraphs
-            if (paragraph.trim().isEmpty()) {
-                continue;
-            }
-
-            // Estimate tokens in this paragraph
-            int paragraphTokens = estimateTokens(paragraph);
-            System.out.println("Paragraph length: " + paragraph.length() + " chars, estimated tokens: " + paragraphTokens);
-
-            // If adding this paragraph would exceed the token limit, start a new fragment
-            if (estimatedTokens + paragraphTokens > MAX_TOKENS_PER_FRAGMENT) {
-                // Only save if we have something significant
-                if (currentFragment.length() > 0) {
-                    String fragment = currentFragment.toString().trim();
-                    fragments.add(fragment);
-                    System.out.println("Created fragment with " + fragment.length() + " chars, approx. " +
-                                      estimateTokens(fragment) + " tokens");
-
-                    currentFragment = new StringBuilder();
-                    estimatedTokens = 0;
-                }
-
-                // If the paragraph itself is too large, split it further
-                if (paragraphTokens > MAX_TOKENS_PER_FRAGMENT) {
-                    System.out.println("Paragraph exceeds token limit, splitting further");
-                    splitLargeParagraph(paragraph, fragments);
-                    continue;
-                }
-            }
-
-            // Add the paragraph to the current fragment
-            currentFragment.append(paragraph).append("\n\n");
-            estimatedTokens += paragraphTokens + 2; // Add 2 tokens for the newlines
-
-            // If we've accumulated enough text for a decent-sized fragment, save it
-            if (estimatedTokens >= MAX_TOKENS_PER_FRAGMENT / 2) {
-                String fragment = currentFragment.toString().trim();
-                fragments.add(fragment);
-                System.out.println("Created fragment with " + fragment.length() + " chars, approx. " +
-                                  estimateTokens(fragment) + " tokens");
-
-                currentFragment = new StringBuilder();
-                estimatedTokens = 0;
-            }
-        }
-
-        // Add any remaining content
-        if (currentFragment.length() > 0) {
-            String fragment = currentFragment.toString().trim();
-            fragments.add(fragment);
-            System.out.println("Created final fragment with " + fragment.length() + " chars, approx. " +
-                              estimateTokens(fragment) + " tokens");
+        FragmentChunker chunker = new FragmentChunker(MAX_TOKENS_PER_FRAGMENT, tokenizer(), fragments::add);
+        try {
+            chunker.read(new StringReader(content));
+            chunker.finish();
+        } catch (IOException | ApplicationException e) {
+            // Reading a string into a list cannot fail
+            throw new ApplicationRuntimeException(e.getMessage(), e);
         }
-
         return fragments;
     }
 
-    /**
-     * Estimate the number of tokens in a text string
-     * This is a simple approximation based on character count
-     * @param text The text to estimate tokens for
-     * @return Estimated token count
-     */
-    private int estimateTokens(String text) {
-        if (text == null || text.isEmpty()) {
-            return 0;
-        }
-
-        // Simple approximation: 1 token ≈ 4 characters for English text
-        return (int) Math.ceil((double) text.length() / CHARS_PER_TOKEN);
-    }
-
-    /**
-     * Split a large paragraph into smaller fragments
-     * @param paragraph The paragraph to split
-     * @param fragments The list to add fragments to
-     */
-    private void splitLargeParagraph(String paragraph, List<String> fragments) {
-        // Split by sentences (period followed by space or end)
-        String[] sentences = paragraph.split("\\. ");
-
-        StringBuilder currentFragment = new StringBuilder();
-        int estimatedTokens = 0;
-
-        for (String sentence : sentences) {
-            // Add period back since it was removed by the split
-            if (!sentence.endsWith(".")) {
-                sentence = sentence + ". ";
-            }
-
-            // Estimate tokens in this sentence
-            int sentenceTokens = estimateTokens(sentence);
-
-            // If adding this sentence would exceed the token limit, start a new fragment
-            if (estimatedTokens + sentenceTokens > MAX_TOKENS_PER_FRAGMENT) {
-                if (currentFragment.length() > 0) {
-                    String fragment = currentFragment.toString().trim();
-                    fragments.add(fragment);
-                    System.out.println("Created sentence fragment with " + fragment.length() + " chars, approx. " +
-                                      estimateTokens(fragment) + " tokens");
-
-                    currentFragment = new StringBuilder();
-                    estimatedTokens = 0;
-                }
-
-                // If the sentence itself is extremely large, we might need to split it further
-                // This is a rare case, but we handle it by truncating
-                if (sentenceTokens > MAX_TOKENS_PER_FRAGMENT) {
-                    System.out.println("Warning: Very long sentence detected (" + sentenceTokens + " tokens), truncating");
-                    // Split the sentence into chunks that fit within token limit
-                    int maxChars = MAX_TOKENS_PER_FRAGMENT * CHARS_PER_TOKEN;
-                    for (int i = 0; i < sentence.length(); i += maxChars) {
-                        int endIndex = Math.min(i + maxChars, sentence.length());
-                        String chunk = sentence.substring(i, endIndex);
-                        fragments.add(chunk);
-                        System.out.println("Created truncated fragment with " + chunk.length() + " chars");
-                    }
-                    continue;
-                }
-            }
-
-            // Add the sentence to the current fragment
-            currentFragment.append(sentence);
-            estimatedTokens += sentenceTokens;
-        }
-
-        // Add any remaining content
-        if (currentFragment.length() > 0) {
-            String fragment = currentFragment.toString().trim();
-            fragments.add(fragment);
-            System.out.println("Created final sentence fragment with " + fragment.length() + " chars, approx. " +
-                              estimateTokens(fragment) + " tokens");
-        }
-    }
-
     /**
      * Main method for testing the document processor
      */
@@ -17,15 +17,17 @@ public class DocumentQA {
 
     private static final int DEFAULT_MAX_RESULTS = 5; // Increased from 3 to provide more context
     private static final double SIMILARITY_THRESHOLD = 0.65; // Slightly lowered to capture more relevant documents
-    private static final int MAX_CONTEXT_LENGTH = 4000; // Maximum length of context to avoid token limits
+    private static final double LEXICAL_TERM_SHARE = 0.5; // Share of the query terms a lexical hit must contain
+    private static final int RRF_K = 60; // Rank constant of reciprocal-rank fusion
+    private static final int RANKINGS = 2; // Semantic and lexical
+    private static final int MAX_CONTEXT_TOKENS = 3000; // Token budget of the document context
 
     // Token limit constants
     private static final int MAX_TOKEN_LIMIT = 8192; // OpenAI's maximum context length
     private static final int SAFE_TOKEN_LIMIT = 7000; // Safe limit to stay under the maximum
-    private static final int CHARS_PER_TOKEN = 4; // Approximate ratio for English text
 
     /**
-     * Find relevant document fragments for a given query
+     * Find relevant public document fragments for a given query
      *
      * @param query      The user's query
      * @param maxResults Maximum number of results to return
@@ -33,37 +35,44 @@ public class DocumentQA {
      */
     public static List<EmbeddingManager.SimilarityResult> findRelevantDocuments(String query, int maxResults)
             throws ApplicationException {
+        return findRelevantDocuments(query, maxResults, null);
+    }
+
+    /**
+     * Find relevant document fragments a user may see: public fragments and the user's own
+     *
+     * @param query      The user's query
+     * @param maxResults Maximum number of results to return
+     * @param userId     The user, or null for public fragments only
+     * @return List of relevant document fragments with their similarity scores
+     */
+    public static List<EmbeddingManager.SimilarityResult> findRelevantDocuments(String query, int maxResults, String userId)
+            throws ApplicationException {
         try {
             System.out.println("Finding relevant documents for query: '" + query + "' with max results: " + maxResults);
 
-            EmbeddingManager manager = (EmbeddingManager) ApplicationManager.get(EmbeddingManager.class.getName());
-            if (manager == null) {
-                System.err.println("Error: EmbeddingManager not found");
-                throw new ApplicationException("EmbeddingManager not found");
-            }
+            // Visibility is applied while candidates are generated, so hidden fragments never take result slots
+            int initialResultsCount = maxResults * 3;
+            FragmentFilter filter = EmbeddingManager.visibleTo(userId, null);
 
-            // Generate embedding for the query
-            System.out.println("Generating embedding for query");
-            Vector<Double> queryEmbedding = manager.generateQueryEmbedding(query);
-            if (queryEmbedding == null) {
-                System.err.println("Error: Failed to generate query embedding");
-                throw new ApplicationException("Failed to generate query embedding");
+            List<List<EmbeddingManager.SimilarityResult>> rankings = new ArrayList<>(2);
+            try {
+                rankings.add(findSemantic(query, initialResultsCount, filter));
+            } catch (ApplicationException e) {
+                // Keep answering from the lexical index while the embedding API is unavailable
+                System.err.println("Warning: Semantic search unavailable, using lexical search only: " + e.getMessage());
             }
-            System.out.println("Generated query embedding with dimension: " + queryEmbedding.size());
-
-            // Find similar documents - get more results than needed to ensure diversity
-            System.out.println("Finding similar documents");
-            int initialResultsCount = maxResults * 3; // Get 3x more results initially
-            List<EmbeddingManager.SimilarityResult> allResults = EmbeddingManager.findSimilar(queryEmbedding, initialResultsCount);
-            System.out.println("Found " + allResults.size() + " similar documents");
 
-            // Filter by similarity threshold
-            List<EmbeddingManager.SimilarityResult> filteredResults = allResults.stream()
-                    .filter(result -> result.similarity >= SIMILARITY_THRESHOLD)
-                    .collect(Collectors.toList());
+            // Like the similarity threshold, the term share keeps fragments that merely mention one query word out of the context
+            List<EmbeddingManager.SimilarityResult> lexicalResults =
+                    EmbeddingManager.findLexical(query, initialResultsCount, LEXICAL_TERM_SHARE, filter);
+            System.out.println("Found " + lexicalResults.size() + " documents containing at least "
+                    + (int) (LEXICAL_TERM_SHARE * 100) + "% of the query terms");
+            rankings.add(lexicalResults);
 
-            System.out.println("Filtered to " + filteredResults.size() + " documents with similarity >= " + SIMILARITY_THRESHOLD);
-            return filteredResults;
+            List<EmbeddingManager.SimilarityResult> fusedResults = fuse(rankings, maxResults);
+            System.out.println("Fused " + rankings.size() + " rankings into " + fusedResults.size() + " documents");
+            return fusedResults;
         } catch (Exception e) {
             System.err.println("Error finding relevant documents: " + e.getMessage());
             e.printStackTrace();
@@ -71,6 +80,66 @@ public class DocumentQA {
         }
     }
 
+    /**
+     * Find fragments by embedding similarity, keeping those above the similarity threshold
+     */
+    private static List<EmbeddingManager.SimilarityResult> findSemantic(String query, int limit, FragmentFilter filter)
+            throws ApplicationException {
+        EmbeddingManager manager = (EmbeddingManager) ApplicationManager.get(EmbeddingManager.class.getName());
+        if (manager == null) {
+            System.err.println("Error: EmbeddingManager not found");
+            throw new ApplicationException("EmbeddingManager not found");
+        }
+
+        // Generate embedding for the query
+        System.out.println("Generating embedding for query");
+        Vector<Double> queryEmbedding = manager.generateQueryEmbedding(query);
+        if (queryEmbedding == null) {
+            System.err.println("Error: Failed to generate query embedding");
+            throw new ApplicationException("Failed to generate query embedding");
+        }
+        System.out.println("Generated query embedding with dimension: " + queryEmbedding.size());
+
+        // Find similar documents - the search engine uses its configured candidate pool (efSearch for HNSW)
+        System.out.println("Finding similar documents");
+        List<EmbeddingManager.SimilarityResult> allResults = EmbeddingManager.findSimilar(queryEmbedding, limit, 0, filter);
+        System.out.println("Found " + allResults.size() + " similar documents");
+
+        // Filter by similarity threshold
+        List<EmbeddingManager.SimilarityResult> filteredResults = allResults.stream()
+                .filter(result -> result.similarity >= SIMILARITY_THRESHOLD)
+                .collect(Collectors.toList());
+
+        System.out.println("Filtered to " + filteredResults.size() + " documents with similarity >= " + SIMILARITY_THRESHOLD);
+        return filteredResults;
+    }
+
+    /**
+     * Merge rankings with reciprocal-rank fusion: each fragment scores the sum of 1 / (k + rank)
+     * over the rankings it appears in. Every ranking only holds fragments that passed its own relevance
+     * test. The fused score is scaled so that a fragment ranked first by both the semantic and the lexical
+     * search has relevance 1; when one of them is unavailable no fragment reaches more than 0.5.
+     */
+    private static List<EmbeddingManager.SimilarityResult> fuse(List<List<EmbeddingManager.SimilarityResult>> rankings,
+                                                                int limit) {
+        Map<String, DocumentFragment> fragments = new HashMap<>();
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (List<EmbeddingManager.SimilarityResult> ranking : rankings) {
+            for (int rank = 0; rank < ranking.size(); rank++) {
+                DocumentFragment fragment = ranking.get(rank).fragment;
+                fragments.putIfAbsent(fragment.getId(), fragment);
+                scores.merge(fragment.getId(), 1.0 / (RRF_K + rank + 1), Double::sum);
+            }
+        }
+
+        double best = RANKINGS / (RRF_K + 1.0);
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(limit)
+                .map(entry -> new EmbeddingManager.SimilarityResult(fragments.get(entry.getKey()), entry.getValue() / best))
+                .collect(Collectors.toList());
+    }
+
     /**
      * Find relevant document fragments for a given query (with default max results)
      *
@@ -88,6 +157,19 @@ public class DocumentQA {
      * @return Formatted context string
      */
     public static String formatDocumentsAsContext(List<EmbeddingManager.SimilarityResult> results) {
+        return formatDocumentsAsContext(results, Tokenizer.forModel(null), MAX_CONTEXT_TOKENS);
+    }
+
+    /**
+     * Format document fragments as context within a token budget. Documents are taken by relevance;
+     * one that does not fit is skipped so that smaller, less relevant ones can still fill the budget.
+     * @param results List of document fragments with similarity scores
+     * @param tokenizer Tokenizer of the chat model
+     * @param maxTokens Token budget of the context
+     * @return Formatted context string
+     */
+    public static String formatDocumentsAsContext(List<EmbeddingManager.SimilarityResult> results, Tokenizer tokenizer,
+                                                  int maxTokens) {
         if (results == null || results.isEmpty()) {
             return "";
         }
@@ -95,15 +177,27 @@ public class DocumentQA {
         StringBuilder context = new StringBuilder();
         context.append("I found the following information that might help answer your question:\n\n");
 
-        int totalLength = context.length();
+        int totalTokens = tokenizer.count(context);
         int documentsAdded = 0;
 
         // Sort results by similarity score (highest first)
         results.sort((a, b) -> Double.compare(b.similarity, a.similarity));
 
+        // Prefer the cached copy of each fragment, loading any that are not cached in one query
+        Map<String, DocumentFragment> fragments = Collections.emptyMap();
+        try {
+            List<String> fragmentIds = new ArrayList<>(results.size());
+            for (EmbeddingManager.SimilarityResult result : results) {
+                fragmentIds.add(result.fragment.getId());
+            }
+            fragments = FragmentCache.getInstance().getAll(fragmentIds);
+        } catch (ApplicationException e) {
+            System.err.println("Warning: Failed to load fragments from cache: " + e.getMessage());
+        }
+
         for (int i = 0; i < results.size(); i++) {
             EmbeddingManager.SimilarityResult result = results.get(i);
-            DocumentFragment fragment = result.fragment;
+            DocumentFragment fragment = fragments.getOrDefault(result.fragment.getId(), result.fragment);
 
             // Get document metadata
             String fileName = new java.io.File(fragment.getFilePath()).getName();
@@ -114,26 +208,33 @@ public class DocumentQA {
 
             // Create document entry
             StringBuilder documentEntry = new StringBuilder();
-            documentEntry.append("Document ").append(i + 1)
+            documentEntry.append("Document ").append(documentsAdded + 1)
                    .append(" (Title: ").append(title)
                    .append(", File: ").append(fileName)
                    .append(", Relevance: ").append(String.format("%.2f", result.similarity))
                    .append("):\n");
-            documentEntry.append(content).append("\n\n");
-
-            // Check if adding this document would exceed the maximum context length
-            if (totalLength + documentEntry.length() > MAX_CONTEXT_LENGTH && documentsAdded > 0) {
-                // If we already have at least one document, stop adding more
-                System.out.println("Reached maximum context length after " + documentsAdded + " documents");
-                break;
+            int headerTokens = tokenizer.count(documentEntry);
+            int contentTokens = tokenizer.count(content);
+
+            // Check if adding this document would exceed the token budget
+            if (totalTokens + headerTokens + contentTokens > maxTokens) {
+                if (documentsAdded > 0) {
+                    continue;
+                }
+                // The most relevant document is always included, cut to the budget
+                content = tokenizer.truncate(content, Math.max(0, maxTokens - totalTokens - headerTokens));
+                contentTokens = tokenizer.count(content);
             }
+            documentEntry.append(content).append("\n\n");
 
             // Add the document to the context
             context.append(documentEntry);
-            totalLength += documentEntry.length();
+            totalTokens += headerTokens + contentTokens;
             documentsAdded++;
         }
 
+        System.out.println("Packed " + documentsAdded + " of " + results.size() + " documents into " + totalTokens + " context tokens");
+
         // Add a note about how many documents were found vs. included
         if (documentsAdded < results.size()) {
             context.append("Note: Found " + results.size() + " relevant documents, but only included " +
@@ -171,15 +272,30 @@ public class DocumentQA {
      * This allows contextualizing document search by meeting
      *
      * @param query       The user query
-     * @param meetingCode The meeting code to filter documents by
+     * @param meetingCode The meeting code of the conversation, used for logging
      * @param messages    The existing messages array
      * @return True if document context was added, false otherwise
      */
     public static boolean addDocumentContextToMessages(String query, String meetingCode,
                                                        Builders messages) throws ApplicationException {
+        return addDocumentContextToMessages(query, meetingCode, null, messages);
+    }
+
+    /**
+     * Add context from the document fragments visible to a user: public fragments and the user's own
+     *
+     * @param query       The user query
+     * @param meetingCode The meeting code of the conversation, used for logging
+     * @param userId      The user asking, or null for public fragments only
+     * @param messages    The existing messages array
+     * @return True if document context was added, false otherwise
+     */
+    public static boolean addDocumentContextToMessages(String query, String meetingCode, String userId,
+                                                       Builders messages) throws ApplicationException {
         try {
-            System.out.println("Finding relevant documents for query: " + query);
-            List<EmbeddingManager.SimilarityResult> relevantDocs = findRelevantDocuments(query);
+            System.out.println("Finding relevant documents for query: " + query +
+                    (meetingCode != null ? " in meeting " + meetingCode : ""));
+            List<EmbeddingManager.SimilarityResult> relevantDocs = findRelevantDocuments(query, DEFAULT_MAX_RESULTS, userId);
 
             if (relevantDocs.isEmpty()) {
                 System.out.println("No relevant documents found for query");
@@ -197,20 +313,17 @@ public class DocumentQA {
                         " (similarity: " + result.similarity + ")");
             }
 
-            // Filter documents by meeting code if needed in the future
-            // For now, we're using all available document fragments
-
-            String context = formatDocumentsAsContext(relevantDocs);
-            System.out.println("Generated document context with " + context.length() + " characters");
+            Tokenizer tokenizer = Tokenizer.forModel(null);
+            String context = formatDocumentsAsContext(relevantDocs, tokenizer, MAX_CONTEXT_TOKENS);
+            int contextTokens = tokenizer.count(context);
+            System.out.println("Generated document context with " + contextTokens + " tokens");
 
             // Ensure context doesn't exceed token limits
             String formattedContext = context;
-            int maxSafeCharLimit = SAFE_TOKEN_LIMIT * CHARS_PER_TOKEN;
-
-            if (context.length() > maxSafeCharLimit) {
+            if (contextTokens > SAFE_TOKEN_LIMIT) {
                 System.out.println("Warning: Context exceeds safe token limit. Truncating from " +
-                                  context.length() + " to " + maxSafeCharLimit + " characters");
-                formattedContext = context.substring(0, maxSafeCharLimit);
+                                  contextTokens + " to " + SAFE_TOKEN_LIMIT + " tokens");
+                formattedContext = tokenizer.truncate(context, SAFE_TOKEN_LIMIT);
             }
 
             // Add system message with document context
@@ -0,0 +1,281 @@
+package custom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary encoding of embedding vectors stored in document_embeddings.embedding.
+ *
+ * <pre>
+ * offset  size  field
+ * 0       4     magic "EMBV"
+ * 4       1     format version (1)
+ * 5       1     data type (0 = float32, 1 = float16)
+ * 6       2     model name length in bytes
+ * 8       4     dimension
+ * 12      n     model name (UTF-8)
+ * 12+n    ...   values
+ * </pre>
+ * All numbers are little-endian. Rows written before this format are Java-serialized
+ * {@code Vector<Double>} objects and are still decoded.
+ */
+public final class EmbeddingCodec {
+    public static final byte VERSION = 1;
+    public static final byte FLOAT32 = 0;
+    public static final byte FLOAT16 = 1;
+
+    private static final byte[] MAGIC = {'E', 'M', 'B', 'V'};
+    private static final int HEADER_SIZE = 12;
+
+    private EmbeddingCodec() {
+    }
+
+    /**
+     * Encode a vector
+     *
+     * @param values   The embedding values
+     * @param model    Name of the model that produced the embedding
+     * @param dataType {@link #FLOAT32} or {@link #FLOAT16}
+     * @return The encoded bytes
+     */
+    public static byte[] encode(float[] values, String model, byte dataType) {
+        if (dataType != FLOAT32 && dataType != FLOAT16) {
+            throw new IllegalArgumentException("Unsupported embedding data type: " + dataType);
+        }
+
+        byte[] modelBytes = model != null ? model.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (modelBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Model name is too long");
+        }
+
+        int valueSize = dataType == FLOAT32 ? 4 : 2;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + modelBytes.length + values.length * valueSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(dataType);
+        buffer.putShort((short) modelBytes.length);
+        buffer.putInt(values.length);
+        buffer.put(modelBytes);
+
+        if (dataType == FLOAT32) {
+            buffer.asFloatBuffer().put(values);
+        } else {
+            ShortBuffer halves = buffer.asShortBuffer();
+            for (float value : values) {
+                halves.put(toHalf(value));
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Check whether the bytes use this encoding
+     */
+    public static boolean isEncoded(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the bytes are a Java-serialized object (stream magic 0xACED)
+     */
+    public static boolean isLegacy(byte[] data) {
+        return data != null && data.length > 2 && (data[0] & 0xFF) == 0xAC && (data[1] & 0xFF) == 0xED;
+    }
+
+    /**
+     * Read the header of an encoded vector
+     */
+    public static Header readHeader(byte[] data) {
+        if (!isEncoded(data)) {
+            throw new IllegalArgumentException("Not an encoded embedding");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        byte version = buffer.get(4);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported embedding format version: " + version);
+        }
+
+        byte dataType = buffer.get(5);
+        int modelLength = buffer.getShort(6) & 0xFFFF;
+        int dimension = buffer.getInt(8);
+        String model = new String(data, HEADER_SIZE, modelLength, StandardCharsets.UTF_8);
+
+        int valueSize = dataType == FLOAT32 ? 4 : 2;
+        int offset = HEADER_SIZE + modelLength;
+        if (data.length != offset + dimension * valueSize) {
+            throw new IllegalArgumentException("Corrupt embedding: expected " + dimension + " values in " +
+                    (data.length - offset) + " bytes");
+        }
+
+        return new Header(dataType, dimension, model, offset);
+    }
+
+    /**
+     * View the values of a float32 encoded vector without copying them
+     *
+     * @param data The encoded bytes
+     * @return A read-only float buffer over the values
+     */
+    public static FloatBuffer asFloatBuffer(byte[] data) {
+        Header header = readHeader(data);
+        if (header.dataType != FLOAT32) {
+            throw new IllegalArgumentException("Only float32 embeddings can be viewed as a FloatBuffer");
+        }
+
+        return ByteBuffer.wrap(data, header.offset, header.dimension * 4)
+                .slice()
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer()
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Decode a stored vector, either encoded or legacy Java-serialized
+     *
+     * @param data The stored bytes
+     * @return The embedding values
+     */
+    public static float[] decode(byte[] data) throws Exception {
+        if (isLegacy(data)) {
+            return decodeLegacy(data);
+        }
+
+        Header header = readHeader(data);
+        float[] values = new float[header.dimension];
+        ByteBuffer buffer = ByteBuffer.wrap(data, header.offset, data.length - header.offset)
+                .slice()
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.dataType == FLOAT32) {
+            buffer.asFloatBuffer().get(values);
+        } else if (header.dataType == FLOAT16) {
+            ShortBuffer halves = buffer.asShortBuffer();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = fromHalf(halves.get(i));
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported embedding data type: " + header.dataType);
+        }
+        return values;
+    }
+
+    private static float[] decodeLegacy(byte[] data) throws Exception {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            Object obj = input.readObject();
+            if (!(obj instanceof List)) {
+                throw new IllegalArgumentException("Deserialized object is not a List: " +
+                        (obj != null ? obj.getClass().getName() : "null"));
+            }
+
+            List<?> list = (List<?>) obj;
+            float[] values = new float[list.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = ((Number) list.get(i)).floatValue();
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Convert a float to IEEE 754 half precision, rounding to nearest even
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF) {
+            // Infinity or NaN
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+
+        if (halfExponent <= 0) {
+            if (halfExponent < -10) {
+                return (short) sign;
+            }
+            // Subnormal half
+            mantissa |= 0x800000;
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            // May carry into the exponent, which is still the correctly rounded value
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Convert an IEEE 754 half precision value to a float
+     */
+    static float fromHalf(short value) {
+        int bits = value & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+
+        if (exponent == 0) {
+            if (mantissa == 0) {
+                return Float.intBitsToFloat(sign);
+            }
+            // Subnormal half: value = mantissa * 2^-24
+            float magnitude = mantissa * 0x1p-24f;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    /**
+     * Header fields of an encoded vector
+     */
+    public static final class Header {
+        public final byte dataType;
+        public final int dimension;
+        public final String model;
+        final int offset;
+
+        Header(byte dataType, int dimension, String model, int offset) {
+            this.dataType = dataType;
+            this.dimension = dimension;
+            this.model = model;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package custom.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * File-backed cache of embeddings keyed by model and text, so re-ingesting a library reads vectors
+ * from disk instead of calling the embedding API again.
+ *
+ * <p>Vectors are appended to a log of {@code digest, dimension, float32 values} records. The offset
+ * of each digest is kept in memory and rebuilt on open by skipping from record header to record header;
+ * a torn record at the end of the log is cut off. The log is compacted when it exceeds its size cap,
+ * keeping the newest vectors, or when most of it is overwritten records.</p>
+ */
+public class EmbeddingFileCache implements Closeable {
+    private static final int FILE_MAGIC = 0x45464331;
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int DIGEST_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = DIGEST_BYTES + Integer.BYTES;
+    // Share of the size cap kept by a compaction, so the next one is not due right away
+    private static final double COMPACTION_TARGET = 0.75;
+
+    private final File file;
+    private final long maxBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Digest to record offset, in append order
+    private final LinkedHashMap<String, Long> offsets = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long size;
+    private long liveBytes;
+
+    /**
+     * @param file     The log file
+     * @param maxBytes Size of the log that triggers a compaction
+     */
+    public EmbeddingFileCache(File file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * Cache key of a text: the digest of the model and the normalized text
+     */
+    public static String key(String model, String text) {
+        return DocumentProcessor.contentHash(model + " " + text);
+    }
+
+    /**
+     * Open the log, creating it if needed, and index its records
+     */
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            close();
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent);
+            }
+
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            offsets.clear();
+            liveBytes = 0;
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(FILE_MAGIC);
+                header.flip();
+                writeFully(header, 0);
+                size = HEADER_BYTES;
+                return;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if (header.getInt(0) != FILE_MAGIC) {
+                throw new IOException("Not an embedding cache file: " + file.getPath());
+            }
+
+            long length = channel.size();
+            long position = HEADER_BYTES;
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (position + RECORD_HEADER_BYTES <= length) {
+                recordHeader.clear();
+                readFully(recordHeader, position);
+                int dimension = recordHeader.getInt(DIGEST_BYTES);
+                long recordBytes = recordBytes(dimension);
+                if (dimension <= 0 || position + recordBytes > length) {
+                    break;
+                }
+
+                Long previous = offsets.put(digestOf(recordHeader), position);
+                if (previous != null) {
+                    liveBytes -= recordBytes(readDimension(previous));
+                }
+                liveBytes += recordBytes;
+                position += recordBytes;
+            }
+
+            if (position < length) {
+                System.err.println("Warning: Dropping " + (length - position) + " bytes of an incomplete record from " + file.getPath());
+                channel.truncate(position);
+            }
+            size = position;
+            System.out.println("Opened embedding cache " + file.getPath() + " with " + offsets.size() + " vectors (" +
+                    size / (1024 * 1024) + " MB)");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The cached vector of the key, or null if there is none
+     */
+    public float[] get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Long offset = channel != null ? offsets.get(key) : null;
+            return offset != null ? readVector(offset) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Look up several keys
+     *
+     * @return Key to vector for the keys that are cached
+     */
+    public Map<String, float[]> getAll(Collection<String> keys) throws IOException {
+        Map<String, float[]> vectors = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            if (channel == null) {
+                return vectors;
+            }
+
+            for (String key : keys) {
+                Long offset = offsets.get(key);
+                if (offset != null) {
+                    vectors.put(key, readVector(offset));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return vectors;
+    }
+
+    /**
+     * Append vectors, compacting the log afterwards if it grew past its cap
+     */
+    public void putAll(Map<String, float[]> vectors) throws IOException {
+        if (vectors.isEmpty()) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (channel == null) {
+                return;
+            }
+
+            for (Map.Entry<String, float[]> entry : vectors.entrySet()) {
+                float[] vector = entry.getValue();
+                ByteBuffer record = ByteBuffer.allocate((int) recordBytes(vector.length)).order(ByteOrder.LITTLE_ENDIAN);
+                record.put(digestBytes(entry.getKey())).putInt(vector.length);
+                for (float value : vector) {
+                    record.putFloat(value);
+                }
+                record.flip();
+                writeFully(record, size);
+
+                Long previous = offsets.remove(entry.getKey());
+                if (previous != null) {
+                    liveBytes -= recordBytes(readDimension(previous));
+                }
+                offsets.put(entry.getKey(), size);
+                liveBytes += record.capacity();
+                size += record.capacity();
+            }
+
+            if (size > maxBytes || size - liveBytes > liveBytes) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return offsets.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the current record of each key into a new log, dropping the oldest vectors beyond the size cap,
+     * and replace the log atomically. Called with the write lock held.
+     */
+    private void compact() throws IOException {
+        long budget = (long) (maxBytes * COMPACTION_TARGET) - HEADER_BYTES;
+        List<Map.Entry<String, Long>> records = new ArrayList<>(offsets.entrySet());
+        int first = records.size();
+        long kept = 0;
+        while (first > 0) {
+            long recordBytes = recordBytes(readDimension(records.get(first - 1).getValue()));
+            if (kept + recordBytes > budget) {
+                break;
+            }
+            kept += recordBytes;
+            first--;
+        }
+
+        File temporary = new File(file.getPath() + ".compact");
+        LinkedHashMap<String, Long> compacted = new LinkedHashMap<>();
+        long position = HEADER_BYTES;
+        try (FileChannel target = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(FILE_MAGIC);
+            header.flip();
+            while (header.hasRemaining()) {
+                target.write(header);
+            }
+
+            for (int i = first; i < records.size(); i++) {
+                long offset = records.get(i).getValue();
+                long recordBytes = recordBytes(readDimension(offset));
+                long copied = 0;
+                while (copied < recordBytes) {
+                    copied += channel.transferTo(offset + copied, recordBytes - copied, target);
+                }
+                compacted.put(records.get(i).getKey(), position);
+                position += recordBytes;
+            }
+            target.force(true);
+        }
+
+        channel.close();
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        System.out.println("Compacted embedding cache from " + size / (1024 * 1024) + " MB to " + position / (1024 * 1024) +
+                " MB, dropped " + first + " old vectors");
+        offsets.clear();
+        offsets.putAll(compacted);
+        size = position;
+        liveBytes = position - HEADER_BYTES;
+    }
+
+    private float[] readVector(long offset) throws IOException {
+        int dimension = readDimension(offset);
+        ByteBuffer values = ByteBuffer.allocate(dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(values, offset + RECORD_HEADER_BYTES);
+
+        values.flip();
+        float[] vector = new float[dimension];
+        values.asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    private int readDimension(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buffer, offset + DIGEST_BYTES);
+        return buffer.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of embedding cache " + file.getPath());
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static long recordBytes(int dimension) {
+        return RECORD_HEADER_BYTES + (long) dimension * Float.BYTES;
+    }
+
+    private static String digestOf(ByteBuffer recordHeader) {
+        StringBuilder hex = new StringBuilder(DIGEST_BYTES * 2);
+        for (int i = 0; i < DIGEST_BYTES; i++) {
+            byte value = recordHeader.get(i);
+            hex.append(Character.forDigit((value >> 4) & 0x0F, 16)).append(Character.forDigit(value & 0x0F, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] digestBytes(String key) {
+        byte[] digest = new byte[DIGEST_BYTES];
+        for (int i = 0; i < DIGEST_BYTES; i++) {
+            digest[i] = (byte) Integer.parseInt(key.substring(i * 2, i * 2 + 2), 16);
+        }
+        return digest;
+    }
+}
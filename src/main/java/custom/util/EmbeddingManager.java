@@ -6,73 +6,121 @@ import org.tinystruct.AbstractApplication;
 import org.tinystruct.ApplicationContext;
 import org.tinystruct.ApplicationException;
 import org.tinystruct.application.Context;
+import org.tinystruct.data.DatabaseOperator;
 import org.tinystruct.data.component.Builder;
 import org.tinystruct.data.component.Builders;
 import org.tinystruct.data.component.Table;
 import org.tinystruct.system.ApplicationManager;
-
+import org.tinystruct.system.annotation.Action;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
 
 import static custom.application.v1.smalltalk.CONFIG_OPENAI_API_ENDPOINT;
 
 public class EmbeddingManager extends AbstractApplication {
-    private static final int EMBEDDING_DIMENSION = 1536; // OpenAI's text-embedding-ada-002 dimension
-    private static final String EMBEDDING_MODEL = "text-embedding-ada-002";
-
-    // In-memory cache for query embeddings to avoid redundant API calls
-    private static final Map<String, Vector<Double>> queryEmbeddingCache = new ConcurrentHashMap<>();
-    private static final int MAX_CACHE_SIZE = 1000; // Maximum number of cached query embeddings
+    // Model of the stored embeddings; rows written before the model was recorded were made by the default
+    public static final String CONFIG_EMBEDDING_MODEL = "embedding.model";
+    static final String DEFAULT_EMBEDDING_MODEL = "text-embedding-ada-002";
+    private static volatile String embeddingModel = DEFAULT_EMBEDDING_MODEL;
+
+    // Directory that relative paths of the segment, re-embedding state and cache files are resolved against
+    public static final String CONFIG_DATA_DIRECTORY = "data.dir";
+
+    // Re-embedding of all fragments with another model, switched to once complete
+    public static final String CONFIG_REINDEX_RPS = "embedding.reindex.rps";
+    public static final String CONFIG_REINDEX_STATE = "embedding.reindex.state";
+    private static volatile EmbeddingReindex reindex;
+    private static File reindexState;
+
+    // Cache of query embeddings to avoid redundant API calls, optionally kept in a file across restarts
+    public static final String CONFIG_QUERY_CACHE_SIZE = "embedding.query_cache.size";
+    public static final String CONFIG_QUERY_CACHE_MAX_MB = "embedding.query_cache.max_mb";
+    public static final String CONFIG_QUERY_CACHE_TTL_MINUTES = "embedding.query_cache.ttl_minutes";
+    public static final String CONFIG_QUERY_CACHE_FILE = "embedding.query_cache.file";
+    private static volatile QueryEmbeddingCache queryCache = new QueryEmbeddingCache(1000, 64L * 1024 * 1024, 0);
+    private static volatile File queryCacheFile;
+    private static boolean queryCacheHookInstalled;
+
+    // Local cache of embeddings by model and text, read before calling the embedding API
+    public static final String CONFIG_EMBEDDING_CACHE_FILE = "embedding.cache.file";
+    public static final String CONFIG_EMBEDDING_CACHE_MAX_MB = "embedding.cache.max_mb";
+    private static volatile EmbeddingFileCache embeddingCache;
+
+    // Search engine configuration
+    public static final String CONFIG_SEARCH_ENGINE = "embedding.search.engine";
+    public static final String CONFIG_HNSW_M = "embedding.hnsw.m";
+    public static final String CONFIG_HNSW_EF_CONSTRUCTION = "embedding.hnsw.ef_construction";
+    public static final String CONFIG_HNSW_EF_SEARCH = "embedding.hnsw.ef_search";
+    private static int hnswM = 16;
+    private static int hnswEfConstruction = 200;
+    private static int hnswEfSearch = 64;
+
+    // Exact search parallelism: 0 uses the common ForkJoin pool, 1 scans on the calling thread
+    public static final String CONFIG_SEARCH_PARALLELISM = "embedding.search.parallelism";
+    public static final String CONFIG_SEARCH_PARTITION_SIZE = "embedding.search.partition_size";
+    private static ForkJoinPool searchPool;
+
+    // Quantized engines rescore this many candidates per requested result at full precision
+    public static final String CONFIG_RESCORE_FACTOR = "embedding.quantization.rescore_factor";
+    private static int rescoreFactor = 4;
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    // Memory-mapped segment storage used by the mmap engine
+    public static final String CONFIG_SEGMENTS_DIRECTORY = "embedding.segments.dir";
+    public static final String CONFIG_SEGMENT_ROWS = "embedding.segments.rows";
+
+    // Inputs per embedding request and the token budget of one request
+    public static final String CONFIG_BATCH_SIZE = "embedding.batch.size";
+    public static final String CONFIG_BATCH_MAX_TOKENS = "embedding.batch.max_tokens";
+    private static int batchSize = 64;
+    private static int batchMaxTokens = 60000;
+
+    // Storage format of new embeddings: float32 or float16
+    public static final String CONFIG_STORAGE_TYPE = "embedding.storage.type";
+    private static byte storageType = EmbeddingCodec.FLOAT32;
+    private static EmbeddingMigration migration;
+
+    // Resident index of all stored embeddings, loaded once and kept in sync with saves and deletes
+    private static volatile VectorSearchEngine index = new VectorIndex();
+    private static volatile boolean indexLoaded = false;
+    // Visibility, owner and document of each fragment, used to filter searches
+    private static final FragmentFilterIndex filterIndex = new FragmentFilterIndex();
+    // BM25 index over fragment content, fused with vector results and used when embeddings are unavailable
+    private static final LexicalIndex lexicalIndex = new LexicalIndex();
 
     /**
-     * Check if an embedding exists for a given fragment
-     * @param fragment The document fragment to check
-     * @return true if an embedding exists, false otherwise
-     */
-    private static boolean hasEmbedding(DocumentFragment fragment) throws ApplicationException {
-        DocumentEmbedding embedding = new DocumentEmbedding();
-        Table results = embedding.findWith("WHERE fragment_id = ?", new Object[]{fragment.getId()});
-        return results != null && !results.isEmpty();
-    }
-
-    /**
-     * Retrieve an existing embedding from the database
-     * @param fragment The document fragment
-     * @return The embedding vector if found, null otherwise
-     */
-    private static Vector<Double> getExistingEmbedding(DocumentFragment fragment) throws ApplicationException {
-        DocumentEmbedding embedding = new DocumentEmbedding();
-        Table results = embedding.findWith("WHERE fragment_id = ?", new Object[]{fragment.getId()});
-
-        if (results == null || results.isEmpty()) {
-            return null;
-        }
-
-        DocumentEmbedding embeddingData = new DocumentEmbedding();
-        embeddingData.setData(results.get(0));
-
-        return embeddingData.getEmbeddingVector();
-    }
-
-    /**
-     * Call OpenAI API to generate an embedding with retry logic
+     * Call OpenAI API to generate the embeddings of several texts with the given model, with retry logic
      *
-     * @param text Text to generate embedding for
-     * @return Vector of embedding values
+     * @param texts Texts to generate embeddings for
+     * @param model Embedding model
+     * @return Embedding vectors in the order of the texts
      */
-    private Vector<Double> callOpenAIEmbeddingAPI(String text) throws ApplicationException {
+    private List<Vector<Double>> callOpenAIEmbeddingAPI(List<String> texts, String model) throws ApplicationException {
         int maxRetries = 3;
         int retryCount = 0;
 
         while (retryCount < maxRetries) {
             try {
-                System.out.println("Calling OpenAI API for embedding generation (attempt " + (retryCount + 1) + ")");
+                System.out.println("Calling OpenAI API for " + texts.size() + " embeddings (attempt " + (retryCount + 1) + ")");
 
                 // Create a payload for the OpenAI API call
+                StringBuilder input = new StringBuilder();
+                for (String text : texts) {
+                    input.append(input.length() == 0 ? "\"" : ", \"").append(escapeJsonString(text)).append('"');
+                }
                 Builder payload = new Builder();
                 payload.parse("{\n" +
-                        "  \"model\": \"" + EMBEDDING_MODEL + "\",\n" +
-                        "  \"input\": \"" + escapeJsonString(text) + "\"\n" +
+                        "  \"model\": \"" + escapeJsonString(model) + "\",\n" +
+                        "  \"input\": [" + input + "]\n" +
                         "}");
 
                 String API_URL = getConfiguration().get(CONFIG_OPENAI_API_ENDPOINT);
@@ -119,66 +167,33 @@ public class EmbeddingManager extends AbstractApplication {
                     throw new ApplicationException(errorMessage);
                 }
 
-                Builders data = null;
-                // Extract the embedding
+                Builders data;
                 if (response.get("data") != null && response.get("data") instanceof Builders) {
                     data = (Builders) response.get("data");
-                    if (data == null || data.get(0) == null) {
-                        throw new ApplicationException("No embedding data in API response");
-                    }
                 } else {
                     throw new ApplicationException("Invalid response format: 'data' field missing or not a Builders object");
                 }
 
-                Object embeddingObj = data.get(0).get("embedding");
-                if (embeddingObj == null) {
-                    throw new ApplicationException("No embedding field in API response");
-                }
-
-                System.out.println("Embedding object class: " + embeddingObj.getClass().getName());
-
-                List<Object> embeddingList;
-                if (embeddingObj instanceof List) {
-                    embeddingList = (List<Object>) embeddingObj;
-                    if (!embeddingList.isEmpty()) {
-                        Object firstValue = embeddingList.get(0);
-                        System.out.println("First embedding value class: " +
-                                (firstValue != null ? firstValue.getClass().getName() : "null") +
-                                ", value: " + firstValue);
+                // Each item carries the index of its input, so results are placed by index rather than order
+                List<Vector<Double>> embeddings = new ArrayList<>(Collections.nCopies(texts.size(), null));
+                for (int i = 0; i < data.size(); i++) {
+                    Builder item = data.get(i);
+                    int position = item.get("index") != null ? Integer.parseInt(item.get("index").toString()) : i;
+                    if (position < 0 || position >= texts.size()) {
+                        throw new ApplicationException("Embedding index out of range in API response: " + position);
                     }
-                } else {
-                    throw new ApplicationException("Embedding is not a list: " + embeddingObj.getClass().getName());
-                }
-
-                if (embeddingList.isEmpty()) {
-                    throw new ApplicationException("Empty embedding vector in API response");
+                    embeddings.set(position, toEmbeddingVector(item.get("embedding")));
                 }
 
-                // Convert to Vector<Double>
-                Vector<Double> embedding = new Vector<>();
-                for (Object value : embeddingList) {
-                    try {
-                        if (value instanceof Number) {
-                            embedding.add(((Number) value).doubleValue());
-                        } else {
-                            // Remove any quotes from the string before parsing
-                            String valueStr = value.toString().replaceAll("\"", "");
-                            embedding.add(Double.parseDouble(valueStr));
-                        }
-                    } catch (NumberFormatException e) {
-                        System.err.println("Error parsing embedding value: " + value +
-                                " (" + (value != null ? value.getClass().getName() : "null") + ")");
-                        throw new ApplicationException("Failed to parse embedding value: " + e.getMessage(), e);
+                for (int i = 0; i < embeddings.size(); i++) {
+                    if (embeddings.get(i) == null) {
+                        throw new ApplicationException("No embedding in API response for input " + i);
                     }
                 }
 
-                if (embedding.size() != EMBEDDING_DIMENSION) {
-                    System.out.println("Warning: Unexpected embedding dimension: " + embedding.size() +
-                            " (expected " + EMBEDDING_DIMENSION + ")");
-                }
-
-                System.out.println("Successfully generated embedding with dimension: " + embedding.size());
-                return embedding;
+                System.out.println("Successfully generated " + embeddings.size() + " embeddings with dimension: " +
+                        embeddings.get(0).size());
+                return embeddings;
 
             } catch (Exception e) {
                 retryCount++;
@@ -261,21 +276,318 @@ public class EmbeddingManager extends AbstractApplication {
      * @return The embedding vector
      */
     public Vector<Double> generateEmbedding(DocumentFragment fragment) throws ApplicationException {
+        // Reuses the stored embedding of the fragment or of another fragment with the same content
+        return generateEmbeddings(Collections.singletonList(fragment)).get(0);
+    }
+
+    /**
+     * Convert the embedding field of an API response item to a vector
+     */
+    private static Vector<Double> toEmbeddingVector(Object embeddingObj) throws ApplicationException {
+        if (embeddingObj == null) {
+            throw new ApplicationException("No embedding field in API response");
+        }
+        if (!(embeddingObj instanceof List)) {
+            throw new ApplicationException("Embedding is not a list: " + embeddingObj.getClass().getName());
+        }
+
+        List<?> embeddingList = (List<?>) embeddingObj;
+        if (embeddingList.isEmpty()) {
+            throw new ApplicationException("Empty embedding vector in API response");
+        }
+
+        // Convert to Vector<Double>
+        Vector<Double> embedding = new Vector<>(embeddingList.size());
+        for (Object value : embeddingList) {
+            try {
+                if (value instanceof Number) {
+                    embedding.add(((Number) value).doubleValue());
+                } else {
+                    // Remove any quotes from the string before parsing
+                    String valueStr = String.valueOf(value).replaceAll("\"", "");
+                    embedding.add(Double.parseDouble(valueStr));
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Error parsing embedding value: " + value +
+                        " (" + (value != null ? value.getClass().getName() : "null") + ")");
+                throw new ApplicationException("Failed to parse embedding value: " + e.getMessage(), e);
+            }
+        }
+        return embedding;
+    }
+
+    /**
+     * Generate the embeddings of several fragments. Stored embeddings are looked up with one query,
+     * the missing ones are requested in batches of at most {@code embedding.batch.size} inputs and
+     * {@code embedding.batch.max_tokens} estimated tokens, and all new rows are written with one INSERT.
+     *
+     * @param fragments Saved document fragments
+     * @return The embedding vectors in the order of the fragments
+     */
+    public List<Vector<Double>> generateEmbeddings(List<DocumentFragment> fragments) throws ApplicationException {
+        return generateEmbeddings(fragments, null);
+    }
+
+    /**
+     * Same as {@link #generateEmbeddings(List)}, reporting progress after each request
+     *
+     * @param fragments Saved document fragments
+     * @param progress  Receives the number of fragments with an embedding so far, may be null
+     * @return The embedding vectors in the order of the fragments
+     */
+    public List<Vector<Double>> generateEmbeddings(List<DocumentFragment> fragments, IntConsumer progress) throws ApplicationException {
+        // A model switch while this runs leaves the new index to the re-embedding job
+        String model = embeddingModel;
+        VectorSearchEngine engine = index;
         try {
-            // Check if embedding already exists
-            if (hasEmbedding(fragment)) {
-                return getExistingEmbedding(fragment);
+            // Fragments with the same content share the embedding of their canonical fragment
+            Map<String, String> canonicals = new LinkedHashMap<>();
+            Set<String> lookup = new LinkedHashSet<>();
+            for (DocumentFragment fragment : fragments) {
+                String canonical = filterIndex.canonicalOf(fragment.getId());
+                canonicals.put(fragment.getId(), canonical);
+                lookup.add(canonical);
+                lookup.add(fragment.getId());
+            }
+
+            Map<String, Vector<Double>> existing = getExistingEmbeddings(new ArrayList<>(lookup), model, engine);
+            Map<String, Vector<Double>> byCanonical = new HashMap<>();
+            for (Map.Entry<String, String> entry : canonicals.entrySet()) {
+                Vector<Double> embedding = existing.containsKey(entry.getValue()) ? existing.get(entry.getValue()) : existing.get(entry.getKey());
+                if (embedding != null) {
+                    byCanonical.put(entry.getValue(), embedding);
+                }
+            }
+
+            // Each missing content is embedded once and stored under its canonical fragment
+            Map<String, String> missing = new LinkedHashMap<>();
+            for (DocumentFragment fragment : fragments) {
+                String canonical = canonicals.get(fragment.getId());
+                if (!byCanonical.containsKey(canonical)) {
+                    missing.putIfAbsent(canonical, fragment.getContent());
+                }
+            }
+
+            // Contents embedded before, for example by an earlier deployment, are read from the local cache
+            Map<String, Vector<Double>> local = readCachedEmbeddings(missing.values(), model);
+            List<String> localIds = new ArrayList<>();
+            List<Vector<Double>> localEmbeddings = new ArrayList<>();
+            for (Iterator<Map.Entry<String, String>> iterator = missing.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, String> entry = iterator.next();
+                Vector<Double> embedding = local.get(entry.getValue());
+                if (embedding != null) {
+                    localIds.add(entry.getKey());
+                    localEmbeddings.add(embedding);
+                    iterator.remove();
+                }
+            }
+            if (!localIds.isEmpty()) {
+                saveEmbeddings(localIds, localEmbeddings, model, engine);
+                for (int i = 0; i < localIds.size(); i++) {
+                    byCanonical.put(localIds.get(i), localEmbeddings.get(i));
+                }
             }
 
-            // Call OpenAI API to generate embedding
-            Vector<Double> embedding = callOpenAIEmbeddingAPI(fragment.getContent());
+            int reused = fragments.size() - missing.size();
+            if (progress != null) {
+                progress.accept(reused);
+            }
 
-            // Save the new embedding
-            saveEmbedding(fragment, embedding);
+            List<String> missingIds = new ArrayList<>(missing.keySet());
+            List<String> missingTexts = new ArrayList<>(missing.values());
+            List<Vector<Double>> generated = requestEmbeddings(missingTexts, model, null,
+                progress != null ? count -> progress.accept(reused + count) : null);
 
-            return embedding;
+            if (!missingIds.isEmpty()) {
+                saveEmbeddings(missingIds, generated, model, engine);
+                for (int i = 0; i < missingIds.size(); i++) {
+                    byCanonical.put(missingIds.get(i), generated.get(i));
+                }
+            }
+            System.out.println("Generated " + missingIds.size() + " embeddings and read " + localIds.size() +
+                    " from the local cache for " + fragments.size() + " fragments, the others reuse stored embeddings of the same content");
+
+            List<Vector<Double>> embeddings = new ArrayList<>(fragments.size());
+            for (DocumentFragment fragment : fragments) {
+                embeddings.add(byCanonical.get(canonicals.get(fragment.getId())));
+            }
+            return embeddings;
         } catch (Exception e) {
-            throw new ApplicationException("Failed to generate embedding: " + e.getMessage(), e);
+            throw new ApplicationException("Failed to generate embeddings: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Request embeddings from the API in batches of at most {@code embedding.batch.size} inputs and
+     * {@code embedding.batch.max_tokens} tokens, and add them to the local embedding cache
+     *
+     * @param texts         Texts to embed
+     * @param model         Embedding model
+     * @param beforeRequest Called before each request, for example to wait for a rate limit, may be null
+     * @param progress      Receives the number of texts embedded so far, may be null
+     * @return The embedding vectors in the order of the texts
+     */
+    List<Vector<Double>> requestEmbeddings(List<String> texts, String model, Runnable beforeRequest,
+                                           IntConsumer progress) throws ApplicationException {
+        List<Vector<Double>> embeddings = new ArrayList<>(texts.size());
+        Tokenizer tokenizer = Tokenizer.forModel(model);
+        int from = 0;
+        while (from < texts.size()) {
+            // Fill the request up to the input count and token budget; an oversized input goes alone
+            int to = from;
+            int tokens = 0;
+            List<String> batch = new ArrayList<>();
+            while (to < texts.size() && batch.size() < batchSize) {
+                String content = texts.get(to);
+                int count = Math.max(1, tokenizer.count(content));
+                if (!batch.isEmpty() && tokens + count > batchMaxTokens) {
+                    break;
+                }
+                batch.add(content);
+                tokens += count;
+                to++;
+            }
+
+            if (beforeRequest != null) {
+                beforeRequest.run();
+            }
+            List<Vector<Double>> generated = callOpenAIEmbeddingAPI(batch, model);
+            writeCachedEmbeddings(batch, generated, model);
+            embeddings.addAll(generated);
+            from = to;
+            if (progress != null) {
+                progress.accept(embeddings.size());
+            }
+        }
+        return embeddings;
+    }
+
+    /**
+     * Look up the stored embeddings of several fragments in one query
+     * @return Fragment ID to embedding vector, for the fragments that have one
+     */
+    private static Map<String, Vector<Double>> getExistingEmbeddings(List<String> fragmentIds) throws ApplicationException {
+        return getExistingEmbeddings(fragmentIds, embeddingModel, index);
+    }
+
+    /**
+     * Look up the stored embeddings of several fragments made by a model
+     * @param engine Engine holding the vectors of metadata-only rows
+     * @return Fragment ID to embedding vector, for the fragments that have one
+     */
+    private static Map<String, Vector<Double>> getExistingEmbeddings(List<String> fragmentIds, String model,
+                                                                     VectorSearchEngine engine) throws ApplicationException {
+        Map<String, Vector<Double>> embeddings = new HashMap<>();
+        Map<String, float[]> stored;
+        try {
+            stored = loadEmbeddings(fragmentIds, model);
+        } catch (IllegalStateException e) {
+            throw new ApplicationException(e.getMessage(), e.getCause());
+        }
+
+        for (Map.Entry<String, float[]> entry : stored.entrySet()) {
+            // Persistent engines keep the vector in their own files and only metadata in the database
+            float[] values = entry.getValue() != null ? entry.getValue() : engine.vector(entry.getKey());
+            if (values != null) {
+                Vector<Double> embedding = new Vector<>(values.length);
+                for (float value : values) {
+                    embedding.add((double) value);
+                }
+                embeddings.put(entry.getKey(), embedding);
+            }
+        }
+        return embeddings;
+    }
+
+    /**
+     * Write the embeddings of several fragments in one transaction, so either all rows are stored or none are
+     * @param fragmentIds IDs of the document fragments
+     * @param embeddings The embedding vectors, in the order of the fragments
+     */
+    private static void saveEmbeddings(List<String> fragmentIds, List<Vector<Double>> embeddings) throws ApplicationException {
+        saveEmbeddings(fragmentIds, embeddings, embeddingModel, index);
+    }
+
+    /**
+     * Write the embeddings of several fragments made by a model as one batch and, once it is committed, add them
+     * to the engine of that model. A persistent engine keeps the vectors itself, so its rows hold no embedding;
+     * rows of vectors it rejects are deleted again.
+     */
+    static void saveEmbeddings(List<String> fragmentIds, List<Vector<Double>> embeddings, String model,
+                               VectorSearchEngine engine) throws ApplicationException {
+        boolean persistent = engine.isPersistent();
+        List<float[]> values = new ArrayList<>(embeddings.size());
+        for (Vector<Double> embedding : embeddings) {
+            values.add(toFloatArray(embedding));
+        }
+
+        try (DatabaseOperator db = new DatabaseOperator()) {
+            Connection connection = db.getConnection();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO document_embeddings (fragment_id, embedding, embedding_dimension, model) VALUES (?, ?, ?, ?)")) {
+                for (int i = 0; i < fragmentIds.size(); i++) {
+                    float[] vector = values.get(i);
+                    insert.setString(1, fragmentIds.get(i));
+                    insert.setBytes(2, persistent ? new byte[0] : EmbeddingCodec.encode(vector, model, storageType));
+                    insert.setInt(3, vector.length);
+                    insert.setString(4, model);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new ApplicationException("Failed to save embeddings: " + e.getMessage(), e);
+        }
+
+        List<String> rejected = new ArrayList<>();
+        for (int i = 0; i < fragmentIds.size(); i++) {
+            if (!engine.add(fragmentIds.get(i), values.get(i)) && persistent) {
+                rejected.add(fragmentIds.get(i));
+            }
+        }
+        if (!rejected.isEmpty()) {
+            deleteEmbeddings(rejected, model);
+            throw new ApplicationException("Vector index rejected embeddings for fragment IDs: " + rejected);
+        }
+    }
+
+    /**
+     * Delete all embeddings made by a model
+     * @return Number of rows deleted
+     */
+    static int deleteEmbeddings(String model) throws ApplicationException {
+        try (DatabaseOperator db = new DatabaseOperator();
+             PreparedStatement delete = db.getConnection().prepareStatement("DELETE FROM document_embeddings WHERE model = ?")) {
+            delete.setString(1, model);
+            return delete.executeUpdate();
+        } catch (SQLException e) {
+            throw new ApplicationException("Failed to delete " + model + " embeddings: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Delete the rows of embeddings made by a model
+     */
+    private static void deleteEmbeddings(List<String> fragmentIds, String model) throws ApplicationException {
+        try (DatabaseOperator db = new DatabaseOperator();
+             PreparedStatement delete = db.getConnection().prepareStatement(
+                     "DELETE FROM document_embeddings WHERE fragment_id = ? AND model = ?")) {
+            for (String fragmentId : fragmentIds) {
+                delete.setString(1, fragmentId);
+                delete.setString(2, model);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        } catch (SQLException e) {
+            throw new ApplicationException("Failed to delete embeddings: " + e.getMessage(), e);
         }
     }
 
@@ -285,105 +597,406 @@ public class EmbeddingManager extends AbstractApplication {
      * @param embedding The embedding vector
      */
     public static void saveEmbedding(DocumentFragment fragment, Vector<Double> embedding) throws ApplicationException {
+        saveEmbeddings(Collections.singletonList(fragment.getId()), Collections.singletonList(embedding));
+    }
+
+    /**
+     * Load all stored embeddings into the resident vector index
+     */
+    public static synchronized void loadIndex() throws ApplicationException {
+        ensureModelColumn();
+        loadFragmentIndexes();
+
+        if (index instanceof SegmentIndex) {
+            try {
+                ((SegmentIndex) index).open();
+            } catch (IOException e) {
+                throw new ApplicationException("Failed to open vector segments: " + e.getMessage(), e);
+            }
+
+            if (index.size() > 0) {
+                indexLoaded = true;
+                return;
+            }
+            // First start with segment storage: import the embeddings kept in the database
+        } else {
+            index.clear();
+        }
+
+        int[] loadedCount = {0};
+        forEachStoredEmbedding(embeddingModel, (fragmentId, values) -> {
+            // Rows stored before deduplication may repeat a content; keep one vector per content
+            String canonical = filterIndex.canonicalOf(fragmentId);
+            if (!index.contains(canonical) && index.add(canonical, values)) {
+                loadedCount[0]++;
+            }
+        });
+
+        indexLoaded = true;
+        System.out.println("Loaded " + loadedCount[0] + " " + embeddingModel + " embeddings into the " + index.name() + " vector index" +
+                " (" + index.memoryBytes() / (1024 * 1024) + " MB)");
+    }
+
+    /**
+     * Rebuild the filter and lexical indexes from document_fragments in primary key batches
+     */
+    private static void loadFragmentIndexes() throws ApplicationException {
+        ensureContentHashColumn();
+        filterIndex.clear();
+        lexicalIndex.clear();
+
+        long lastId = 0;
+        while (true) {
+            DocumentFragment model = new DocumentFragment();
+            Table table = model.findWith("WHERE id > ? ORDER BY id LIMIT " + LOAD_BATCH_SIZE, new Object[]{lastId});
+            if (table == null || table.isEmpty()) {
+                break;
+            }
+
+            for (int i = 0; i < table.size(); i++) {
+                DocumentFragment fragment = new DocumentFragment();
+                fragment.setData(table.get(i));
+                lastId = Long.parseLong(fragment.getId());
+                if (filterIndex.put(fragment)) {
+                    lexicalIndex.put(fragment.getId(), fragment.getContent());
+                }
+            }
+        }
+
+        System.out.println("Loaded filter attributes of " + filterIndex.size() + " fragments and indexed the content of " +
+                lexicalIndex.size() + " distinct fragments");
+    }
+
+    /**
+     * Add the model column to databases created before it was recorded; existing rows were made by the default model
+     */
+    private static void ensureModelColumn() throws ApplicationException {
         try {
-            DocumentEmbedding embeddingData = new DocumentEmbedding();
-            embeddingData.setFragmentId(fragment.getId());
-            embeddingData.setEmbeddingVector(embedding);
-            embeddingData.setEmbeddingDimension(embedding.size());
-            embeddingData.setCreatedAt(new Date());
-            embeddingData.append();
-        } catch (Exception e) {
-            throw new ApplicationException("Failed to save embedding: " + e.getMessage(), e);
+            new DocumentEmbedding().findWith("WHERE model IS NULL LIMIT 1", new Object[]{});
+        } catch (ApplicationException e) {
+            try (DatabaseOperator operator = new DatabaseOperator()) {
+                operator.execute("ALTER TABLE document_embeddings ADD COLUMN model VARCHAR(100)");
+                operator.execute("UPDATE document_embeddings SET model = '" + DEFAULT_EMBEDDING_MODEL + "' WHERE model IS NULL");
+                operator.execute("CREATE INDEX IF NOT EXISTS idx_embedding_model ON document_embeddings(model, fragment_id)");
+                System.out.println("Added model column to document_embeddings");
+            } catch (Exception ex) {
+                throw new ApplicationException("Failed to add model column: " + ex.getMessage(), ex);
+            }
         }
     }
 
     /**
-     * Find similar document fragments using cosine similarity
-     * @param queryEmbedding The query embedding vector
-     * @param limit Maximum number of results to return
-     * @return List of similar document fragments with their similarity scores
+     * Check whether a fragment holds the vector of its content group
      */
-    public static List<SimilarityResult> findSimilar(Vector<Double> queryEmbedding, int limit) throws ApplicationException {
-        List<SimilarityResult> results = new ArrayList<>();
+    static boolean isCanonical(String fragmentId) {
+        return fragmentId.equals(filterIndex.canonicalOf(fragmentId));
+    }
+
+    /**
+     * Add the content_hash column to databases created before fragments were deduplicated
+     */
+    private static void ensureContentHashColumn() throws ApplicationException {
         try {
-            if (queryEmbedding == null) {
-                System.err.println("Error: Query embedding is null");
-                return results;
+            new DocumentFragment().findWith("WHERE content_hash IS NULL LIMIT 1", new Object[]{});
+        } catch (ApplicationException e) {
+            try (DatabaseOperator operator = new DatabaseOperator()) {
+                operator.execute("ALTER TABLE document_fragments ADD COLUMN content_hash VARCHAR(64)");
+                operator.execute("CREATE INDEX IF NOT EXISTS idx_content_hash ON document_fragments(content_hash)");
+                System.out.println("Added content_hash column to document_fragments");
+            } catch (Exception ex) {
+                throw new ApplicationException("Failed to add content_hash column: " + ex.getMessage(), ex);
             }
+        }
+    }
 
-            System.out.println("Finding similar documents for query embedding with dimension: " + queryEmbedding.size());
+    /**
+     * Add a newly stored fragment to the filter and lexical indexes
+     * @param fragment The saved document fragment
+     */
+    public static void indexFragment(DocumentFragment fragment) {
+        if (fragment == null || fragment.getId() == null) {
+            return;
+        }
 
-            // Get all embeddings from database
-            DocumentEmbedding embeddingModel = new DocumentEmbedding();
-            // Use a valid SQL condition to find all records
-            Table embeddingTable = embeddingModel.findAll();  // Find all records
+        // A duplicate of an indexed content is found through its canonical fragment
+        if (filterIndex.put(fragment)) {
+            lexicalIndex.put(fragment.getId(), fragment.getContent());
+        }
+    }
 
-            if (embeddingTable == null || embeddingTable.isEmpty()) {
-                System.out.println("No embeddings found in database");
-                return results;
+    /**
+     * Read all stored embeddings from the database
+     * @return Fragment ID to embedding vector
+     */
+    private static Map<String, float[]> readStoredEmbeddings() throws ApplicationException {
+        Map<String, float[]> storedEmbeddings = new LinkedHashMap<>();
+        forEachStoredEmbedding(embeddingModel, storedEmbeddings::put);
+        return storedEmbeddings;
+    }
+
+    /**
+     * Decode the stored embeddings in primary key batches, so only one batch of rows
+     * is held in memory while an index is built
+     * @param model Model of the embeddings to read
+     * @param consumer Receives the fragment ID and embedding values of each row
+     */
+    static void forEachStoredEmbedding(String model, BiConsumer<String, float[]> consumer) throws ApplicationException {
+        try {
+            long lastId = 0;
+            while (true) {
+                DocumentEmbedding embeddingModel = new DocumentEmbedding();
+                Table embeddingTable = embeddingModel.findWith("WHERE id > ? AND model = ? ORDER BY id LIMIT " + LOAD_BATCH_SIZE,
+                        new Object[]{lastId, model});
+                if (embeddingTable == null || embeddingTable.isEmpty()) {
+                    break;
+                }
+
+                for (int i = 0; i < embeddingTable.size(); i++) {
+                    DocumentEmbedding embeddingData = new DocumentEmbedding();
+                    embeddingData.setData(embeddingTable.get(i));
+                    lastId = Long.parseLong(embeddingData.getId());
+
+                    try {
+                        float[] storedEmbedding = embeddingData.getEmbeddingValues();
+                        if (storedEmbedding != null) {
+                            consumer.accept(embeddingData.getFragmentId(), storedEmbedding);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Error loading embedding " + lastId + ": " + e.getMessage());
+                    }
+                }
             }
+        } catch (Exception e) {
+            throw new ApplicationException("Failed to read stored embeddings: " + e.getMessage(), e);
+        }
+    }
 
-            System.out.println("Found " + embeddingTable.size() + " embeddings in database");
+    /**
+     * Load the full-precision embeddings of some fragments, used to rescore quantized search results
+     * @param fragmentIds Fragment IDs
+     * @param model Model of the embeddings
+     * @return Fragment ID to embedding vector
+     */
+    private static Map<String, float[]> loadEmbeddings(Collection<String> fragmentIds, String model) {
+        Map<String, float[]> embeddings = new HashMap<>();
+        if (fragmentIds.isEmpty()) {
+            return embeddings;
+        }
 
-            // Calculate similarity for each embedding
-            int processedCount = 0;
-            int errorCount = 0;
+        try {
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < fragmentIds.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
 
-            for (int i = 0; i < embeddingTable.size(); i++) {
-                try {
+            DocumentEmbedding embeddingModel = new DocumentEmbedding();
+            List<Object> parameters = new ArrayList<>(fragmentIds);
+            parameters.add(model);
+            Table embeddingTable = embeddingModel.findWith("WHERE fragment_id IN (" + placeholders + ") AND model = ?", parameters.toArray());
+            if (embeddingTable != null) {
+                for (int i = 0; i < embeddingTable.size(); i++) {
                     DocumentEmbedding embeddingData = new DocumentEmbedding();
                     embeddingData.setData(embeddingTable.get(i));
-                    String fragmentId = embeddingData.getFragmentId();
+                    embeddings.put(embeddingData.getFragmentId(), embeddingData.getEmbeddingValues());
+                }
+            }
+        } catch (ApplicationException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return embeddings;
+    }
 
-                    Vector<Double> storedEmbedding = embeddingData.getEmbeddingVector();
-                    if (storedEmbedding == null) {
-                        System.err.println("Warning: Null embedding vector for fragment ID: " + fragmentId);
-                        errorCount++;
-                        continue;
-                    }
+    private static void ensureIndexLoaded() throws ApplicationException {
+        if (!indexLoaded) {
+            synchronized (EmbeddingManager.class) {
+                if (!indexLoaded) {
+                    loadIndex();
+                }
+            }
+        }
+    }
 
-                    // Verify vector dimensions match
-                    if (storedEmbedding.size() != queryEmbedding.size()) {
-                        System.err.println("Warning: Vector dimension mismatch. Query: " + queryEmbedding.size() +
-                                ", Stored: " + storedEmbedding.size() + " for fragment ID: " + fragmentId);
-                        errorCount++;
-                        continue;
-                    }
+    /**
+     * Read the vectors of fragments that are canonical for their content, so they can move to a remaining
+     * fragment with the same content once the fragments are deleted
+     * @param fragmentIds IDs of the document fragments about to be deleted
+     * @return Vectors by canonical fragment ID
+     */
+    private static Map<String, Vector<Double>> getCanonicalEmbeddings(Collection<String> fragmentIds) {
+        List<String> canonicals = new ArrayList<>();
+        for (String fragmentId : fragmentIds) {
+            if (fragmentId.equals(filterIndex.canonicalOf(fragmentId))) {
+                canonicals.add(fragmentId);
+            }
+        }
+        if (canonicals.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-                    // Calculate cosine similarity
-                    double similarity = cosineSimilarity(queryEmbedding, storedEmbedding);
+        try {
+            return getExistingEmbeddings(canonicals);
+        } catch (ApplicationException e) {
+            System.err.println("Warning: Failed to read embeddings of removed fragments: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
 
-                    // Get corresponding document fragment
-                    DocumentFragment fragment = new DocumentFragment();
-                    Table fragmentTable = fragment.findWith("WHERE id = ?", new Object[]{fragmentId});
+    /**
+     * Remove deleted fragments from the vector, filter and lexical indexes
+     * @param fragmentIds IDs of the document fragments
+     * @param vectors Vectors of the canonical fragments among them, read before the rows were deleted
+     * @return Vectors of removed canonical fragments by the remaining fragment with the same content that takes
+     *         them over, to be saved as its embeddings
+     */
+    private static Map<String, Vector<Double>> removeFromIndex(Collection<String> fragmentIds, Map<String, Vector<Double>> vectors) {
+        Map<String, Vector<Double>> promoted = new LinkedHashMap<>();
+        if (fragmentIds == null || fragmentIds.isEmpty()) {
+            return promoted;
+        }
 
-                    if (fragmentTable == null || fragmentTable.isEmpty()) {
-                        System.err.println("Warning: No document fragment found for fragment ID: " + fragmentId);
-                        errorCount++;
-                        continue;
-                    }
+        // When a canonical fragment goes, the next fragment with the same content takes over its vector
+        List<String[]> promotions = filterIndex.removeAll(fragmentIds);
 
-                    DocumentFragment fragmentData = new DocumentFragment();
-                    fragmentData.setData(fragmentTable.get(0));
+        int removed = index.removeAll(fragmentIds);
+        EmbeddingReindex job = reindex;
+        if (job != null) {
+            job.remove(fragmentIds, promotions);
+        }
+        for (String[] promotion : promotions) {
+            lexicalIndex.rename(promotion[0], promotion[1]);
+            Vector<Double> vector = vectors.get(promotion[0]);
+            if (vector != null) {
+                promoted.put(promotion[1], vector);
+            }
+        }
+        lexicalIndex.removeAll(fragmentIds);
+        FragmentCache.getInstance().invalidate(fragmentIds);
+        System.out.println("Removed " + removed + " embeddings from the vector index, " + promoted.size() +
+                " to be moved to remaining fragments with the same content");
+        return promoted;
+    }
 
-                    results.add(new SimilarityResult(fragmentData, similarity));
-                    processedCount++;
-                } catch (Exception e) {
-                    System.err.println("Error processing embedding at index " + i + ": " + e.getMessage());
-                    e.printStackTrace();
-                    errorCount++;
-                }
+    /**
+     * Delete the fragments of a document and their embeddings from the database and the indexes
+     * @param documentId The document
+     * @return Number of fragments deleted
+     */
+    public static int deleteDocument(String documentId) throws ApplicationException {
+        Table rows = new DocumentFragment().findWith("WHERE document_id = ?", new Object[]{documentId});
+        List<String> fragmentIds = new ArrayList<>(rows.size());
+        for (org.tinystruct.data.component.Row row : rows) {
+            if (row.getFieldInfo("id") != null) fragmentIds.add(row.getFieldInfo("id").stringValue());
+        }
+
+        // Embeddings taken over by fragments with the same content in other documents are read before the rows go
+        Map<String, Vector<Double>> vectors = getCanonicalEmbeddings(fragmentIds);
+
+        try (DatabaseOperator db = new DatabaseOperator()) {
+            Connection connection = db.getConnection();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement embeddings = connection.prepareStatement("DELETE FROM document_embeddings WHERE fragment_id IN " +
+                    "(SELECT id FROM document_fragments WHERE document_id = ?)");
+                 PreparedStatement fragments = connection.prepareStatement("DELETE FROM document_fragments WHERE document_id = ?")) {
+                embeddings.setString(1, documentId);
+                embeddings.executeUpdate();
+                fragments.setString(1, documentId);
+                fragments.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
+        } catch (SQLException e) {
+            throw new ApplicationException("Failed to delete document " + documentId + ": " + e.getMessage(), e);
+        }
+
+        // The indexes change only once the delete is committed, so a failed delete leaves the document searchable
+        Map<String, Vector<Double>> promoted = removeFromIndex(fragmentIds, vectors);
+        if (!promoted.isEmpty()) {
+            try {
+                saveEmbeddings(new ArrayList<>(promoted.keySet()), new ArrayList<>(promoted.values()));
+            } catch (ApplicationException e) {
+                System.err.println("Warning: Failed to move embeddings to fragments " + promoted.keySet() + ": " + e.getMessage());
+            }
+        }
+        return fragmentIds.size();
+    }
+
+    /**
+     * Find similar document fragments using cosine similarity
+     * @param queryEmbedding The query embedding vector
+     * @param limit Maximum number of results to return
+     * @return List of similar document fragments with their similarity scores
+     */
+    public static List<SimilarityResult> findSimilar(Vector<Double> queryEmbedding, int limit) throws ApplicationException {
+        return findSimilar(queryEmbedding, limit, 0);
+    }
 
-            System.out.println("Processed " + processedCount + " embeddings successfully, " +
-                    errorCount + " errors, found " + results.size() + " results");
+    /**
+     * Find similar document fragments using cosine similarity
+     * @param queryEmbedding The query embedding vector
+     * @param limit Maximum number of results to return
+     * @param candidates Candidate pool size passed to the search engine (efSearch for HNSW);
+     *                   the configured default is used when not positive
+     * @return List of similar document fragments with their similarity scores
+     */
+    public static List<SimilarityResult> findSimilar(Vector<Double> queryEmbedding, int limit, int candidates) throws ApplicationException {
+        return findSimilar(queryEmbedding, limit, candidates, null);
+    }
 
-            // Sort by similarity score and limit results
-            results.sort((a, b) -> Double.compare(b.similarity, a.similarity));
-            if (results.size() > limit) {
-                results = results.subList(0, limit);
+    /**
+     * Build a filter of the fragments a user may retrieve
+     * @param userId The user, or null for public fragments only
+     * @param documentIds Restrict to these documents, or null for all documents
+     * @return The filter to pass to {@link #findSimilar(Vector, int, int, FragmentFilter)}
+     */
+    public static FragmentFilter visibleTo(String userId, Collection<String> documentIds) throws ApplicationException {
+        ensureIndexLoaded();
+        return filterIndex.visibleTo(userId, documentIds);
+    }
+
+    /**
+     * Find similar document fragments using cosine similarity
+     * @param queryEmbedding The query embedding vector
+     * @param limit Maximum number of results to return
+     * @param candidates Candidate pool size passed to the search engine (efSearch for HNSW);
+     *                   the configured default is used when not positive
+     * @param filter Fragments that may be returned, or null for all; applied while candidates are generated
+     * @return List of similar document fragments with their similarity scores
+     */
+    public static List<SimilarityResult> findSimilar(Vector<Double> queryEmbedding, int limit, int candidates,
+                                                     FragmentFilter filter) throws ApplicationException {
+        List<SimilarityResult> results = new ArrayList<>();
+        try {
+            if (queryEmbedding == null) {
+                System.err.println("Error: Query embedding is null");
+                return results;
+            }
+
+            System.out.println("Finding similar documents for query embedding with dimension: " + queryEmbedding.size());
+
+            ensureIndexLoaded();
+            VectorSearchEngine engine = index;
+            if (engine.size() == 0) {
+                System.out.println("No embeddings found in vector index");
+                return results;
             }
 
+            if (engine.dimension() > 0 && engine.dimension() != queryEmbedding.size()) {
+                // The query was embedded just before a switch to another model
+                System.err.println("Warning: Query dimension " + queryEmbedding.size() + " does not match the index dimension " + engine.dimension());
+                return results;
+            }
+
+            // Score against the resident index, then load only the top fragments in one query
+            List<VectorSearchEngine.Hit> hits = engine.search(toFloatArray(queryEmbedding), limit, candidates, filter);
+            System.out.println("Searched " + (filter != null ? filter.cardinality() + " of " : "") + engine.size() +
+                    " embeddings with " + engine.name() + ", kept " + hits.size() + " candidates");
+
+            results = hydrate(hits, filter);
             System.out.println("Returning " + results.size() + " most similar documents");
         } catch (Exception e) {
             System.err.println("Failed to find similar documents: " + e.getMessage());
@@ -395,28 +1008,108 @@ public class EmbeddingManager extends AbstractApplication {
     }
 
     /**
-     * Calculate cosine similarity between two vectors
+     * Find document fragments containing the query terms, ranked by BM25.
+     * No embedding is generated, so this works while the embedding API is unavailable.
+     * @param query The query text
+     * @param limit Maximum number of results to return
+     * @param minTermShare Share of the distinct query terms a fragment must contain, from 0 to 1
+     * @param filter Fragments that may be returned, or null for all
+     * @return Matching fragments with their BM25 scores in the similarity field
      */
-    private static double cosineSimilarity(Vector<Double> v1, Vector<Double> v2) {
-        if (v1.size() != v2.size()) {
-            throw new IllegalArgumentException("Vectors must have the same dimension");
+    public static List<SimilarityResult> findLexical(String query, int limit, double minTermShare, FragmentFilter filter)
+            throws ApplicationException {
+        try {
+            ensureIndexLoaded();
+            List<VectorSearchEngine.Hit> hits = lexicalIndex.search(query, limit, minTermShare, filter);
+            System.out.println("Lexical search over " + lexicalIndex.size() + " fragments kept " + hits.size() + " candidates");
+            return hydrate(hits, filter);
+        } catch (Exception e) {
+            throw new ApplicationException("Failed to search document content: " + e.getMessage(), e);
         }
+    }
 
-        double dotProduct = 0.0;
-        double norm1 = 0.0;
-        double norm2 = 0.0;
+    /**
+     * Load the fragments of search hits in one query, keeping the hit order.
+     * A hit on a canonical fragment is shown as the fragment with the same content the filter allows.
+     */
+    private static List<SimilarityResult> hydrate(List<VectorSearchEngine.Hit> hits, FragmentFilter filter) throws ApplicationException {
+        List<String> fragmentIds = new ArrayList<>(hits.size());
+        for (VectorSearchEngine.Hit hit : hits) {
+            fragmentIds.add(filter != null ? filter.resolve(hit.fragmentId) : hit.fragmentId);
+        }
+        Map<String, DocumentFragment> fragments = FragmentCache.getInstance().getAll(fragmentIds);
+
+        List<SimilarityResult> results = new ArrayList<>(hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            VectorSearchEngine.Hit hit = hits.get(i);
+            DocumentFragment fragment = fragments.get(fragmentIds.get(i));
+            if (fragment == null) {
+                System.err.println("Warning: No document fragment found for fragment ID: " + fragmentIds.get(i));
+                continue;
+            }
 
-        for (int i = 0; i < v1.size(); i++) {
-            dotProduct += v1.get(i) * v2.get(i);
-            norm1 += v1.get(i) * v1.get(i);
-            norm2 += v2.get(i) * v2.get(i);
+            results.add(new SimilarityResult(fragment, hit.score));
         }
+        return results;
+    }
 
-        if (norm1 == 0.0 || norm2 == 0.0) {
-            return 0.0;
+    /**
+     * Look up texts in the local embedding cache. Cache failures are logged and treated as misses.
+     * @return Text to embedding vector, for the texts that are cached
+     */
+    static Map<String, Vector<Double>> readCachedEmbeddings(Collection<String> texts, String model) {
+        Map<String, Vector<Double>> embeddings = new HashMap<>();
+        EmbeddingFileCache cache = embeddingCache;
+        if (cache == null || texts.isEmpty()) {
+            return embeddings;
+        }
+
+        Map<String, String> keys = new LinkedHashMap<>();
+        for (String text : texts) {
+            keys.put(EmbeddingFileCache.key(model, text), text);
         }
 
-        return dotProduct / (Math.sqrt(norm1) * Math.sqrt(norm2));
+        try {
+            for (Map.Entry<String, float[]> entry : cache.getAll(keys.keySet()).entrySet()) {
+                Vector<Double> embedding = new Vector<>(entry.getValue().length);
+                for (float value : entry.getValue()) {
+                    embedding.add((double) value);
+                }
+                embeddings.put(keys.get(entry.getKey()), embedding);
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to read the embedding cache: " + e.getMessage());
+        }
+        return embeddings;
+    }
+
+    private static void writeCachedEmbeddings(List<String> texts, List<Vector<Double>> embeddings, String model) {
+        EmbeddingFileCache cache = embeddingCache;
+        if (cache == null) {
+            return;
+        }
+
+        Map<String, float[]> vectors = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            vectors.put(EmbeddingFileCache.key(model, texts.get(i)), toFloatArray(embeddings.get(i)));
+        }
+
+        try {
+            cache.putAll(vectors);
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to write the embedding cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Convert an embedding vector to a primitive array
+     */
+    private static float[] toFloatArray(Vector<Double> vector) {
+        float[] values = new float[vector.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = vector.get(i).floatValue();
+        }
+        return values;
     }
 
     /**
@@ -425,6 +1118,314 @@ public class EmbeddingManager extends AbstractApplication {
     @Override
     public void init() {
         this.setTemplateRequired(false);
+
+        // Chunking and embedding batches are sized in tokens, so a missing vocabulary is reported at startup
+        Tokenizer.load();
+
+        hnswM = getIntConfiguration(CONFIG_HNSW_M, hnswM);
+        hnswEfConstruction = getIntConfiguration(CONFIG_HNSW_EF_CONSTRUCTION, hnswEfConstruction);
+        hnswEfSearch = getIntConfiguration(CONFIG_HNSW_EF_SEARCH, hnswEfSearch);
+
+        String type = getConfiguration().get(CONFIG_STORAGE_TYPE);
+        storageType = "float16".equalsIgnoreCase(type != null ? type.trim() : null) ? EmbeddingCodec.FLOAT16 : EmbeddingCodec.FLOAT32;
+
+        rescoreFactor = getIntConfiguration(CONFIG_RESCORE_FACTOR, rescoreFactor);
+        batchSize = Math.max(1, getIntConfiguration(CONFIG_BATCH_SIZE, batchSize));
+        batchMaxTokens = Math.max(1, getIntConfiguration(CONFIG_BATCH_MAX_TOKENS, batchMaxTokens));
+        IngestionService.configure(getConfiguration());
+        PdfExtractor.configure(getConfiguration());
+        configureQueryCache();
+        configureEmbeddingCache();
+
+        // A completed re-embedding job stays in effect until the configured model is changed
+        String configured = getConfiguration().get(CONFIG_EMBEDDING_MODEL);
+        embeddingModel = configured != null && !configured.trim().isEmpty() ? configured.trim() : DEFAULT_EMBEDDING_MODEL;
+        reindexState = dataFile(CONFIG_REINDEX_STATE, "reindex.properties");
+        Properties state = EmbeddingReindex.readState(reindexState);
+        if (state != null && EmbeddingReindex.COMPLETED.equals(state.getProperty("status"))
+                && embeddingModel.equals(state.getProperty("from"))) {
+            embeddingModel = state.getProperty("model");
+            System.out.println("Using re-embedded model " + embeddingModel + "; set " + CONFIG_EMBEDDING_MODEL + " to it to make this permanent");
+        }
+
+        index = createEngine(embeddingModel);
+        indexLoaded = false;
+
+        try {
+            loadIndex();
+        } catch (ApplicationException e) {
+            // The index will be loaded again on the first search
+            System.err.println("Warning: " + e.getMessage());
+        }
+
+        if (state != null && EmbeddingReindex.RUNNING.equals(state.getProperty("status"))
+                && embeddingModel.equals(state.getProperty("from"))) {
+            System.out.println("Resuming re-embedding with " + state.getProperty("model"));
+            startReindex(state.getProperty("model"), Long.parseLong(state.getProperty("lastFragmentId", "0")));
+        }
+    }
+
+    /**
+     * Create the configured search engine for the embeddings of a model
+     */
+    private VectorSearchEngine createEngine(String model) {
+        String engine = getConfiguration().get(CONFIG_SEARCH_ENGINE);
+        engine = engine != null ? engine.trim().toLowerCase() : "exact";
+        if ("hnsw".equals(engine)) {
+            return new HnswIndex(hnswM, hnswEfConstruction, hnswEfSearch);
+        } else if ("int8".equals(engine)) {
+            return new QuantizedIndex(QuantizedIndex.Mode.INT8, rescoreFactor, ids -> loadEmbeddings(ids, model));
+        } else if ("mmap".equals(engine)) {
+            // Segments of other models than the default one live in a subdirectory named after the model
+            File segments = dataFile(CONFIG_SEGMENTS_DIRECTORY, "embeddings");
+            if (!DEFAULT_EMBEDDING_MODEL.equals(model)) {
+                segments = new File(segments, model.replaceAll("[^A-Za-z0-9._-]", "_"));
+            }
+            return new SegmentIndex(segments, getIntConfiguration(CONFIG_SEGMENT_ROWS, 16384));
+        } else if ("binary".equals(engine)) {
+            return new QuantizedIndex(QuantizedIndex.Mode.BINARY, rescoreFactor, ids -> loadEmbeddings(ids, model));
+        } else {
+            int partitionSize = getIntConfiguration(CONFIG_SEARCH_PARTITION_SIZE, VectorIndex.DEFAULT_PARTITION_SIZE);
+            return new VectorIndex(getSearchPool(getIntConfiguration(CONFIG_SEARCH_PARALLELISM, 0)), partitionSize);
+        }
+    }
+
+    /**
+     * Re-embed all fragments with another model in the background and switch searches to it once complete.
+     * Calling it again while the job is running only reports its progress.
+     * Options: --model (the new embedding model).
+     *
+     * @return Re-embedding status
+     */
+    @Action(value = "embedding/reindex", description = "Re-embed all fragments with another model in the background")
+    public String reindex() throws ApplicationException {
+        synchronized (EmbeddingManager.class) {
+            if (reindex == null || !reindex.isRunning()) {
+                Object model = getContext() != null ? getContext().getAttribute("--model") : null;
+                if (model == null || model.toString().trim().isEmpty()) {
+                    if (reindex != null) {
+                        return reindex.status();
+                    }
+                    throw new ApplicationException("The new embedding model is required: --model");
+                }
+                if (model.toString().trim().equals(embeddingModel)) {
+                    return "Already using " + embeddingModel;
+                }
+
+                ensureIndexLoaded();
+                startReindex(model.toString().trim(), 0);
+            }
+
+            return reindex.status();
+        }
+    }
+
+    private void startReindex(String model, long lastFragmentId) {
+        double rps = Math.max(0.1, getIntConfiguration(CONFIG_REINDEX_RPS, 2));
+        reindex = new EmbeddingReindex(this, embeddingModel, model, createEngine(model), batchSize, rps, reindexState, lastFragmentId);
+        reindex.start();
+    }
+
+    /**
+     * Make searches and new embeddings use another model and its engine
+     * @return The engine of the previous model, to be dropped with {@link #dropEngine} once the switch is recorded
+     */
+    static synchronized VectorSearchEngine switchModel(String model, VectorSearchEngine engine) {
+        VectorSearchEngine previous = index;
+        String previousModel = embeddingModel;
+        index = engine;
+        embeddingModel = model;
+        System.out.println("Switched similarity search from " + previousModel + " to " + model + " (" + engine.size() + " embeddings)");
+        return previous;
+    }
+
+    /**
+     * Close the engine of a model that is no longer searched and delete the files of a persistent one
+     */
+    static void dropEngine(VectorSearchEngine engine, String model) {
+        if (engine instanceof SegmentIndex) {
+            ((SegmentIndex) engine).clear();
+            System.out.println("Deleted the " + model + " index segments");
+        }
+        if (engine instanceof Closeable) {
+            try {
+                ((Closeable) engine).close();
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to close the " + model + " index: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compare the HNSW engine and the quantized tiers with exact search over the stored embeddings.
+     * Options: --queries (default 100), --k (default 10), --ef (comma separated efSearch values).
+     *
+     * @return Recall and latency report
+     */
+    @Action(value = "embedding/report", description = "Report recall and latency of HNSW against exact search", mode = Action.Mode.CLI)
+    public String report() throws ApplicationException {
+        int queries = getIntAttribute("--queries", 100);
+        int k = getIntAttribute("--k", 10);
+        Object ef = getContext() != null ? getContext().getAttribute("--ef") : null;
+        int[] efValues = ef != null ? IndexReport.parseEfValues(ef.toString())
+                : new int[]{k, hnswEfSearch / 2, hnswEfSearch, hnswEfSearch * 2, hnswEfSearch * 4};
+
+        return IndexReport.run(readStoredEmbeddings(), queries, k, hnswM, hnswEfConstruction, efValues, rescoreFactor);
+    }
+
+    /**
+     * Rewrite stored embeddings into the binary format in the background.
+     * Calling it again while the job is running only reports its progress.
+     * Options: --batch-size (default 500).
+     *
+     * @return Migration status
+     */
+    @Action(value = "embedding/migrate", description = "Convert stored embeddings to the binary format")
+    public String migrate() throws ApplicationException {
+        synchronized (EmbeddingManager.class) {
+            if (migration == null || !migration.isRunning()) {
+                int batchSize = getIntAttribute("--batch-size", 500);
+                migration = new EmbeddingMigration(batchSize, embeddingModel, storageType);
+                migration.start();
+            }
+
+            return migration.status();
+        }
+    }
+
+    /**
+     * Report size, hit rate and evictions of the query embedding cache
+     *
+     * @return Cache statistics
+     */
+    @Action(value = "embedding/cache", description = "Report query embedding cache statistics")
+    public String cacheStats() {
+        return queryCache.stats().toString();
+    }
+
+    /**
+     * Resolve a configured file against the data directory, which defaults to {@code data} in the working directory
+     * @param key The setting of the file
+     * @param defaultPath The file when the setting is empty
+     */
+    private File dataFile(String key, String defaultPath) {
+        String path = getConfiguration().get(key);
+        File file = new File(path != null && !path.trim().isEmpty() ? path.trim() : defaultPath);
+        if (file.isAbsolute()) {
+            return file;
+        }
+
+        String directory = getConfiguration().get(CONFIG_DATA_DIRECTORY);
+        return new File(directory != null && !directory.trim().isEmpty() ? directory.trim()
+                : System.getProperty("user.dir") + File.separator + "data", file.getPath());
+    }
+
+    private void configureQueryCache() {
+        QueryEmbeddingCache cache = new QueryEmbeddingCache(getIntConfiguration(CONFIG_QUERY_CACHE_SIZE, 1000),
+                getIntConfiguration(CONFIG_QUERY_CACHE_MAX_MB, 64) * 1024L * 1024L,
+                getIntConfiguration(CONFIG_QUERY_CACHE_TTL_MINUTES, 0) * 60_000L);
+
+        String path = getConfiguration().get(CONFIG_QUERY_CACHE_FILE);
+        File file = path != null && !path.trim().isEmpty() ? dataFile(CONFIG_QUERY_CACHE_FILE, null) : null;
+        if (file != null) {
+            try {
+                cache.load(file);
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to load query embedding cache: " + e.getMessage());
+            }
+        }
+        queryCache = cache;
+        queryCacheFile = file;
+
+        synchronized (EmbeddingManager.class) {
+            if (file != null && !queryCacheHookInstalled) {
+                queryCacheHookInstalled = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(EmbeddingManager::saveQueryCache, "query-cache-save"));
+            }
+        }
+    }
+
+    private void configureEmbeddingCache() {
+        String path = getConfiguration().get(CONFIG_EMBEDDING_CACHE_FILE);
+        EmbeddingFileCache previous = embeddingCache;
+        embeddingCache = null;
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to close the embedding cache: " + e.getMessage());
+            }
+        }
+        if (path == null || path.trim().isEmpty()) {
+            return;
+        }
+
+        EmbeddingFileCache cache = new EmbeddingFileCache(dataFile(CONFIG_EMBEDDING_CACHE_FILE, null),
+                getIntConfiguration(CONFIG_EMBEDDING_CACHE_MAX_MB, 512) * 1024L * 1024L);
+        try {
+            cache.open();
+            embeddingCache = cache;
+        } catch (IOException e) {
+            System.err.println("Warning: Embedding cache disabled: " + e.getMessage());
+        }
+    }
+
+    private static void saveQueryCache() {
+        File file = queryCacheFile;
+        if (file == null) {
+            return;
+        }
+
+        try {
+            queryCache.save(file);
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to save query embedding cache: " + e.getMessage());
+        }
+    }
+
+    private static synchronized ForkJoinPool getSearchPool(int parallelism) {
+        if (parallelism == 1) {
+            return null;
+        }
+
+        if (parallelism <= 0) {
+            return ForkJoinPool.commonPool();
+        }
+
+        if (searchPool == null || searchPool.getParallelism() != parallelism) {
+            if (searchPool != null) {
+                searchPool.shutdown();
+            }
+            searchPool = new ForkJoinPool(parallelism);
+        }
+        return searchPool;
+    }
+
+    private int getIntConfiguration(String key, int defaultValue) {
+        String value = getConfiguration().get(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Warning: Invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private int getIntAttribute(String name, int defaultValue) throws ApplicationException {
+        Object value = getContext() != null ? getContext().getAttribute(name) : null;
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new ApplicationException("Invalid value for " + name + ": " + value);
+        }
     }
 
     /**
@@ -458,17 +1459,22 @@ public class EmbeddingManager extends AbstractApplication {
      */
     public Vector<Double> generateQueryEmbedding(String query) throws ApplicationException {
         try {
-            // Check if the query embedding is already in the cache
-            if (queryEmbeddingCache.containsKey(query)) {
-                return queryEmbeddingCache.get(query);
+            String model = embeddingModel;
+            float[] cached = queryCache.get(model, query);
+            if (cached != null) {
+                Vector<Double> embedding = new Vector<>(cached.length);
+                for (float value : cached) {
+                    embedding.add((double) value);
+                }
+                return embedding;
             }
 
-            // Generate new embedding
-            Vector<Double> embedding = callOpenAIEmbeddingAPI(query);
-
-            // Cache the result for future use
-            addToCache(query, embedding);
-
+            Vector<Double> embedding = readCachedEmbeddings(Collections.singletonList(query), model).get(query);
+            if (embedding == null) {
+                embedding = callOpenAIEmbeddingAPI(Collections.singletonList(query), model).get(0);
+                writeCachedEmbeddings(Collections.singletonList(query), Collections.singletonList(embedding), model);
+            }
+            queryCache.put(model, query, toFloatArray(embedding));
             return embedding;
         } catch (Exception e) {
             throw new ApplicationException("Failed to generate query embedding: " + e.getMessage(), e);
@@ -476,26 +1482,16 @@ public class EmbeddingManager extends AbstractApplication {
     }
 
     /**
-     * Add a query and its embedding to the cache
-     * @param query The query string
-     * @param embedding The embedding vector
+     * @return The model of new embeddings and searches
      */
-    private static void addToCache(String query, Vector<Double> embedding) {
-        // Manage cache size
-        if (queryEmbeddingCache.size() >= MAX_CACHE_SIZE) {
-            // Simple LRU-like strategy: remove a random entry (first one we encounter)
-            String keyToRemove = queryEmbeddingCache.keySet().iterator().next();
-            queryEmbeddingCache.remove(keyToRemove);
-        }
-
-        // Add new entry to cache
-        queryEmbeddingCache.put(query, embedding);
+    public static String getEmbeddingModel() {
+        return embeddingModel;
     }
 
     /**
      * Clear the query embedding cache
      */
     public static void clearCache() {
-        queryEmbeddingCache.clear();
+        queryCache.clear();
     }
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+package custom.util;
+
+import custom.objects.DocumentEmbedding;
+import org.tinystruct.data.component.Table;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background job rewriting stored embeddings into the {@link EmbeddingCodec} format.
+ * Rows are read in primary key order in small batches, so the server keeps serving
+ * requests and an interrupted run can simply be started again.
+ */
+public class EmbeddingMigration implements Runnable {
+    private static final long PAUSE_BETWEEN_BATCHES_MS = 50;
+
+    private final int batchSize;
+    private final String model;
+    private final byte dataType;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private volatile long lastId;
+    private volatile int migrated;
+    private volatile int skipped;
+    private volatile int failed;
+    private volatile String error;
+
+    /**
+     * @param batchSize Number of rows read per query
+     * @param model     Model name written into the header
+     * @param dataType  Target {@link EmbeddingCodec} data type
+     */
+    public EmbeddingMigration(int batchSize, String model, byte dataType) {
+        this.batchSize = Math.max(1, batchSize);
+        this.model = model;
+        this.dataType = dataType;
+    }
+
+    /**
+     * Start the migration on a background thread
+     *
+     * @return false if it is already running
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        lastId = 0;
+        migrated = 0;
+        skipped = 0;
+        failed = 0;
+        error = null;
+
+        Thread thread = new Thread(this, "embedding-migration");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public void run() {
+        running.set(true);
+        System.out.println("Starting embedding migration with batch size " + batchSize);
+        try {
+            while (true) {
+                DocumentEmbedding model = new DocumentEmbedding();
+                Table batch = model.findWith("WHERE id > ? ORDER BY id LIMIT " + batchSize, new Object[]{lastId});
+                if (batch == null || batch.isEmpty()) {
+                    break;
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    DocumentEmbedding embedding = new DocumentEmbedding();
+                    embedding.setData(batch.get(i));
+                    lastId = Long.parseLong(embedding.getId());
+
+                    try {
+                        if (!needsRewrite(embedding.getEmbedding())) {
+                            skipped++;
+                            continue;
+                        }
+
+                        float[] values = embedding.getEmbeddingValues();
+                        // Rows of a re-embedding job in progress keep their own model
+                        String rowModel = embedding.getModel() != null ? embedding.getModel() : this.model;
+                        embedding.setEmbeddingValues(values, rowModel, dataType);
+                        embedding.update();
+                        migrated++;
+                    } catch (Exception e) {
+                        failed++;
+                        System.err.println("Failed to migrate embedding " + embedding.getId() + ": " + e.getMessage());
+                    }
+                }
+
+                System.out.println("Embedding migration progress: " + status());
+                Thread.sleep(PAUSE_BETWEEN_BATCHES_MS);
+            }
+            System.out.println("Embedding migration finished: " + status());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "interrupted";
+        } catch (Exception e) {
+            error = e.getMessage();
+            System.err.println("Embedding migration stopped: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private boolean needsRewrite(byte[] data) {
+        if (EmbeddingCodec.isLegacy(data)) {
+            return true;
+        }
+
+        return EmbeddingCodec.isEncoded(data) && EmbeddingCodec.readHeader(data).dataType != dataType;
+    }
+
+    /**
+     * @return A one-line summary of the progress
+     */
+    public String status() {
+        return (running.get() ? "running" : "idle") +
+                ", last id: " + lastId +
+                ", migrated: " + migrated +
+                ", already converted: " + skipped +
+                ", failed: " + failed +
+                (error != null ? ", error: " + error : "");
+    }
+}
@@ -0,0 +1,293 @@
+package custom.util;
+
+import custom.objects.DocumentFragment;
+import org.tinystruct.ApplicationException;
+import org.tinystruct.ApplicationRuntimeException;
+import org.tinystruct.data.component.Table;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Background job embedding every fragment with a new model into a shadow index while searches keep
+ * using the current one. Fragments are read in primary key order; after each batch the last fragment ID
+ * is written to a state file, so the job resumes after a restart, and API requests are spaced to stay
+ * within a requests-per-second budget. Once all fragments are embedded, searches switch to the new index
+ * and the index files and embeddings of the old model are deleted.
+ */
+public class EmbeddingReindex implements Runnable {
+    static final String RUNNING = "running";
+    static final String COMPLETED = "completed";
+
+    private final EmbeddingManager manager;
+    private final String fromModel;
+    private final String model;
+    private final VectorSearchEngine engine;
+    private final int batchSize;
+    private final long requestIntervalMillis;
+    private final File stateFile;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    // Fragments that took over the content of a deleted fragment after the scan passed them
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private long nextRequestAt;
+
+    private volatile long lastId;
+    private volatile int embedded;
+    private volatile int skipped;
+    private volatile boolean completed;
+    private volatile String error;
+
+    /**
+     * @param manager           Manager calling the embedding API
+     * @param fromModel         Model in use when the job started
+     * @param model             The new model
+     * @param engine            Empty engine for the new model
+     * @param batchSize         Fragments read per query
+     * @param requestsPerSecond Embedding API requests allowed per second
+     * @param stateFile         File keeping the progress across restarts
+     * @param lastId            Fragment ID to resume after, 0 to start from the beginning
+     */
+    public EmbeddingReindex(EmbeddingManager manager, String fromModel, String model, VectorSearchEngine engine,
+                            int batchSize, double requestsPerSecond, File stateFile, long lastId) {
+        this.manager = manager;
+        this.fromModel = fromModel;
+        this.model = model;
+        this.engine = engine;
+        this.batchSize = Math.max(1, batchSize);
+        this.requestIntervalMillis = (long) (1000 / requestsPerSecond);
+        this.stateFile = stateFile;
+        this.lastId = lastId;
+    }
+
+    /**
+     * Start the job on a background thread
+     *
+     * @return false if it is already running
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        Thread thread = new Thread(this, "embedding-reindex");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public void run() {
+        running.set(true);
+        System.out.println("Re-embedding fragments with " + model + " after fragment " + lastId +
+                " at most every " + requestIntervalMillis + " ms");
+        try {
+            // Vectors written by an earlier run are kept
+            if (engine instanceof SegmentIndex) {
+                ((SegmentIndex) engine).open();
+            } else {
+                EmbeddingManager.forEachStoredEmbedding(model, (fragmentId, values) -> {
+                    if (EmbeddingManager.isCanonical(fragmentId) && !engine.contains(fragmentId)) {
+                        engine.add(fragmentId, values);
+                    }
+                });
+            }
+            writeState(RUNNING);
+
+            scan();
+            VectorSearchEngine previous = EmbeddingManager.switchModel(model, engine);
+            completed = true;
+            writeState(COMPLETED);
+
+            // Nothing reads the old model's index files or rows once the switch is recorded
+            if (previous != engine) {
+                EmbeddingManager.dropEngine(previous, fromModel);
+            }
+
+            // Fragments stored while the switch happened; later ones are embedded with the new model already
+            scan();
+
+            try {
+                int dropped = EmbeddingManager.deleteEmbeddings(fromModel);
+                System.out.println("Deleted " + dropped + " " + fromModel + " embeddings");
+            } catch (ApplicationException e) {
+                System.err.println("Warning: " + e.getMessage() + "; they are no longer used and can be deleted by model");
+            }
+            System.out.println("Re-embedding finished: " + status());
+        } catch (Exception e) {
+            error = e.getMessage();
+            System.err.println("Re-embedding stopped, it resumes from fragment " + lastId + " when started again: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Drop deleted fragments from the new index and queue the fragments replacing them
+     *
+     * @param fragmentIds Deleted fragment IDs
+     * @param promotions  Pairs of deleted canonical fragment and the fragment taking over its content
+     */
+    void remove(Collection<String> fragmentIds, List<String[]> promotions) {
+        if (!running.get() || completed) {
+            return;
+        }
+
+        engine.removeAll(fragmentIds);
+        for (String[] promotion : promotions) {
+            pending.add(promotion[1]);
+        }
+    }
+
+    private void scan() throws ApplicationException, IOException {
+        while (true) {
+            embedPending();
+
+            DocumentFragment model = new DocumentFragment();
+            Table batch = model.findWith("WHERE id > ? ORDER BY id LIMIT " + batchSize, new Object[]{lastId});
+            if (batch == null || batch.isEmpty()) {
+                break;
+            }
+
+            List<DocumentFragment> fragments = new ArrayList<>(batch.size());
+            long batchLastId = lastId;
+            for (int i = 0; i < batch.size(); i++) {
+                DocumentFragment fragment = new DocumentFragment();
+                fragment.setData(batch.get(i));
+                batchLastId = Long.parseLong(fragment.getId());
+                fragments.add(fragment);
+            }
+
+            embed(fragments);
+            lastId = batchLastId;
+            if (!completed) {
+                writeState(RUNNING);
+            }
+        }
+        embedPending();
+    }
+
+    private void embedPending() throws ApplicationException {
+        List<String> ids = new ArrayList<>();
+        for (String id = pending.poll(); id != null; id = pending.poll()) {
+            ids.add(id);
+        }
+
+        if (!ids.isEmpty()) {
+            embed(new ArrayList<>(FragmentCache.getInstance().getAll(ids).values()));
+        }
+    }
+
+    /**
+     * Embed the canonical fragments not in the new index yet, reading the local embedding cache first
+     */
+    private void embed(List<DocumentFragment> fragments) throws ApplicationException {
+        Map<String, String> missing = new LinkedHashMap<>();
+        for (DocumentFragment fragment : fragments) {
+            if (EmbeddingManager.isCanonical(fragment.getId()) && !engine.contains(fragment.getId())) {
+                missing.put(fragment.getId(), fragment.getContent());
+            } else {
+                skipped++;
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        Map<String, Vector<Double>> local = EmbeddingManager.readCachedEmbeddings(missing.values(), model);
+        List<String> ids = new ArrayList<>();
+        List<Vector<Double>> vectors = new ArrayList<>();
+        List<String> requestIds = new ArrayList<>();
+        List<String> requestTexts = new ArrayList<>();
+        for (Map.Entry<String, String> entry : missing.entrySet()) {
+            Vector<Double> vector = local.get(entry.getValue());
+            if (vector != null) {
+                ids.add(entry.getKey());
+                vectors.add(vector);
+            } else {
+                requestIds.add(entry.getKey());
+                requestTexts.add(entry.getValue());
+            }
+        }
+
+        if (!requestTexts.isEmpty()) {
+            ids.addAll(requestIds);
+            vectors.addAll(manager.requestEmbeddings(requestTexts, model, this::throttle, null));
+        }
+        EmbeddingManager.saveEmbeddings(ids, vectors, model, engine);
+        embedded += ids.size();
+    }
+
+    /**
+     * Wait until the next API request fits the requests-per-second budget
+     */
+    private void throttle() {
+        long now = System.currentTimeMillis();
+        if (now < nextRequestAt) {
+            try {
+                Thread.sleep(nextRequestAt - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplicationRuntimeException("Re-embedding interrupted", e);
+            }
+        }
+        nextRequestAt = Math.max(now, nextRequestAt) + requestIntervalMillis;
+    }
+
+    private void writeState(String status) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("from", fromModel);
+        state.setProperty("model", model);
+        state.setProperty("lastFragmentId", String.valueOf(lastId));
+        state.setProperty("status", status);
+
+        File parent = stateFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        File temporary = new File(stateFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8")) {
+            state.store(writer, "Embedding re-index progress");
+        }
+        Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The progress saved by a job, or null if there is none
+     */
+    static Properties readState(File stateFile) {
+        if (stateFile == null || !stateFile.isFile()) {
+            return null;
+        }
+
+        Properties state = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(stateFile), "UTF-8")) {
+            state.load(reader);
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to read re-embedding state: " + e.getMessage());
+            return null;
+        }
+        return state.getProperty("model") != null ? state : null;
+    }
+
+    /**
+     * @return A one-line summary of the progress
+     */
+    public String status() {
+        return (running.get() ? "running" : completed ? "completed" : "stopped") +
+                ", model: " + model +
+                ", last fragment id: " + lastId +
+                ", embedded: " + embedded +
+                ", skipped: " + skipped +
+                ", indexed: " + engine.size() +
+                (error != null ? ", error: " + error : "");
+    }
+}
@@ -0,0 +1,113 @@
+package custom.util;
+
+import custom.objects.DocumentFragment;
+import org.tinystruct.ApplicationException;
+import org.tinystruct.data.component.Table;
+
+import java.util.*;
+
+/**
+ * Small LRU cache of document fragments keyed by fragment ID.
+ * Misses are loaded together with a single {@code WHERE id IN (...)} query.
+ */
+public class FragmentCache {
+    private static final int DEFAULT_CAPACITY = 512;
+    private static final FragmentCache instance = new FragmentCache(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    private final LinkedHashMap<String, DocumentFragment> fragments;
+
+    public FragmentCache(int capacity) {
+        this.capacity = capacity;
+        this.fragments = new LinkedHashMap<String, DocumentFragment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DocumentFragment> eldest) {
+                return size() > FragmentCache.this.capacity;
+            }
+        };
+    }
+
+    public static FragmentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get fragments by ID, loading the ones not cached in one query
+     *
+     * @param ids Fragment IDs
+     * @return Fragment ID to fragment, in the order of the given IDs; missing fragments are left out
+     */
+    public Map<String, DocumentFragment> getAll(Collection<String> ids) throws ApplicationException {
+        Map<String, DocumentFragment> result = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        synchronized (fragments) {
+            for (String id : ids) {
+                DocumentFragment fragment = fragments.get(id);
+                if (fragment != null) {
+                    result.put(id, fragment);
+                } else {
+                    result.put(id, null);
+                    missing.add(id);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < missing.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+
+            DocumentFragment model = new DocumentFragment();
+            Table table = model.findWith("WHERE id IN (" + placeholders + ")", missing.toArray());
+            if (table != null) {
+                for (int i = 0; i < table.size(); i++) {
+                    DocumentFragment fragment = new DocumentFragment();
+                    fragment.setData(table.get(i));
+                    result.put(fragment.getId(), fragment);
+                    put(fragment);
+                }
+            }
+        }
+
+        result.values().removeIf(Objects::isNull);
+        return result;
+    }
+
+    /**
+     * Get a fragment by ID
+     *
+     * @param id Fragment ID
+     * @return The fragment, or null if it does not exist
+     */
+    public DocumentFragment get(String id) throws ApplicationException {
+        return getAll(Collections.singletonList(id)).get(id);
+    }
+
+    public void put(DocumentFragment fragment) {
+        if (fragment == null || fragment.getId() == null) {
+            return;
+        }
+
+        synchronized (fragments) {
+            fragments.put(fragment.getId(), fragment);
+        }
+    }
+
+    /**
+     * Drop cached fragments, e.g. after their document was deleted
+     */
+    public void invalidate(Collection<String> ids) {
+        synchronized (fragments) {
+            for (String id : ids) {
+                fragments.remove(id);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (fragments) {
+            fragments.clear();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package custom.util;
+
+import org.tinystruct.ApplicationException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Groups paragraphs into fragments of a bounded token size as they arrive, so a document is never held
+ * in memory as a whole. Paragraphs are separated by blank lines; a paragraph growing past the fragment
+ * size is cut at its last line break, so memory stays proportional to the fragment size.
+ * Tokens are counted with the tokenizer of the embedding model.
+ */
+public class FragmentChunker {
+    // Characters buffered per token of the fragment size before a paragraph without blank lines is cut
+    private static final int BUFFER_CHARS_PER_TOKEN = 4;
+
+    /**
+     * Receives each completed fragment
+     */
+    public interface Sink {
+        void accept(String fragment) throws ApplicationException;
+    }
+
+    private final int maxTokens;
+    private final Tokenizer tokenizer;
+    private final Sink sink;
+
+    private StringBuilder currentFragment = new StringBuilder();
+    private int tokens;
+    private int fragments;
+
+    /**
+     * @param maxTokens Maximum tokens per fragment
+     * @param tokenizer Counts the tokens of the text
+     * @param sink      Receives each completed fragment
+     */
+    public FragmentChunker(int maxTokens, Tokenizer tokenizer, Sink sink) {
+        this.maxTokens = maxTokens;
+        this.tokenizer = tokenizer;
+        this.sink = sink;
+    }
+
+    /**
+     * Read text and add its paragraphs. Call {@link #finish()} after the last read.
+     *
+     * @param reader The text
+     */
+    public void read(Reader reader) throws IOException, ApplicationException {
+        int maxChars = maxTokens * BUFFER_CHARS_PER_TOKEN;
+        char[] buffer = new char[8192];
+        StringBuilder paragraph = new StringBuilder();
+        int lineStart = 0;
+        boolean blankLine = true;
+
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char ch = buffer[i];
+                if (ch == '\n') {
+                    if (blankLine) {
+                        // A blank line ends the paragraph
+                        if (lineStart > 0) {
+                            add(paragraph.substring(0, lineStart - 1));
+                        }
+                        paragraph.setLength(0);
+                        lineStart = 0;
+                    } else {
+                        paragraph.append('\n');
+                        lineStart = paragraph.length();
+                        blankLine = true;
+                    }
+                    continue;
+                }
+
+                paragraph.append(ch);
+                if (!Character.isWhitespace(ch)) {
+                    blankLine = false;
+                }
+
+                if (paragraph.length() >= maxChars) {
+                    // Files without blank lines, such as CSV exports and logs, are cut at line breaks
+                    int cut = paragraph.lastIndexOf("\n");
+                    if (cut <= 0) {
+                        cut = paragraph.length();
+                    }
+                    add(paragraph.substring(0, cut));
+                    // What is left is the start of the current line
+                    paragraph.delete(0, Math.min(cut + 1, paragraph.length()));
+                    lineStart = 0;
+                    blankLine = paragraph.toString().trim().isEmpty();
+                }
+            }
+        }
+
+        add(paragraph.toString());
+    }
+
+    /**
+     * Add a paragraph, emitting the current fragment when it is full
+     */
+    public void add(String paragraph) throws ApplicationException {
+        if (paragraph.trim().isEmpty()) {
+            return;
+        }
+
+        int paragraphTokens = tokenizer.count(paragraph);
+
+        // If adding this paragraph would exceed the token limit, start a new fragment
+        if (tokens + paragraphTokens > maxTokens) {
+            emitCurrent();
+
+            // If the paragraph itself is too large, split it further
+            if (paragraphTokens > maxTokens) {
+                splitLargeParagraph(paragraph);
+                return;
+            }
+        }
+
+        currentFragment.append(paragraph).append("\n\n");
+        tokens += paragraphTokens + 1; // The blank line is one token
+
+        // If we've accumulated enough text for a decent-sized fragment, save it
+        if (tokens >= maxTokens / 2) {
+            emitCurrent();
+        }
+    }
+
+    /**
+     * Mark a section boundary such as a slide or a sheet. The current fragment ends here unless it is
+     * still small, so sections are not mixed in one fragment.
+     */
+    public void section() throws ApplicationException {
+        if (tokens >= maxTokens / 4) {
+            emitCurrent();
+        }
+    }
+
+    /**
+     * Emit the remaining content as the last fragment
+     *
+     * @return Number of fragments emitted
+     */
+    public int finish() throws ApplicationException {
+        emitCurrent();
+        return fragments;
+    }
+
+    private void emitCurrent() throws ApplicationException {
+        if (currentFragment.length() > 0) {
+            emit(currentFragment.toString().trim());
+            currentFragment = new StringBuilder();
+            tokens = 0;
+        }
+    }
+
+    private void emit(String fragment) throws ApplicationException {
+        if (!fragment.isEmpty()) {
+            fragments++;
+            sink.accept(fragment);
+        }
+    }
+
+    /**
+     * Split a large paragraph into smaller fragments by sentences
+     */
+    private void splitLargeParagraph(String paragraph) throws ApplicationException {
+        // Split by sentences (period followed by space or end)
+        String[] sentences = paragraph.split("\\. ");
+
+        StringBuilder sentenceFragment = new StringBuilder();
+        int sentenceFragmentTokens = 0;
+
+        for (String sentence : sentences) {
+            // Add period back since it was removed by the split
+            if (!sentence.endsWith(".")) {
+                sentence = sentence + ". ";
+            }
+
+            int sentenceTokens = tokenizer.count(sentence);
+
+            // If adding this sentence would exceed the token limit, start a new fragment
+            if (sentenceFragmentTokens + sentenceTokens > maxTokens) {
+                if (sentenceFragment.length() > 0) {
+                    emit(sentenceFragment.toString().trim());
+                    sentenceFragment = new StringBuilder();
+                    sentenceFragmentTokens = 0;
+                }
+
+                // A sentence longer than a fragment is cut into chunks that fit
+                if (sentenceTokens > maxTokens) {
+                    System.out.println("Warning: Very long sentence detected (" + sentenceTokens + " tokens), truncating");
+                    for (int i = 0; i < sentence.length(); ) {
+                        int length = Math.max(1, tokenizer.prefixLength(sentence.substring(i), maxTokens));
+                        emit(sentence.substring(i, i + length));
+                        i += length;
+                    }
+                    continue;
+                }
+            }
+
+            sentenceFragment.append(sentence);
+            sentenceFragmentTokens += sentenceTokens;
+        }
+
+        if (sentenceFragment.length() > 0) {
+            emit(sentenceFragment.toString().trim());
+        }
+    }
+}
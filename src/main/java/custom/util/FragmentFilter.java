@@ -0,0 +1,61 @@
+package custom.util;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of fragments a search may return, built by {@link FragmentFilterIndex}.
+ * Engines check it while generating candidates, so filtered-out fragments are never scored.
+ */
+public class FragmentFilter {
+    static final int MAX_LISTED = 65536;
+
+    private final Map<String, Integer> ordinals;
+    private final BitSet allowed;
+    private final int cardinality;
+    private final List<String> fragmentIds;
+    private final Map<String, String> substitutes;
+
+    FragmentFilter(Map<String, Integer> ordinals, BitSet allowed, int cardinality, List<String> fragmentIds,
+                   Map<String, String> substitutes) {
+        this.ordinals = ordinals;
+        this.allowed = allowed;
+        this.cardinality = cardinality;
+        this.fragmentIds = fragmentIds;
+        this.substitutes = substitutes;
+    }
+
+    public boolean accept(String fragmentId) {
+        Integer ordinal = ordinals.get(fragmentId);
+        return ordinal != null && allowed.get(ordinal);
+    }
+
+    /**
+     * @return The fragment to show for an accepted fragment: itself, or a visible fragment with the same content
+     */
+    public String resolve(String fragmentId) {
+        return substitutes.getOrDefault(fragmentId, fragmentId);
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return The allowed fragment IDs, or null if there are too many to list
+     */
+    public List<String> fragmentIds() {
+        return fragmentIds;
+    }
+
+    /**
+     * Check whether scoring the allowed fragments one by one is cheaper than a filtered scan
+     *
+     * @param indexSize Number of vectors in the engine
+     * @param ratio     Largest share of the index worth scoring directly
+     */
+    public boolean isSelective(int indexSize, double ratio) {
+        return fragmentIds != null && cardinality <= indexSize * ratio;
+    }
+}
@@ -0,0 +1,325 @@
+package custom.util;
+
+import custom.objects.DocumentFragment;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Posting lists of fragment attributes used to restrict similarity search.
+ * Every fragment gets an ordinal; visibility, owner and document are kept as bitmaps over those
+ * ordinals, so building a filter is a few bitmap operations. Ordinals of removed fragments are
+ * dropped by renumbering once they outnumber the live ones; filters built before keep the old numbering.
+ * <p>Fragments with the same content hash form a group. Only the first fragment of a group, the
+ * canonical one, is kept in the search indexes; a filter allows it whenever any fragment of the
+ * group is visible and names that visible fragment as its substitute.</p>
+ */
+public class FragmentFilterIndex {
+    // Removed ordinals tolerated before renumbering, as long as they do not outnumber the live ones
+    private static final int COMPACT_MIN_REMOVED = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Replaced, never cleared, on renumbering, as filters hold on to it
+    private Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+    private final List<String> fragmentIds = new ArrayList<>();
+    private final List<String[]> attributes = new ArrayList<>();
+    private final BitSet live = new BitSet();
+    private final BitSet publicFragments = new BitSet();
+    private final Map<String, BitSet> byUser = new HashMap<>();
+    private final Map<String, BitSet> byDocument = new HashMap<>();
+    // Live ordinals of each content hash in insertion order; the first one is canonical
+    private final Map<String, List<Integer>> groups = new HashMap<>();
+    private final Set<String> duplicatedHashes = new HashSet<>();
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add or update the attributes of a fragment
+     *
+     * @return true if the fragment is the canonical one of its content group
+     */
+    public boolean put(DocumentFragment fragment) {
+        String hash = fragment.getContentHash() != null ? fragment.getContentHash() : DocumentProcessor.contentHash(fragment.getContent());
+        return put(fragment.getId(), fragment.getDocumentId(), fragment.getUserId(), fragment.getIsPublic(), hash);
+    }
+
+    public boolean put(String fragmentId, String documentId, String userId, boolean isPublic, String contentHash) {
+        if (fragmentId == null) {
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.get(fragmentId);
+            // An updated fragment keeps its place in its content group, so it stays canonical if it was
+            boolean sameGroup = ordinal != null && attributes.get(ordinal) != null
+                    && Objects.equals(attributes.get(ordinal)[2], contentHash);
+            if (ordinal != null) {
+                clearAttributes(ordinal, !sameGroup);
+            } else {
+                ordinal = fragmentIds.size();
+                fragmentIds.add(fragmentId);
+                attributes.add(null);
+                ordinals.put(fragmentId, ordinal);
+            }
+
+            attributes.set(ordinal, new String[]{documentId, userId, contentHash});
+            live.set(ordinal);
+            if (isPublic) {
+                publicFragments.set(ordinal);
+            }
+            if (userId != null) {
+                byUser.computeIfAbsent(userId, key -> new BitSet()).set(ordinal);
+            }
+            if (documentId != null) {
+                byDocument.computeIfAbsent(documentId, key -> new BitSet()).set(ordinal);
+            }
+            if (contentHash == null) {
+                return true;
+            }
+
+            List<Integer> group = groups.computeIfAbsent(contentHash, key -> new ArrayList<>(1));
+            if (!sameGroup) {
+                group.add(ordinal);
+                if (group.size() > 1) {
+                    duplicatedHashes.add(contentHash);
+                }
+            }
+            return group.get(0).equals(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The canonical fragment of the content group of a fragment, or the fragment itself if unknown
+     */
+    public String canonicalOf(String fragmentId) {
+        lock.readLock().lock();
+        try {
+            Integer ordinal = ordinals.get(fragmentId);
+            String hash = ordinal != null ? attributes.get(ordinal)[2] : null;
+            List<Integer> group = hash != null ? groups.get(hash) : null;
+            return group != null ? fragmentIds.get(group.get(0)) : fragmentId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove fragments
+     *
+     * @return Pairs of removed canonical fragment and the remaining fragment that replaces it
+     */
+    public List<String[]> removeAll(Collection<String> fragmentIds) {
+        List<String[]> promotions = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            // Canonical fragment of each affected group before any removal
+            Map<String, String> canonicals = new LinkedHashMap<>();
+            for (String fragmentId : fragmentIds) {
+                Integer ordinal = ordinals.get(fragmentId);
+                String hash = ordinal != null ? attributes.get(ordinal)[2] : null;
+                if (hash != null) {
+                    canonicals.putIfAbsent(hash, this.fragmentIds.get(groups.get(hash).get(0)));
+                }
+            }
+
+            for (String fragmentId : fragmentIds) {
+                Integer ordinal = ordinals.remove(fragmentId);
+                if (ordinal != null) {
+                    clearAttributes(ordinal, true);
+                    live.clear(ordinal);
+                    attributes.set(ordinal, null);
+                    this.fragmentIds.set(ordinal, null);
+                }
+            }
+
+            for (Map.Entry<String, String> entry : canonicals.entrySet()) {
+                List<Integer> group = groups.get(entry.getKey());
+                String canonical = group != null ? this.fragmentIds.get(group.get(0)) : null;
+                if (canonical != null && !canonical.equals(entry.getValue())) {
+                    promotions.add(new String[]{entry.getValue(), canonical});
+                }
+            }
+
+            int removed = this.fragmentIds.size() - live.cardinality();
+            if (removed >= COMPACT_MIN_REMOVED && removed > live.cardinality()) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return promotions;
+    }
+
+    /**
+     * Build a filter of the fragments a user may see: public fragments and the user's own
+     *
+     * @param userId      The user, or null for anonymous access (public fragments only)
+     * @param documentIds Restrict to these documents, or null for all documents
+     * @return The filter
+     */
+    public FragmentFilter visibleTo(String userId, Collection<String> documentIds) {
+        lock.readLock().lock();
+        try {
+            BitSet allowed = (BitSet) publicFragments.clone();
+            if (userId != null) {
+                BitSet own = byUser.get(userId);
+                if (own != null) {
+                    allowed.or(own);
+                }
+            }
+
+            if (documentIds != null) {
+                BitSet documents = new BitSet();
+                for (String documentId : documentIds) {
+                    BitSet fragments = byDocument.get(documentId);
+                    if (fragments != null) {
+                        documents.or(fragments);
+                    }
+                }
+                allowed.and(documents);
+            }
+            allowed.and(live);
+
+            // Only canonical fragments are indexed: allow the canonical one of each group with a visible
+            // fragment and remember which visible fragment stands in for it
+            Map<String, String> substitutes = new HashMap<>();
+            for (String hash : duplicatedHashes) {
+                List<Integer> group = groups.get(hash);
+                int canonical = group.get(0);
+                int visible = -1;
+                for (int ordinal : group) {
+                    if (allowed.get(ordinal)) {
+                        if (visible < 0) {
+                            visible = ordinal;
+                        }
+                        if (ordinal != canonical) {
+                            allowed.clear(ordinal);
+                        }
+                    }
+                }
+                if (visible >= 0 && visible != canonical) {
+                    allowed.set(canonical);
+                    substitutes.put(fragmentIds.get(canonical), fragmentIds.get(visible));
+                }
+            }
+
+            // Small result sets are listed so engines can score them directly instead of scanning
+            List<String> listed = null;
+            int cardinality = allowed.cardinality();
+            if (cardinality <= FragmentFilter.MAX_LISTED) {
+                listed = new ArrayList<>(cardinality);
+                for (int ordinal = allowed.nextSetBit(0); ordinal >= 0; ordinal = allowed.nextSetBit(ordinal + 1)) {
+                    listed.add(fragmentIds.get(ordinal));
+                }
+            }
+
+            return new FragmentFilter(ordinals, allowed, cardinality, listed, substitutes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ordinals = new ConcurrentHashMap<>();
+            fragmentIds.clear();
+            attributes.clear();
+            live.clear();
+            publicFragments.clear();
+            byUser.clear();
+            byDocument.clear();
+            groups.clear();
+            duplicatedHashes.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number the live fragments from 0 in their current order, so content groups keep their order
+     */
+    private void compact() {
+        int[] renumbered = new int[fragmentIds.size()];
+        Map<String, Integer> compacted = new ConcurrentHashMap<>();
+        List<String> liveIds = new ArrayList<>(live.cardinality());
+        List<String[]> liveAttributes = new ArrayList<>(live.cardinality());
+        for (int ordinal = live.nextSetBit(0); ordinal >= 0; ordinal = live.nextSetBit(ordinal + 1)) {
+            renumbered[ordinal] = liveIds.size();
+            compacted.put(fragmentIds.get(ordinal), liveIds.size());
+            liveIds.add(fragmentIds.get(ordinal));
+            liveAttributes.add(attributes.get(ordinal));
+        }
+
+        int removed = fragmentIds.size() - liveIds.size();
+        fragmentIds.clear();
+        fragmentIds.addAll(liveIds);
+        attributes.clear();
+        attributes.addAll(liveAttributes);
+        renumber(publicFragments, renumbered);
+        byUser.values().forEach(bits -> renumber(bits, renumbered));
+        byDocument.values().forEach(bits -> renumber(bits, renumbered));
+        groups.values().forEach(group -> group.replaceAll(ordinal -> renumbered[ordinal]));
+        live.clear();
+        live.set(0, liveIds.size());
+        ordinals = compacted;
+        System.out.println("Renumbered fragment filter index: dropped " + removed + " removed fragments, " + liveIds.size() + " remain");
+    }
+
+    private static void renumber(BitSet bits, int[] renumbered) {
+        BitSet moved = new BitSet();
+        for (int ordinal = bits.nextSetBit(0); ordinal >= 0; ordinal = bits.nextSetBit(ordinal + 1)) {
+            moved.set(renumbered[ordinal]);
+        }
+        bits.clear();
+        bits.or(moved);
+    }
+
+    private void clearAttributes(int ordinal, boolean leaveGroup) {
+        publicFragments.clear(ordinal);
+        String[] previous = attributes.get(ordinal);
+        if (previous == null) {
+            return;
+        }
+
+        clearPosting(byDocument, previous[0], ordinal);
+        clearPosting(byUser, previous[1], ordinal);
+
+        String hash = previous[2];
+        List<Integer> group = hash != null && leaveGroup ? groups.get(hash) : null;
+        if (group != null) {
+            group.remove(Integer.valueOf(ordinal));
+            if (group.isEmpty()) {
+                groups.remove(hash);
+            }
+            if (group.size() <= 1) {
+                duplicatedHashes.remove(hash);
+            }
+        }
+    }
+
+    private static void clearPosting(Map<String, BitSet> postings, String key, int ordinal) {
+        if (key == null) {
+            return;
+        }
+
+        BitSet bits = postings.get(key);
+        if (bits != null) {
+            bits.clear(ordinal);
+            if (bits.isEmpty()) {
+                postings.remove(key);
+            }
+        }
+    }
+}
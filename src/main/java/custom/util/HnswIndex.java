@@ -0,0 +1,590 @@
+package custom.util;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate nearest neighbour index based on Hierarchical Navigable Small World graphs
+ * (Malkov &amp; Yashunin). Vectors are normalized on insert so cosine similarity is a dot product.
+ *
+ * <ul>
+ *     <li>{@code m} - number of links per node on the upper layers (twice as many on layer 0)</li>
+ *     <li>{@code efConstruction} - candidate pool size used while linking new nodes</li>
+ *     <li>{@code efSearch} - default candidate pool size used by queries</li>
+ * </ul>
+ *
+ * Removed and replaced fragments are tombstoned and skipped in results; the graph is rebuilt once
+ * tombstones make up a large part of it.
+ */
+public class HnswIndex implements VectorSearchEngine {
+    private static final double REBUILD_TOMBSTONE_RATIO = 0.3;
+    private static final double DIRECT_FILTER_RATIO = 0.05;
+    private static final int DIRECT_FILTER_SIZE = 1000;
+
+    private final int m;
+    private final int maxLinksLayer0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> nodesByFragmentId = new HashMap<>();
+    private final List<Node> nodes = new ArrayList<>();
+
+    private int dimension;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int tombstones;
+
+    public HnswIndex(int m, int efConstruction, int efSearch) {
+        if (m < 2) {
+            throw new IllegalArgumentException("HNSW parameter M must be at least 2");
+        }
+
+        this.m = m;
+        this.maxLinksLayer0 = m * 2;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = Math.max(efSearch, 1);
+        this.levelMultiplier = 1.0 / Math.log(m);
+    }
+
+    @Override
+    public boolean add(String fragmentId, float[] vector) {
+        if (fragmentId == null || vector == null || vector.length == 0) {
+            return false;
+        }
+
+        float[] normalized = VectorMath.normalize(vector);
+        if (normalized == null) {
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (nodes.isEmpty()) {
+                dimension = vector.length;
+            }
+
+            if (vector.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Index: " + dimension +
+                        ", Vector: " + vector.length + " for fragment ID: " + fragmentId);
+                return false;
+            }
+
+            // Graph links cannot be updated in place, so a replaced vector becomes a new node
+            boolean replaced = removeNode(fragmentId);
+            insert(fragmentId, normalized);
+            if (replaced) {
+                rebuildIfNeeded();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String fragmentId) {
+        lock.writeLock().lock();
+        try {
+            boolean removed = removeNode(fragmentId);
+            rebuildIfNeeded();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int removeAll(Collection<String> fragmentIds) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (String fragmentId : fragmentIds) {
+                if (removeNode(fragmentId)) {
+                    removed++;
+                }
+            }
+            rebuildIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Find the approximate nearest neighbours of the query
+     *
+     * @param query      The query vector
+     * @param limit      Maximum number of results to return
+     * @param candidates Candidate pool size (ef); the configured efSearch is used when not positive
+     * @param filter     Fragments that may be returned, or null for all
+     * @return Hits ordered by descending similarity
+     */
+    @Override
+    public List<Hit> search(float[] query, int limit, int candidates, FragmentFilter filter) {
+        if (query == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        float[] normalized = VectorMath.normalize(query);
+        if (normalized == null) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0) {
+                return new ArrayList<>();
+            }
+
+            if (query.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Query: " + query.length +
+                        ", Index: " + dimension);
+                return new ArrayList<>();
+            }
+
+            // A graph walk rarely reaches enough allowed nodes under a restrictive filter,
+            // so small allowed sets are scored directly
+            if (filter != null && (filter.isSelective(nodesByFragmentId.size(), DIRECT_FILTER_RATIO)
+                    || (filter.fragmentIds() != null && filter.cardinality() <= DIRECT_FILTER_SIZE))) {
+                return searchDirect(normalized, limit, filter);
+            }
+
+            int ef = Math.max(candidates > 0 ? candidates : efSearch, limit);
+
+            int current = entryPoint;
+            for (int level = maxLevel; level > 0; level--) {
+                current = greedyClosest(normalized, current, level);
+            }
+
+            // Deleted nodes would take places among the ef found, so with tombstones only live nodes are counted
+            PriorityQueue<Candidate> found = filter == null && tombstones == 0
+                    ? searchLayer(normalized, current, ef, 0)
+                    : searchLayerFiltered(normalized, current, ef, filter);
+            List<Candidate> ordered = new ArrayList<>(found);
+            ordered.sort(Candidate.DESCENDING);
+
+            List<Hit> hits = new ArrayList<>(limit);
+            for (Candidate candidate : ordered) {
+                Node node = nodes.get(candidate.node);
+                if (node.deleted) {
+                    continue;
+                }
+                hits.add(new Hit(node.fragmentId, candidate.similarity));
+                if (hits.size() == limit) {
+                    break;
+                }
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String fragmentId) {
+        lock.readLock().lock();
+        try {
+            return nodesByFragmentId.containsKey(fragmentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodesByFragmentId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int dimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            nodes.clear();
+            nodesByFragmentId.clear();
+            entryPoint = -1;
+            maxLevel = -1;
+            tombstones = 0;
+            dimension = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "hnsw(M=" + m + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch + ")";
+    }
+
+    @Override
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Node node : nodes) {
+                bytes += node.vector.length * 4L;
+                for (int[] links : node.links) {
+                    bytes += links.length * 4L;
+                }
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(String fragmentId, float[] vector) {
+        int level = randomLevel();
+        int id = nodes.size();
+        Node node = new Node(fragmentId, vector, level);
+        nodes.add(node);
+        nodesByFragmentId.put(fragmentId, id);
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return;
+        }
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(vector, current, l);
+        }
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            PriorityQueue<Candidate> found = searchLayer(vector, current, efConstruction, l);
+            List<Candidate> ordered = new ArrayList<>(found);
+            ordered.sort(Candidate.DESCENDING);
+
+            int maxLinks = l == 0 ? maxLinksLayer0 : m;
+            int[] selected = selectNeighbors(ordered, m);
+            for (int neighbor : selected) {
+                node.link(l, neighbor);
+                Node other = nodes.get(neighbor);
+                other.link(l, id);
+                if (other.linkCount[l] > maxLinks) {
+                    shrinkLinks(neighbor, l, maxLinks);
+                }
+            }
+
+            current = ordered.get(0).node;
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = id;
+        }
+    }
+
+    /**
+     * Walk a single layer greedily towards the node closest to the query
+     */
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float best = VectorMath.dot(query, nodes.get(current).vector);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            Node node = nodes.get(current);
+            for (int i = 0; i < node.linkCount[level]; i++) {
+                int neighbor = node.links[level][i];
+                float similarity = VectorMath.dot(query, nodes.get(neighbor).vector);
+                if (similarity > best) {
+                    best = similarity;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Beam search on one layer, returning up to ef closest nodes as a min-heap by similarity
+     */
+    private PriorityQueue<Candidate> searchLayer(float[] query, int start, int ef, int level) {
+        BitSet visited = new BitSet(nodes.size());
+        PriorityQueue<Candidate> toVisit = new PriorityQueue<>(Candidate.DESCENDING);
+        PriorityQueue<Candidate> found = new PriorityQueue<>(Candidate.ASCENDING);
+
+        Candidate first = new Candidate(start, VectorMath.dot(query, nodes.get(start).vector));
+        visited.set(start);
+        toVisit.add(first);
+        found.add(first);
+
+        while (!toVisit.isEmpty()) {
+            Candidate closest = toVisit.poll();
+            if (found.size() >= ef && closest.similarity < found.peek().similarity) {
+                break;
+            }
+
+            Node node = nodes.get(closest.node);
+            for (int i = 0; i < node.linkCount[level]; i++) {
+                int neighbor = node.links[level][i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+
+                float similarity = VectorMath.dot(query, nodes.get(neighbor).vector);
+                if (found.size() < ef || similarity > found.peek().similarity) {
+                    Candidate candidate = new Candidate(neighbor, similarity);
+                    toVisit.add(candidate);
+                    found.add(candidate);
+                    if (found.size() > ef) {
+                        found.poll();
+                    }
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Beam search on layer 0 that walks through every node but only collects live nodes accepted
+     * by the filter, returning up to ef of them as a min-heap by similarity
+     *
+     * @param filter Fragments that may be collected, or null for all live ones
+     */
+    private PriorityQueue<Candidate> searchLayerFiltered(float[] query, int start, int ef, FragmentFilter filter) {
+        BitSet visited = new BitSet(nodes.size());
+        PriorityQueue<Candidate> toVisit = new PriorityQueue<>(Candidate.DESCENDING);
+        PriorityQueue<Candidate> beam = new PriorityQueue<>(Candidate.ASCENDING);
+        PriorityQueue<Candidate> accepted = new PriorityQueue<>(Candidate.ASCENDING);
+
+        Candidate first = new Candidate(start, VectorMath.dot(query, nodes.get(start).vector));
+        visited.set(start);
+        toVisit.add(first);
+        beam.add(first);
+        collect(accepted, first, ef, filter);
+
+        while (!toVisit.isEmpty()) {
+            Candidate closest = toVisit.poll();
+            if (beam.size() >= ef && accepted.size() >= ef && closest.similarity < accepted.peek().similarity) {
+                break;
+            }
+
+            Node node = nodes.get(closest.node);
+            for (int i = 0; i < node.linkCount[0]; i++) {
+                int neighbor = node.links[0][i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+
+                float similarity = VectorMath.dot(query, nodes.get(neighbor).vector);
+                Candidate candidate = new Candidate(neighbor, similarity);
+                collect(accepted, candidate, ef, filter);
+                if (beam.size() < ef || similarity > beam.peek().similarity || accepted.size() < ef) {
+                    toVisit.add(candidate);
+                    beam.add(candidate);
+                    if (beam.size() > ef) {
+                        beam.poll();
+                    }
+                }
+            }
+        }
+
+        return accepted;
+    }
+
+    private void collect(PriorityQueue<Candidate> accepted, Candidate candidate, int ef, FragmentFilter filter) {
+        Node node = nodes.get(candidate.node);
+        if (node.deleted || filter != null && !filter.accept(node.fragmentId)) {
+            return;
+        }
+
+        if (accepted.size() < ef) {
+            accepted.add(candidate);
+        } else if (candidate.similarity > accepted.peek().similarity) {
+            accepted.poll();
+            accepted.add(candidate);
+        }
+    }
+
+    /**
+     * Score the allowed fragments one by one
+     */
+    private List<Hit> searchDirect(float[] query, int limit, FragmentFilter filter) {
+        PriorityQueue<Candidate> found = new PriorityQueue<>(Candidate.ASCENDING);
+        for (String fragmentId : filter.fragmentIds()) {
+            Integer id = nodesByFragmentId.get(fragmentId);
+            if (id == null) {
+                continue;
+            }
+
+            float similarity = VectorMath.dot(query, nodes.get(id).vector);
+            if (found.size() < limit) {
+                found.add(new Candidate(id, similarity));
+            } else if (similarity > found.peek().similarity) {
+                found.poll();
+                found.add(new Candidate(id, similarity));
+            }
+        }
+
+        List<Candidate> ordered = new ArrayList<>(found);
+        ordered.sort(Candidate.DESCENDING);
+        List<Hit> hits = new ArrayList<>(ordered.size());
+        for (Candidate candidate : ordered) {
+            hits.add(new Hit(nodes.get(candidate.node).fragmentId, candidate.similarity));
+        }
+        return hits;
+    }
+
+    /**
+     * Neighbour selection heuristic: keep a candidate only if it is closer to the base node than
+     * to any neighbour already selected, then top up with the closest pruned candidates.
+     *
+     * @param ordered Candidates ordered by descending similarity to the base node
+     * @param count   Number of neighbours to select
+     */
+    private int[] selectNeighbors(List<Candidate> ordered, int count) {
+        List<Candidate> selected = new ArrayList<>(count);
+        List<Candidate> pruned = new ArrayList<>();
+        for (Candidate candidate : ordered) {
+            if (selected.size() >= count) {
+                break;
+            }
+
+            boolean diverse = true;
+            float[] vector = nodes.get(candidate.node).vector;
+            for (Candidate chosen : selected) {
+                if (VectorMath.dot(vector, nodes.get(chosen.node).vector) > candidate.similarity) {
+                    diverse = false;
+                    break;
+                }
+            }
+
+            if (diverse) {
+                selected.add(candidate);
+            } else {
+                pruned.add(candidate);
+            }
+        }
+
+        for (int i = 0; i < pruned.size() && selected.size() < count; i++) {
+            selected.add(pruned.get(i));
+        }
+
+        int[] result = new int[selected.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = selected.get(i).node;
+        }
+        return result;
+    }
+
+    private void shrinkLinks(int id, int level, int maxLinks) {
+        Node node = nodes.get(id);
+        List<Candidate> ordered = new ArrayList<>(node.linkCount[level]);
+        for (int i = 0; i < node.linkCount[level]; i++) {
+            int neighbor = node.links[level][i];
+            ordered.add(new Candidate(neighbor, VectorMath.dot(node.vector, nodes.get(neighbor).vector)));
+        }
+        ordered.sort(Candidate.DESCENDING);
+
+        int[] selected = selectNeighbors(ordered, maxLinks);
+        node.linkCount[level] = 0;
+        for (int neighbor : selected) {
+            node.link(level, neighbor);
+        }
+    }
+
+    private boolean removeNode(String fragmentId) {
+        Integer id = nodesByFragmentId.remove(fragmentId);
+        if (id == null) {
+            return false;
+        }
+
+        // Keep the node as a routing point; it is skipped in results
+        nodes.get(id).deleted = true;
+        tombstones++;
+        return true;
+    }
+
+    private void rebuildIfNeeded() {
+        if (tombstones == 0 || tombstones < nodes.size() * REBUILD_TOMBSTONE_RATIO) {
+            return;
+        }
+
+        System.out.println("Rebuilding HNSW graph: " + tombstones + " of " + nodes.size() + " nodes are deleted");
+        List<Node> live = new ArrayList<>(nodesByFragmentId.size());
+        for (Node node : nodes) {
+            if (!node.deleted) {
+                live.add(node);
+            }
+        }
+
+        nodes.clear();
+        nodesByFragmentId.clear();
+        entryPoint = -1;
+        maxLevel = -1;
+        tombstones = 0;
+        for (Node node : live) {
+            insert(node.fragmentId, node.vector);
+        }
+    }
+
+    private int randomLevel() {
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return (int) Math.floor(-Math.log(random) * levelMultiplier);
+    }
+
+    private final class Node {
+        final String fragmentId;
+        final float[] vector;
+        final int[][] links;
+        final int[] linkCount;
+        boolean deleted;
+
+        Node(String fragmentId, float[] vector, int level) {
+            this.fragmentId = fragmentId;
+            this.vector = vector;
+            this.links = new int[level + 1][];
+            this.linkCount = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                // One spare slot so a link can be added before the list is shrunk
+                this.links[l] = new int[(l == 0 ? maxLinksLayer0 : m) + 1];
+            }
+        }
+
+        void link(int level, int neighbor) {
+            for (int i = 0; i < linkCount[level]; i++) {
+                if (links[level][i] == neighbor) {
+                    return;
+                }
+            }
+            links[level][linkCount[level]++] = neighbor;
+        }
+    }
+
+    private static final class Candidate {
+        static final Comparator<Candidate> ASCENDING = Comparator.comparingDouble(candidate -> candidate.similarity);
+        static final Comparator<Candidate> DESCENDING = ASCENDING.reversed();
+
+        final int node;
+        final float similarity;
+
+        Candidate(int node, float similarity) {
+            this.node = node;
+            this.similarity = similarity;
+        }
+    }
+}
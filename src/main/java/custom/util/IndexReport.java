@@ -0,0 +1,170 @@
+package custom.util;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Recall, latency and memory report of the search engines.
+ * Exact search results are used as ground truth; recall@k is the share of the exact top-k
+ * returned by HNSW for each efSearch value and by the int8 and binary quantized tiers.
+ */
+public class IndexReport {
+
+    /**
+     * Build the engines over the given vectors and measure them with sampled queries
+     *
+     * @param vectors        Fragment ID to embedding vector
+     * @param queries        Number of stored vectors to sample as queries
+     * @param k              Number of results per query
+     * @param m              HNSW links per node
+     * @param efConstruction HNSW candidate pool size while building
+     * @param efValues       efSearch values to measure
+     * @param rescoreFactor  Candidates rescored per result by the quantized tiers
+     * @return Plain text report
+     */
+    public static String run(Map<String, float[]> vectors, int queries, int k, int m, int efConstruction,
+                             int[] efValues, int rescoreFactor) {
+        StringBuilder report = new StringBuilder();
+        if (vectors.isEmpty()) {
+            return "No embeddings available for the report\n";
+        }
+
+        Function<Collection<String>, Map<String, float[]>> loader = ids -> {
+            Map<String, float[]> found = new HashMap<>();
+            for (String id : ids) {
+                found.put(id, vectors.get(id));
+            }
+            return found;
+        };
+
+        List<VectorSearchEngine> engines = Arrays.asList(
+                new VectorIndex(),
+                new HnswIndex(m, efConstruction, efValues.length > 0 ? efValues[0] : k),
+                new QuantizedIndex(QuantizedIndex.Mode.INT8, rescoreFactor, null),
+                new QuantizedIndex(QuantizedIndex.Mode.INT8, rescoreFactor, loader),
+                new QuantizedIndex(QuantizedIndex.Mode.BINARY, rescoreFactor, null),
+                new QuantizedIndex(QuantizedIndex.Mode.BINARY, rescoreFactor, loader));
+        String[] labels = {"exact", "hnsw", "int8", "int8+rescore", "binary", "binary+rescore"};
+
+        long[] buildTimes = new long[engines.size()];
+        for (int e = 0; e < engines.size(); e++) {
+            long start = System.nanoTime();
+            for (Map.Entry<String, float[]> entry : vectors.entrySet()) {
+                engines.get(e).add(entry.getKey(), entry.getValue());
+            }
+            buildTimes[e] = System.nanoTime() - start;
+        }
+
+        List<float[]> all = new ArrayList<>(vectors.values());
+        Collections.shuffle(all, new Random(42));
+        List<float[]> sample = all.subList(0, Math.min(queries, all.size()));
+
+        VectorSearchEngine exact = engines.get(0);
+        report.append("Vectors: ").append(vectors.size())
+                .append(", dimension: ").append(exact.dimension())
+                .append(", queries: ").append(sample.size())
+                .append(", k: ").append(k)
+                .append(", rescore factor: ").append(rescoreFactor).append('\n');
+        report.append(String.format("%-20s %10s %12s %12s %12s %12s%n",
+                "engine", "recall@" + k, "mean (ms)", "p95 (ms)", "memory (MB)", "build (ms)"));
+
+        List<Set<String>> truth = new ArrayList<>(sample.size());
+        for (float[] query : sample) {
+            Set<String> ids = new HashSet<>();
+            for (VectorSearchEngine.Hit hit : exact.search(query, k, 0)) {
+                ids.add(hit.fragmentId);
+            }
+            truth.add(ids);
+        }
+
+        for (int e = 0; e < engines.size(); e++) {
+            VectorSearchEngine engine = engines.get(e);
+            int[] pools = engine instanceof HnswIndex ? efValues : new int[]{0};
+            for (int pool : pools) {
+                String label = engine instanceof HnswIndex ? labels[e] + " ef=" + pool : labels[e];
+                report.append(measure(engine, label, sample, truth, k, pool, buildTimes[e]));
+            }
+        }
+
+        return report.toString();
+    }
+
+    private static String measure(VectorSearchEngine engine, String label, List<float[]> sample,
+                                  List<Set<String>> truth, int k, int candidates, long buildTime) {
+        long[] latencies = new long[sample.size()];
+        double recall = 0;
+        for (int i = 0; i < sample.size(); i++) {
+            long start = System.nanoTime();
+            List<VectorSearchEngine.Hit> hits = engine.search(sample.get(i), k, candidates);
+            latencies[i] = System.nanoTime() - start;
+
+            Set<String> expected = truth.get(i);
+            int matched = 0;
+            for (VectorSearchEngine.Hit hit : hits) {
+                if (expected.contains(hit.fragmentId)) {
+                    matched++;
+                }
+            }
+            recall += expected.isEmpty() ? 1.0 : (double) matched / expected.size();
+        }
+
+        return String.format("%-20s %10.4f %12.3f %12.3f %12.1f %12.1f%n", label,
+                recall / sample.size(), mean(latencies) / 1e6, percentile(latencies, 0.95) / 1e6,
+                engine.memoryBytes() / (1024.0 * 1024.0), buildTime / 1e6);
+    }
+
+    /**
+     * Parse a comma separated list of efSearch values
+     */
+    public static int[] parseEfValues(String values) {
+        String[] parts = values.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    private static double mean(long[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static long percentile(long[] values, double percentile) {
+        if (values.length == 0) {
+            return 0;
+        }
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Run the report on random vectors, e.g. {@code java custom.util.IndexReport 20000 1536}
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 1536;
+
+        Random random = new Random(7);
+        Map<String, float[]> vectors = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[dimension];
+            for (int j = 0; j < dimension; j++) {
+                vector[j] = (float) random.nextGaussian();
+            }
+            vectors.put("fragment-" + i, vector);
+        }
+
+        System.out.println(run(vectors, 200, 10, 16, 200, new int[]{16, 32, 64, 128, 256}, 4));
+    }
+}
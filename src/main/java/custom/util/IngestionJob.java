@@ -0,0 +1,147 @@
+package custom.util;
+
+import org.tinystruct.data.component.Builder;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * An uploaded document waiting for or going through ingestion by {@link IngestionService}.
+ * The stage and counters are updated by the worker and read by status requests.
+ */
+public class IngestionJob {
+    public enum Status {
+        QUEUED, EXTRACTING, STORING, EMBEDDING, COMPLETED, FAILED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String filePath;
+    private final String mimeType;
+    private final String userId;
+    private final String title;
+    private final String description;
+    private final boolean isPublic;
+    private final long createdAt = System.currentTimeMillis();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile String documentId;
+    private volatile int fragmentCount;
+    private volatile int embeddedCount;
+    private volatile String error;
+    private volatile long finishedAt;
+
+    public IngestionJob(String filePath, String mimeType, String userId, String title, String description, boolean isPublic) {
+        this.filePath = filePath;
+        this.mimeType = mimeType;
+        this.userId = userId;
+        this.title = title;
+        this.description = description;
+        this.isPublic = isPublic;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public boolean isPublic() {
+        return isPublic;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    void setStatus(Status status) {
+        this.status = status;
+        if (status == Status.COMPLETED || status == Status.FAILED) {
+            this.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    void setDocumentId(String documentId) {
+        this.documentId = documentId;
+    }
+
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    void setFragmentCount(int fragmentCount) {
+        this.fragmentCount = fragmentCount;
+    }
+
+    public int getEmbeddedCount() {
+        return embeddedCount;
+    }
+
+    void setEmbeddedCount(int embeddedCount) {
+        this.embeddedCount = embeddedCount;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * @return The job state as a JSON builder for status responses and events
+     */
+    public Builder toBuilder() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+
+        Builder builder = new Builder();
+        builder.put("id", id);
+        builder.put("title", title);
+        builder.put("status", status.name().toLowerCase(Locale.ROOT));
+        builder.put("fragmentCount", fragmentCount);
+        builder.put("embeddedCount", embeddedCount);
+        builder.put("createdAt", format.format(new Date(createdAt)));
+        if (documentId != null) {
+            builder.put("documentId", documentId);
+        }
+        if (finishedAt > 0) {
+            builder.put("finishedAt", format.format(new Date(finishedAt)));
+        }
+        if (error != null) {
+            builder.put("error", error);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,197 @@
+package custom.util;
+
+import custom.objects.DocumentFragment;
+import org.tinystruct.ApplicationException;
+import org.tinystruct.system.ApplicationManager;
+import org.tinystruct.system.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs document ingestion off the request threads.
+ * Uploads are queued as {@link IngestionJob}s and processed by a bounded worker pool in stages:
+ * extract the text and cut it into fragments, store and index the fragments, then embed them in batches.
+ * A job that fails leaves nothing behind: the fragments and embeddings it stored are deleted again.
+ */
+public class IngestionService {
+    // Background document ingestion workers and the number of uploads that may wait for them
+    public static final String CONFIG_WORKERS = "ingestion.workers";
+    public static final String CONFIG_QUEUE_CAPACITY = "ingestion.queue_capacity";
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+    // Fragments embedded together while a document is streamed
+    private static final int EMBEDDING_GROUP_SIZE = 256;
+    // Finished jobs stay available to status requests for this long
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static volatile IngestionService instance;
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService evictor;
+    private final Map<String, IngestionJob> jobs = new ConcurrentHashMap<>();
+
+    private IngestionService(int workers, int queueCapacity) {
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "ingestion-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ingestion-evict");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static IngestionService getInstance() {
+        if (instance == null) {
+            configure(DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY);
+        }
+        return instance;
+    }
+
+    /**
+     * Create the shared service from the {@value #CONFIG_WORKERS} and {@value #CONFIG_QUEUE_CAPACITY} settings,
+     * unless it already exists
+     */
+    public static void configure(Configuration<String> configuration) {
+        configure(getIntConfiguration(configuration, CONFIG_WORKERS, DEFAULT_WORKERS),
+                getIntConfiguration(configuration, CONFIG_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY));
+    }
+
+    /**
+     * Create the shared service with the given pool size, unless it already exists
+     */
+    public static synchronized void configure(int workers, int queueCapacity) {
+        if (instance == null) {
+            instance = new IngestionService(Math.max(1, workers), Math.max(1, queueCapacity));
+        }
+    }
+
+    /**
+     * Queue a job
+     *
+     * @param job      The job
+     * @param listener Called on the worker thread once the job has completed or failed, may be null
+     * @return The job
+     * @throws ApplicationException if the queue is full
+     */
+    public IngestionJob submit(IngestionJob job, Consumer<IngestionJob> listener) throws ApplicationException {
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(() -> run(job, listener));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            throw new ApplicationException("Too many documents are being processed, please try again later");
+        }
+
+        System.out.println("Queued ingestion job " + job.getId() + " for " + job.getFilePath() +
+                " (" + executor.getQueue().size() + " waiting)");
+        return job;
+    }
+
+    public IngestionJob getJob(String id) {
+        return id != null ? jobs.get(id) : null;
+    }
+
+    private void run(IngestionJob job, Consumer<IngestionJob> listener) {
+        try {
+            DocumentProcessor processor = new DocumentProcessor();
+            EmbeddingManager manager = (EmbeddingManager) ApplicationManager.get(EmbeddingManager.class.getName());
+            if (manager == null) {
+                throw new ApplicationException("EmbeddingManager not found");
+            }
+
+            // Fragments are stored as they are cut and embedded in groups, so only one group is held in memory
+            job.setStatus(IngestionJob.Status.EXTRACTING);
+            List<DocumentFragment> group = new ArrayList<>(EMBEDDING_GROUP_SIZE);
+            int count = processor.streamFragments(job.getFilePath(), job.getMimeType(), job.getUserId(), job.getTitle(),
+                    job.getDescription(), job.isPublic(), fragment -> {
+                        if (job.getDocumentId() == null) {
+                            job.setDocumentId(fragment.getDocumentId());
+                        }
+                        // Stored fragments are searchable by keyword before their embeddings exist
+                        job.setStatus(IngestionJob.Status.STORING);
+                        fragment.appendAndGetId();
+                        EmbeddingManager.indexFragment(fragment);
+                        job.setFragmentCount(job.getFragmentCount() + 1);
+
+                        group.add(fragment);
+                        if (group.size() >= EMBEDDING_GROUP_SIZE) {
+                            embed(manager, job, group);
+                        }
+                    });
+            if (count == 0) {
+                throw new ApplicationException("Failed to extract content from document");
+            }
+            embed(manager, job, group);
+
+            job.setStatus(IngestionJob.Status.COMPLETED);
+            System.out.println("Ingestion job " + job.getId() + " completed with " + count + " fragments");
+        } catch (Exception e) {
+            System.err.println("Ingestion job " + job.getId() + " failed: " + e.getMessage());
+            e.printStackTrace();
+            discard(job);
+            job.setError(e.getMessage());
+            job.setStatus(IngestionJob.Status.FAILED);
+        }
+        evictor.schedule(() -> jobs.remove(job.getId()), RETENTION_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (listener != null) {
+            try {
+                listener.accept(job);
+            } catch (RuntimeException e) {
+                System.err.println("Warning: Ingestion listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void embed(EmbeddingManager manager, IngestionJob job, List<DocumentFragment> group) throws ApplicationException {
+        if (group.isEmpty()) {
+            return;
+        }
+
+        job.setStatus(IngestionJob.Status.EMBEDDING);
+        int done = job.getEmbeddedCount();
+        manager.generateEmbeddings(group, embedded -> job.setEmbeddedCount(done + embedded));
+        job.setEmbeddedCount(done + group.size());
+        group.clear();
+    }
+
+    /**
+     * Delete what a failed job stored, so a half-ingested document is not searchable
+     */
+    private static void discard(IngestionJob job) {
+        if (job.getDocumentId() == null) {
+            return;
+        }
+
+        try {
+            int deleted = EmbeddingManager.deleteDocument(job.getDocumentId());
+            System.out.println("Deleted " + deleted + " fragments of failed ingestion job " + job.getId());
+        } catch (ApplicationException e) {
+            System.err.println("Warning: Failed to delete fragments of failed ingestion job " + job.getId() + ": " + e.getMessage());
+        }
+    }
+
+    static int getIntConfiguration(Configuration<String> configuration, String key, int defaultValue) {
+        String value = configuration != null ? configuration.get(key) : null;
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Warning: Invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+}
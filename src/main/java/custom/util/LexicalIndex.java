@@ -0,0 +1,315 @@
+package custom.util;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index over fragment content with BM25 scoring.
+ * Identifiers such as {@code java.lang.String}, {@code ERR_CONNECTION_RESET} or {@code ls -la}
+ * are indexed both as a whole and as their parts, so exact identifiers in a question match.
+ */
+public class LexicalIndex {
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    // Removed ordinals tolerated before renumbering, as long as they do not outnumber the live ones
+    private static final int COMPACT_MIN_REMOVED = 1024;
+
+    // Words joined by '.', '-', ':', '/' or '#' form one compound token
+    private static final Pattern TOKEN = Pattern.compile("[\\p{L}\\p{N}_]+(?:[.\\-:/#][\\p{L}\\p{N}_]+)*");
+    private static final Pattern PART = Pattern.compile("[.\\-:/#]");
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "can", "do", "does", "for", "from", "has",
+            "have", "how", "i", "if", "in", "into", "is", "it", "its", "me", "my", "no", "not", "of", "on", "or",
+            "so", "that", "the", "their", "then", "there", "these", "this", "to", "was", "we", "what", "when",
+            "which", "who", "why", "will", "with", "you", "your"));
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final Map<String, Posting> postings = new HashMap<>();
+    // Indexed by ordinal; new fragments take the next ordinal, so postings stay sorted by ordinal
+    private final List<String> fragmentIds = new ArrayList<>();
+    private final List<String[]> documentTerms = new ArrayList<>();
+    private int[] lengths = new int[1024];
+    private long totalLength;
+    private int documentCount;
+
+    /**
+     * Index the content of a fragment, replacing any previous content
+     */
+    public void put(String fragmentId, String content) {
+        if (fragmentId == null) {
+            return;
+        }
+
+        Map<String, Integer> frequencies = new HashMap<>();
+        int length = 0;
+        for (String term : tokenize(content)) {
+            frequencies.merge(term, 1, Integer::sum);
+            length++;
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeFragment(fragmentId);
+            if (frequencies.isEmpty()) {
+                return;
+            }
+
+            int ordinal = fragmentIds.size();
+            fragmentIds.add(fragmentId);
+            documentTerms.add(frequencies.keySet().toArray(new String[0]));
+            if (ordinal == lengths.length) {
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+            lengths[ordinal] = length;
+            ordinals.put(fragmentId, ordinal);
+            totalLength += length;
+            documentCount++;
+
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), key -> new Posting()).add(ordinal, entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int removeAll(Collection<String> fragmentIds) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (String fragmentId : fragmentIds) {
+                if (removeFragment(fragmentId)) {
+                    removed++;
+                }
+            }
+
+            int unused = this.fragmentIds.size() - documentCount;
+            if (unused >= COMPACT_MIN_REMOVED && unused > documentCount) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Move the indexed content of a fragment to another fragment with the same content
+     */
+    public void rename(String fragmentId, String newFragmentId) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinals.remove(fragmentId);
+            if (ordinal != null) {
+                removeFragment(newFragmentId);
+                fragmentIds.set(ordinal, newFragmentId);
+                ordinals.put(newFragmentId, ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rank fragments by BM25 against the query terms
+     *
+     * @param query        The query text
+     * @param limit        Maximum number of results to return
+     * @param minTermShare Share of the distinct query terms a fragment must contain, from 0 to 1
+     * @param filter       Fragments that may be returned, or null for all
+     * @return Hits ordered by descending BM25 score
+     */
+    public List<VectorSearchEngine.Hit> search(String query, int limit, double minTermShare, FragmentFilter filter) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            if (documentCount == 0) {
+                return new ArrayList<>();
+            }
+
+            float averageLength = (float) totalLength / documentCount;
+            int minTerms = Math.max(1, (int) Math.ceil(minTermShare * terms.size()));
+            // Score and number of matched query terms by ordinal
+            Map<Integer, float[]> scores = new HashMap<>();
+            for (String term : terms) {
+                Posting posting = postings.get(term);
+                if (posting == null) {
+                    continue;
+                }
+
+                float idf = (float) Math.log(1 + (documentCount - posting.size + 0.5) / (posting.size + 0.5));
+                for (int i = 0; i < posting.size; i++) {
+                    int ordinal = posting.ordinals[i];
+                    float frequency = posting.frequencies[i];
+                    float norm = K1 * (1 - B + B * lengths[ordinal] / averageLength);
+                    float[] score = scores.computeIfAbsent(ordinal, key -> new float[2]);
+                    score[0] += idf * frequency * (K1 + 1) / (frequency + norm);
+                    score[1]++;
+                }
+            }
+
+            PriorityQueue<VectorSearchEngine.Hit> heap = new PriorityQueue<>(limit + 1, VectorSearchEngine.Hit.ASCENDING);
+            for (Map.Entry<Integer, float[]> entry : scores.entrySet()) {
+                String fragmentId = fragmentIds.get(entry.getKey());
+                float score = entry.getValue()[0];
+                if (entry.getValue()[1] < minTerms || filter != null && !filter.accept(fragmentId)) {
+                    continue;
+                }
+
+                if (heap.size() < limit) {
+                    heap.add(new VectorSearchEngine.Hit(fragmentId, score));
+                } else if (score > heap.peek().score) {
+                    heap.poll();
+                    heap.add(new VectorSearchEngine.Hit(fragmentId, score));
+                }
+            }
+
+            List<VectorSearchEngine.Hit> hits = new ArrayList<>(heap);
+            hits.sort(VectorSearchEngine.Hit.ASCENDING.reversed());
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ordinals.clear();
+            postings.clear();
+            fragmentIds.clear();
+            documentTerms.clear();
+            lengths = new int[1024];
+            totalLength = 0;
+            documentCount = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Split text into lowercase terms. A compound token is emitted together with its parts.
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return terms;
+        }
+
+        Matcher matcher = TOKEN.matcher(text.toLowerCase(Locale.ROOT));
+        while (matcher.find()) {
+            String token = matcher.group();
+            if (!STOP_WORDS.contains(token)) {
+                terms.add(token);
+            }
+
+            if (PART.matcher(token).find()) {
+                for (String part : PART.split(token)) {
+                    if (!part.isEmpty() && !STOP_WORDS.contains(part)) {
+                        terms.add(part);
+                    }
+                }
+            }
+        }
+        return terms;
+    }
+
+    private boolean removeFragment(String fragmentId) {
+        Integer ordinal = ordinals.remove(fragmentId);
+        if (ordinal == null) {
+            return false;
+        }
+
+        for (String term : documentTerms.get(ordinal)) {
+            Posting posting = postings.get(term);
+            if (posting != null && posting.remove(ordinal) && posting.size == 0) {
+                postings.remove(term);
+            }
+        }
+
+        documentTerms.set(ordinal, null);
+        fragmentIds.set(ordinal, null);
+        totalLength -= lengths[ordinal];
+        documentCount--;
+        return true;
+    }
+
+    /**
+     * Number the indexed fragments from 0 in their current order, which keeps the postings sorted
+     */
+    private void compact() {
+        int[] renumbered = new int[fragmentIds.size()];
+        int next = 0;
+        for (int ordinal = 0; ordinal < fragmentIds.size(); ordinal++) {
+            String fragmentId = fragmentIds.get(ordinal);
+            if (fragmentId == null) {
+                continue;
+            }
+
+            renumbered[ordinal] = next;
+            fragmentIds.set(next, fragmentId);
+            documentTerms.set(next, documentTerms.get(ordinal));
+            lengths[next] = lengths[ordinal];
+            ordinals.put(fragmentId, next);
+            next++;
+        }
+
+        int removed = fragmentIds.size() - next;
+        fragmentIds.subList(next, fragmentIds.size()).clear();
+        documentTerms.subList(next, documentTerms.size()).clear();
+        lengths = Arrays.copyOf(lengths, Math.max(1024, next));
+        for (Posting posting : postings.values()) {
+            for (int i = 0; i < posting.size; i++) {
+                posting.ordinals[i] = renumbered[posting.ordinals[i]];
+            }
+        }
+        System.out.println("Renumbered lexical index: dropped " + removed + " removed fragments, " + next + " remain");
+    }
+
+    /**
+     * Ordinals containing a term with the term frequency in each, sorted by ordinal
+     */
+    private static final class Posting {
+        int[] ordinals = new int[4];
+        int[] frequencies = new int[4];
+        int size;
+
+        void add(int ordinal, int frequency) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            ordinals[size] = ordinal;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        boolean remove(int ordinal) {
+            int index = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (index < 0) {
+                return false;
+            }
+
+            System.arraycopy(ordinals, index + 1, ordinals, index, size - index - 1);
+            System.arraycopy(frequencies, index + 1, frequencies, index, size - index - 1);
+            size--;
+            return true;
+        }
+    }
+}
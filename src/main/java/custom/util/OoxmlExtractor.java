@@ -0,0 +1,567 @@
+package custom.util;
+
+import org.tinystruct.ApplicationException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Streaming text extractor for Office Open XML documents (docx, xlsx and pptx).
+ * Parts are read with StAX straight from the zip entries, so the XML is never held as a string and
+ * multi-byte characters are decoded by the parser. Paragraphs, table rows and spreadsheet rows are emitted
+ * one at a time, and every slide and sheet starts a new section, so the chunker can keep them together.
+ */
+public class OoxmlExtractor {
+    private static final String WORD = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final String DRAWING = "http://schemas.openxmlformats.org/drawingml/2006/main";
+    private static final String SPREADSHEET = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String MARKUP_COMPATIBILITY = "http://schemas.openxmlformats.org/markup-compatibility/2006";
+    private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    // A paragraph without breaks is cut into pieces of this size, so memory stays bounded
+    private static final int MAX_PARAGRAPH_CHARS = 64 * 1024;
+    private static final Pattern PART_NUMBER = Pattern.compile("(\\d+)\\.xml$");
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // Office files come from users: no DTDs and no external entities
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Receives the text of a document in reading order
+     */
+    private interface Output {
+        void paragraph(String text) throws ApplicationException;
+
+        void section() throws ApplicationException;
+    }
+
+    private OoxmlExtractor() {
+    }
+
+    /**
+     * @return Whether the file name has an Office Open XML extension this extractor reads
+     */
+    public static boolean supports(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".docx") || name.endsWith(".xlsx") || name.endsWith(".pptx");
+    }
+
+    /**
+     * Stream the paragraphs of a document into a chunker. Slides and sheets end the current fragment
+     * once it holds enough text.
+     *
+     * @param file    The document
+     * @param chunker Receives paragraphs and section boundaries
+     */
+    public static void extract(File file, FragmentChunker chunker) throws IOException, ApplicationException {
+        extract(file, new Output() {
+            @Override
+            public void paragraph(String text) throws ApplicationException {
+                chunker.add(text);
+            }
+
+            @Override
+            public void section() throws ApplicationException {
+                chunker.section();
+            }
+        });
+    }
+
+    /**
+     * Extract the text of a document with paragraphs separated by blank lines
+     *
+     * @param file The document
+     * @return The text
+     */
+    public static String extractText(File file) throws IOException {
+        StringBuilder content = new StringBuilder();
+        try {
+            extract(file, new Output() {
+                @Override
+                public void paragraph(String text) {
+                    content.append(text).append("\n\n");
+                }
+
+                @Override
+                public void section() {
+                }
+            });
+        } catch (ApplicationException e) {
+            // Appending to a buffer does not fail
+            throw new IOException(e.getMessage(), e);
+        }
+        return content.toString().trim();
+    }
+
+    private static void extract(File file, Output output) throws IOException, ApplicationException {
+        String name = file.getName().toLowerCase();
+        try (ZipFile zip = new ZipFile(file)) {
+            if (name.endsWith(".xlsx")) {
+                extractWorkbook(zip, output);
+            } else if (name.endsWith(".pptx")) {
+                extractPresentation(zip, output);
+            } else {
+                ZipEntry document = zip.getEntry("word/document.xml");
+                if (document == null) {
+                    throw new IOException("Could not find word/document.xml in " + file.getName());
+                }
+                try (InputStream in = zip.getInputStream(document)) {
+                    readDocument(in, output);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Malformed XML in " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read word/document.xml. Table cells are joined with " | " and each row becomes one paragraph.
+     */
+    private static void readDocument(InputStream in, Output output) throws XMLStreamException, ApplicationException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            Paragraph paragraph = new Paragraph(output);
+            int paragraphDepth = 0;
+            int tableDepth = 0;
+            int runDepth = 0;
+            boolean inText = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (skipAlternative(reader)) {
+                        continue;
+                    }
+                    if (!WORD.equals(reader.getNamespaceURI())) {
+                        continue;
+                    }
+
+                    switch (reader.getLocalName()) {
+                        case "p":
+                            paragraphDepth++;
+                            break;
+                        case "tbl":
+                            tableDepth++;
+                            break;
+                        case "tc":
+                            paragraph.separate(" | ");
+                            break;
+                        case "r":
+                            runDepth++;
+                            break;
+                        case "t":
+                            inText = true;
+                            break;
+                        case "tab":
+                            // Tab stops in paragraph properties use the same element outside of runs
+                            if (runDepth > 0) {
+                                paragraph.append('\t');
+                            }
+                            break;
+                        case "br":
+                        case "cr":
+                            if (runDepth > 0) {
+                                paragraph.append('\n');
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (!WORD.equals(reader.getNamespaceURI())) {
+                        continue;
+                    }
+
+                    switch (reader.getLocalName()) {
+                        case "p":
+                            paragraphDepth--;
+                            if (tableDepth == 0 && paragraphDepth == 0) {
+                                paragraph.end();
+                            } else {
+                                paragraph.separate(" ");
+                            }
+                            break;
+                        case "tr":
+                            if (tableDepth == 1) {
+                                paragraph.end();
+                            }
+                            break;
+                        case "tbl":
+                            tableDepth--;
+                            break;
+                        case "r":
+                            runDepth--;
+                            break;
+                        case "t":
+                            inText = false;
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (inText && isText(event)) {
+                    paragraph.append(reader);
+                }
+            }
+            paragraph.end();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the sheets of a workbook in tab order, one paragraph per row
+     */
+    private static void extractWorkbook(ZipFile zip, Output output) throws IOException, XMLStreamException, ApplicationException {
+        List<String> sharedStrings = readSharedStrings(zip);
+        for (String[] sheet : orderedParts(zip, "xl/workbook.xml", "sheet", "name", "Sheet ", "xl/worksheets/sheet")) {
+            ZipEntry entry = zip.getEntry(sheet[1]);
+            if (entry == null) {
+                continue;
+            }
+
+            output.section();
+            output.paragraph(sheet[0]);
+            try (InputStream in = zip.getInputStream(entry)) {
+                readSheet(in, sharedStrings, output);
+            }
+        }
+    }
+
+    private static List<String> readSharedStrings(ZipFile zip) throws IOException, XMLStreamException {
+        List<String> strings = new ArrayList<>();
+        ZipEntry entry = zip.getEntry("xl/sharedStrings.xml");
+        if (entry == null) {
+            return strings;
+        }
+
+        try (InputStream in = zip.getInputStream(entry)) {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                StringBuilder item = new StringBuilder();
+                boolean inText = false;
+                int phoneticDepth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT && SPREADSHEET.equals(reader.getNamespaceURI())) {
+                        String element = reader.getLocalName();
+                        if (element.equals("si")) {
+                            item.setLength(0);
+                        } else if (element.equals("rPh")) {
+                            phoneticDepth++;
+                        } else if (element.equals("t")) {
+                            inText = phoneticDepth == 0;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && SPREADSHEET.equals(reader.getNamespaceURI())) {
+                        String element = reader.getLocalName();
+                        if (element.equals("si")) {
+                            strings.add(item.toString());
+                        } else if (element.equals("rPh")) {
+                            phoneticDepth--;
+                        } else if (element.equals("t")) {
+                            inText = false;
+                        }
+                    } else if (inText && isText(event)) {
+                        item.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return strings;
+    }
+
+    private static void readSheet(InputStream in, List<String> sharedStrings, Output output) throws XMLStreamException, ApplicationException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            Paragraph row = new Paragraph(output);
+            StringBuilder value = new StringBuilder();
+            String type = null;
+            boolean inValue = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT && SPREADSHEET.equals(reader.getNamespaceURI())) {
+                    String element = reader.getLocalName();
+                    if (element.equals("c")) {
+                        type = reader.getAttributeValue(null, "t");
+                        value.setLength(0);
+                    } else if (element.equals("v") || element.equals("t")) {
+                        inValue = true;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && SPREADSHEET.equals(reader.getNamespaceURI())) {
+                    String element = reader.getLocalName();
+                    if (element.equals("v") || element.equals("t")) {
+                        inValue = false;
+                    } else if (element.equals("c")) {
+                        String text = cellText(type, value.toString(), sharedStrings);
+                        if (!text.isEmpty()) {
+                            row.separate(" | ");
+                            row.append(text);
+                        }
+                    } else if (element.equals("row")) {
+                        row.end();
+                    }
+                } else if (inValue && isText(event)) {
+                    value.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            }
+            row.end();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String cellText(String type, String value, List<String> sharedStrings) {
+        if ("s".equals(type)) {
+            try {
+                int index = Integer.parseInt(value.trim());
+                return index >= 0 && index < sharedStrings.size() ? sharedStrings.get(index).trim() : "";
+            } catch (NumberFormatException e) {
+                return "";
+            }
+        }
+        if ("b".equals(type)) {
+            return "1".equals(value.trim()) ? "TRUE" : "FALSE";
+        }
+        return value.trim();
+    }
+
+    /**
+     * Read the slides of a presentation in show order, one paragraph per text paragraph
+     */
+    private static void extractPresentation(ZipFile zip, Output output) throws IOException, XMLStreamException, ApplicationException {
+        for (String[] slide : orderedParts(zip, "ppt/presentation.xml", "sldId", null, "Slide ", "ppt/slides/slide")) {
+            ZipEntry entry = zip.getEntry(slide[1]);
+            if (entry == null) {
+                continue;
+            }
+
+            output.section();
+            output.paragraph(slide[0]);
+            try (InputStream in = zip.getInputStream(entry)) {
+                readSlide(in, output);
+            }
+        }
+    }
+
+    private static void readSlide(InputStream in, Output output) throws XMLStreamException, ApplicationException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            Paragraph paragraph = new Paragraph(output);
+            boolean inText = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (skipAlternative(reader) || !DRAWING.equals(reader.getNamespaceURI())) {
+                        continue;
+                    }
+                    if (reader.getLocalName().equals("t")) {
+                        inText = true;
+                    } else if (reader.getLocalName().equals("br")) {
+                        paragraph.append('\n');
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && DRAWING.equals(reader.getNamespaceURI())) {
+                    String element = reader.getLocalName();
+                    if (element.equals("t")) {
+                        inText = false;
+                    } else if (element.equals("p")) {
+                        paragraph.end();
+                    }
+                } else if (inText && isText(event)) {
+                    paragraph.append(reader);
+                }
+            }
+            paragraph.end();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Resolve the parts listed by a main part through its relationships, in document order
+     *
+     * @param mainPart      The workbook or presentation part
+     * @param element       Element listing a part, with an r:id attribute
+     * @param nameAttribute Attribute holding a display name, or null to number the parts
+     * @param label         Display name prefix of numbered parts
+     * @param fallback      Prefix of the numbered part files, used when the main part cannot be read
+     * @return Pairs of display name and entry name
+     */
+    private static List<String[]> orderedParts(ZipFile zip, String mainPart, String element, String nameAttribute,
+                                               String label, String fallback) throws IOException, XMLStreamException {
+        String base = mainPart.substring(0, mainPart.lastIndexOf('/') + 1);
+        Map<String, String> targets = readRelationships(zip, base + "_rels/" + mainPart.substring(base.length()) + ".rels");
+
+        List<String[]> parts = new ArrayList<>();
+        ZipEntry main = zip.getEntry(mainPart);
+        if (main != null && !targets.isEmpty()) {
+            try (InputStream in = zip.getInputStream(main)) {
+                XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(element)) {
+                            String target = targets.get(reader.getAttributeValue(RELATIONSHIPS, "id"));
+                            if (target == null) {
+                                continue;
+                            }
+
+                            String name = nameAttribute != null ? reader.getAttributeValue(null, nameAttribute) : null;
+                            parts.add(new String[]{name != null ? name : label + (parts.size() + 1), resolve(base, target)});
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+
+        if (parts.isEmpty()) {
+            // Without the main part, take the numbered part files in number order
+            TreeMap<Integer, String> numbered = new TreeMap<>();
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                String entryName = entries.nextElement().getName();
+                Matcher matcher = PART_NUMBER.matcher(entryName);
+                if (entryName.startsWith(fallback) && matcher.find()) {
+                    numbered.put(Integer.parseInt(matcher.group(1)), entryName);
+                }
+            }
+            for (Map.Entry<Integer, String> entry : numbered.entrySet()) {
+                parts.add(new String[]{label + entry.getKey(), entry.getValue()});
+            }
+        }
+        return parts;
+    }
+
+    private static Map<String, String> readRelationships(ZipFile zip, String relationshipsPart) throws IOException, XMLStreamException {
+        Map<String, String> targets = new HashMap<>();
+        ZipEntry entry = zip.getEntry(relationshipsPart);
+        if (entry == null) {
+            return targets;
+        }
+
+        try (InputStream in = zip.getInputStream(entry)) {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("Relationship")) {
+                        targets.put(reader.getAttributeValue(null, "Id"), reader.getAttributeValue(null, "Target"));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return targets;
+    }
+
+    private static String resolve(String base, String target) {
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+
+        Deque<String> path = new ArrayDeque<>();
+        for (String segment : (base + target).split("/")) {
+            if (segment.equals("..")) {
+                path.pollLast();
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                path.addLast(segment);
+            }
+        }
+        return String.join("/", path);
+    }
+
+    /**
+     * Skip the fallback of a markup-compatibility block, which repeats the content of its choice
+     *
+     * @return Whether the element was skipped
+     */
+    private static boolean skipAlternative(XMLStreamReader reader) throws XMLStreamException {
+        if (!MARKUP_COMPATIBILITY.equals(reader.getNamespaceURI()) || !reader.getLocalName().equals("Fallback")) {
+            return false;
+        }
+
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isText(int event) {
+        return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                || event == XMLStreamConstants.SPACE;
+    }
+
+    /**
+     * Text of the paragraph being read, handed to the output when it ends or grows too long
+     */
+    private static final class Paragraph {
+        private final Output output;
+        private final StringBuilder text = new StringBuilder();
+
+        Paragraph(Output output) {
+            this.output = output;
+        }
+
+        void append(XMLStreamReader reader) throws ApplicationException {
+            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            if (text.length() >= MAX_PARAGRAPH_CHARS) {
+                end();
+            }
+        }
+
+        void append(CharSequence value) throws ApplicationException {
+            text.append(value);
+            if (text.length() >= MAX_PARAGRAPH_CHARS) {
+                end();
+            }
+        }
+
+        void append(char ch) {
+            text.append(ch);
+        }
+
+        /**
+         * Add a separator after the text so far, unless the paragraph is empty or already ends with one
+         */
+        void separate(String separator) {
+            int length = text.length();
+            while (length > 0 && text.charAt(length - 1) == ' ') {
+                length--;
+            }
+            if (length == 0) {
+                return;
+            }
+
+            text.setLength(length);
+            String mark = separator.trim();
+            text.append(!mark.isEmpty() && text.charAt(length - 1) == mark.charAt(mark.length() - 1) ? " " : separator);
+        }
+
+        void end() throws ApplicationException {
+            String paragraph = text.toString().trim();
+            text.setLength(0);
+            if (!paragraph.isEmpty()) {
+                output.paragraph(paragraph);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package custom.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of page-parallel PDF extraction. Without a file argument a text PDF with the given number
+ * of pages is written to a temporary file first. Every parallelism level must produce the same text as
+ * the single-threaded run. PDFBox must be on the class path.
+ *
+ * <pre>
+ * java -cp target/classes:pdfbox.jar custom.util.PdfBenchmark [file.pdf | pages] [pages per task]
+ * </pre>
+ */
+public class PdfBenchmark {
+    private static final int DEFAULT_PAGES = 400;
+    private static final int LINES_PER_PAGE = 45;
+    private static final int WARMUP_ROUNDS = 1;
+    private static final int MEASURED_ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (!PdfExtractor.isAvailable()) {
+            System.out.println("PDFBox is not on the class path");
+            return;
+        }
+
+        File file;
+        if (args.length > 0 && !args[0].matches("\\d+")) {
+            file = new File(args[0]);
+        } else {
+            int pages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAGES;
+            file = File.createTempFile("pdf-benchmark-", ".pdf");
+            file.deleteOnExit();
+            writeFixture(file, pages);
+            System.out.println("Wrote a " + pages + " page fixture to " + file + " (" + file.length() / 1024 + " KB)");
+        }
+        int pagesPerTask = args.length > 1 ? Integer.parseInt(args[1]) : PdfExtractor.DEFAULT_PAGES_PER_TASK;
+
+        List<Integer> levels = new ArrayList<>();
+        for (int level = 1; level <= Runtime.getRuntime().availableProcessors() && level <= 16; level *= 2) {
+            levels.add(level);
+        }
+
+        System.out.println(String.format("%-12s %12s %10s %10s", "parallelism", "ms/document", "speed-up", "same text"));
+        String expected = null;
+        double baseline = 0;
+        for (int level : levels) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                PdfExtractor.extractText(file, level, pagesPerTask);
+            }
+
+            String text = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                text = PdfExtractor.extractText(file, level, pagesPerTask);
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+
+            if (expected == null) {
+                expected = text;
+                baseline = millis;
+            }
+            System.out.println(String.format("%-12d %12.1f %9.2fx %10s", level, millis, baseline / millis, expected.equals(text)));
+        }
+    }
+
+    /**
+     * Write a minimal PDF with Helvetica text lines on each page
+     */
+    static void writeFixture(File file, int pages) throws IOException {
+        List<byte[]> objects = new ArrayList<>();
+        // 1: catalog, 2: page tree, 3: font, then a page and its content stream for each page
+        objects.add(ascii("<< /Type /Catalog /Pages 2 0 R >>"));
+        StringBuilder kids = new StringBuilder();
+        for (int page = 0; page < pages; page++) {
+            kids.append(4 + page * 2).append(" 0 R ");
+        }
+        objects.add(ascii("<< /Type /Pages /Kids [" + kids + "] /Count " + pages + " >>"));
+        objects.add(ascii("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"));
+
+        for (int page = 0; page < pages; page++) {
+            StringBuilder content = new StringBuilder("BT /F1 10 Tf 14 TL 56 780 Td\n");
+            for (int line = 0; line < LINES_PER_PAGE; line++) {
+                content.append("(Page ").append(page + 1).append(" line ").append(line + 1)
+                        .append(": the quick brown fox jumps over the lazy dog while the manual lists part ")
+                        .append((page * LINES_PER_PAGE + line) % 9973).append(") '\n");
+            }
+            content.append("ET");
+
+            objects.add(ascii("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 842] /Resources << /Font << /F1 3 0 R >> >> " +
+                    "/Contents " + (5 + page * 2) + " 0 R >>"));
+            objects.add(ascii("<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream"));
+        }
+
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        pdf.write(ascii("%PDF-1.4\n"));
+        long[] offsets = new long[objects.size()];
+        for (int i = 0; i < objects.size(); i++) {
+            offsets[i] = pdf.size();
+            pdf.write(ascii((i + 1) + " 0 obj\n"));
+            pdf.write(objects.get(i));
+            pdf.write(ascii("\nendobj\n"));
+        }
+
+        long xref = pdf.size();
+        StringBuilder table = new StringBuilder("xref\n0 " + (objects.size() + 1) + "\n0000000000 65535 f \n");
+        for (long offset : offsets) {
+            table.append(String.format("%010d 00000 n \n", offset));
+        }
+        table.append("trailer\n<< /Size ").append(objects.size() + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                .append(xref).append("\n%%EOF\n");
+        pdf.write(ascii(table.toString()));
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            pdf.writeTo(out);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,342 @@
+package custom.util;
+
+import org.tinystruct.ApplicationException;
+import org.tinystruct.system.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts PDF text with several PDFBox strippers at once. The pages are split into ranges of
+ * {@code pagesPerTask}; each worker opens its own copy of the document, since PDFBox documents are not
+ * thread safe, and strips every n-th range. The ranges are read back in page order through a {@link Reader}
+ * while later ranges are still being extracted, and workers stay at most two ranges each ahead of the reader.
+ *
+ * <p>PDFBox is called through reflection, as it is an optional dependency. Both the 2.x and 3.x loaders are supported.</p>
+ */
+public class PdfExtractor {
+    // Threads extracting the pages of one PDF and the pages each of them extracts at a time
+    public static final String CONFIG_PARALLELISM = "ingestion.pdf.parallelism";
+    public static final String CONFIG_PAGES_PER_TASK = "ingestion.pdf.pages_per_task";
+    public static final int DEFAULT_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static final int DEFAULT_PAGES_PER_TASK = 16;
+
+    private static final String PD_DOCUMENT = "org.apache.pdfbox.pdmodel.PDDocument";
+    private static final String TEXT_STRIPPER = "org.apache.pdfbox.text.PDFTextStripper";
+
+    private static volatile int parallelism = DEFAULT_PARALLELISM;
+    private static volatile int pagesPerTask = DEFAULT_PAGES_PER_TASK;
+
+    /**
+     * Text of a range of pages, opened once per worker
+     */
+    interface PageSource extends AutoCloseable {
+        int pageCount() throws Exception;
+
+        /**
+         * @param startPage First page, starting at 1
+         * @param endPage   Last page, inclusive
+         */
+        String text(int startPage, int endPage) throws Exception;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    interface PageSourceFactory {
+        PageSource open() throws Exception;
+    }
+
+    private PdfExtractor() {
+    }
+
+    /**
+     * Read the {@value #CONFIG_PARALLELISM} and {@value #CONFIG_PAGES_PER_TASK} settings
+     */
+    public static void configure(Configuration<String> configuration) {
+        configure(IngestionService.getIntConfiguration(configuration, CONFIG_PARALLELISM, DEFAULT_PARALLELISM),
+                IngestionService.getIntConfiguration(configuration, CONFIG_PAGES_PER_TASK, DEFAULT_PAGES_PER_TASK));
+    }
+
+    /**
+     * Set the number of workers per document and the pages each worker extracts at a time
+     */
+    public static void configure(int workers, int pages) {
+        parallelism = Math.max(1, workers);
+        pagesPerTask = Math.max(1, pages);
+    }
+
+    /**
+     * @return Whether PDFBox is on the class path
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName(PD_DOCUMENT);
+            Class.forName(TEXT_STRIPPER);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stream the text of a PDF into a chunker in page order
+     */
+    public static void extract(File file, FragmentChunker chunker) throws IOException, ApplicationException {
+        try (Reader reader = open(file, parallelism, pagesPerTask)) {
+            chunker.read(reader);
+        }
+    }
+
+    /**
+     * @return The text of a PDF
+     */
+    public static String extractText(File file) throws IOException {
+        return extractText(file, parallelism, pagesPerTask);
+    }
+
+    static String extractText(File file, int workers, int pages) throws IOException {
+        StringBuilder content = new StringBuilder();
+        try (Reader reader = open(file, workers, pages)) {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+        }
+        return content.toString();
+    }
+
+    /**
+     * Start extracting a PDF
+     *
+     * @param file    The PDF
+     * @param workers Maximum number of page ranges extracted at once
+     * @param pages   Pages per range
+     * @return The text in page order; closing it stops the workers
+     */
+    static Reader open(File file, int workers, int pages) throws IOException {
+        return open(() -> new PdfBoxSource(file), workers, pages, file.getName());
+    }
+
+    static Reader open(PageSourceFactory factory, int workers, int pages, String name) throws IOException {
+        PageSource first;
+        int pageCount;
+        try {
+            first = factory.open();
+            pageCount = first.pageCount();
+        } catch (Exception e) {
+            throw new IOException("Failed to open PDF " + name + ": " + unwrap(e).getMessage(), unwrap(e));
+        }
+        return new PageReader(factory, first, pageCount, Math.max(1, workers), Math.max(1, pages), name);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof InvocationTargetException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Reads the page ranges in order as the workers complete them
+     */
+    private static final class PageReader extends Reader {
+        private final PageSourceFactory factory;
+        private final int pageCount;
+        private final int pagesPerRange;
+        private final int workers;
+        private final int window;
+        private final String name;
+        private final List<CompletableFuture<String>> ranges;
+        private final ExecutorService executor;
+        private final Object progress = new Object();
+
+        private int consumed;
+        private volatile boolean closed;
+        private String current = "";
+        private int position;
+
+        PageReader(PageSourceFactory factory, PageSource first, int pageCount, int parallelism, int pagesPerRange, String name) {
+            this.factory = factory;
+            this.pageCount = pageCount;
+            this.pagesPerRange = pagesPerRange;
+            this.name = name;
+
+            int rangeCount = (pageCount + pagesPerRange - 1) / pagesPerRange;
+            this.ranges = new ArrayList<>(rangeCount);
+            for (int i = 0; i < rangeCount; i++) {
+                ranges.add(new CompletableFuture<>());
+            }
+            this.workers = Math.max(1, Math.min(parallelism, rangeCount));
+            this.window = workers * 2;
+
+            AtomicInteger threads = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+                Thread thread = new Thread(runnable, "pdf-extract-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int worker = 0; worker < workers; worker++) {
+                int index = worker;
+                PageSource source = worker == 0 ? first : null;
+                executor.execute(() -> work(index, source));
+            }
+            executor.shutdown();
+        }
+
+        /**
+         * Extract every n-th range, starting at the worker index
+         */
+        private void work(int worker, PageSource source) {
+            int range = worker;
+            try {
+                if (source == null) {
+                    source = factory.open();
+                }
+
+                for (; range < ranges.size(); range += workers) {
+                    synchronized (progress) {
+                        while (!closed && range >= consumed + window) {
+                            progress.wait();
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+
+                    int startPage = range * pagesPerRange + 1;
+                    ranges.get(range).complete(source.text(startPage, Math.min(startPage + pagesPerRange - 1, pageCount)));
+                }
+            } catch (Exception e) {
+                Throwable cause = unwrap(e);
+                for (; range < ranges.size(); range += workers) {
+                    ranges.get(range).completeExceptionally(cause);
+                }
+            } finally {
+                close(source);
+            }
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            while (position == current.length()) {
+                if (closed) {
+                    throw new IOException("Reader closed");
+                }
+                if (consumed == ranges.size()) {
+                    return -1;
+                }
+
+                try {
+                    current = ranges.get(consumed).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while extracting " + name, e);
+                } catch (ExecutionException e) {
+                    Throwable cause = unwrap(e);
+                    throw new IOException("Failed to extract pages of " + name + ": " + cause.getMessage(), cause);
+                }
+                position = 0;
+
+                synchronized (progress) {
+                    ranges.set(consumed, null);
+                    consumed++;
+                    progress.notifyAll();
+                }
+            }
+
+            int count = Math.min(length, current.length() - position);
+            current.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            synchronized (progress) {
+                closed = true;
+                progress.notifyAll();
+            }
+            executor.shutdownNow();
+        }
+
+        private static void close(PageSource source) {
+            if (source == null) {
+                return;
+            }
+
+            try {
+                source.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to close PDF document: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A PDFBox document with its own text stripper
+     */
+    private static final class PdfBoxSource implements PageSource {
+        private final Object document;
+        private final Object stripper;
+        private final Method setStartPage;
+        private final Method setEndPage;
+        private final Method getText;
+
+        PdfBoxSource(File file) throws Exception {
+            Class<?> documentClass = Class.forName(PD_DOCUMENT);
+            Class<?> stripperClass = Class.forName(TEXT_STRIPPER);
+            this.document = load(file, documentClass);
+            this.stripper = stripperClass.getConstructor().newInstance();
+            this.setStartPage = stripperClass.getMethod("setStartPage", int.class);
+            this.setEndPage = stripperClass.getMethod("setEndPage", int.class);
+            this.getText = stripperClass.getMethod("getText", documentClass);
+        }
+
+        private static Object load(File file, Class<?> documentClass) throws Exception {
+            try {
+                // PDFBox 3.x
+                return Class.forName("org.apache.pdfbox.Loader").getMethod("loadPDF", File.class).invoke(null, file);
+            } catch (ClassNotFoundException e) {
+                return documentClass.getMethod("load", File.class).invoke(null, file);
+            }
+        }
+
+        @Override
+        public int pageCount() throws Exception {
+            return (Integer) document.getClass().getMethod("getNumberOfPages").invoke(document);
+        }
+
+        @Override
+        public String text(int startPage, int endPage) throws Exception {
+            setStartPage.invoke(stripper, startPage);
+            setEndPage.invoke(stripper, endPage);
+            return (String) getText.invoke(stripper, document);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                document.getClass().getMethod("close").invoke(document);
+            } catch (ReflectiveOperationException e) {
+                Throwable cause = unwrap(e);
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package custom.util;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Exact-scan index over quantized embeddings, trading a little recall for memory.
+ * <ul>
+ *     <li>{@link Mode#INT8} - one signed byte per dimension plus a scale per vector (about 1/4 of float32)</li>
+ *     <li>{@link Mode#BINARY} - one sign bit per dimension, scored by Hamming distance (1/32 of float32)</li>
+ * </ul>
+ * Full-precision vectors are not kept in memory. The best candidates of the quantized scan are
+ * rescored with vectors fetched through the rescoring loader, usually from the database.
+ */
+public class QuantizedIndex implements VectorSearchEngine {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public enum Mode {
+        INT8, BINARY
+    }
+
+    private final Mode mode;
+    private final int rescoreFactor;
+    private final Function<Collection<String>, Map<String, float[]>> rescoreLoader;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> rowsByFragmentId = new HashMap<>();
+
+    private int dimension;
+    private int size;
+    // Bytes (INT8) or 64-bit words (BINARY) per row
+    private int stride;
+    private byte[] bytes = new byte[0];
+    private float[] scales = new float[0];
+    private long[] words = new long[0];
+    private String[] fragmentIds = new String[0];
+
+    /**
+     * @param mode          Quantization mode
+     * @param rescoreFactor Number of candidates rescored per requested result
+     * @param rescoreLoader Loads full-precision vectors by fragment ID; null disables rescoring
+     */
+    public QuantizedIndex(Mode mode, int rescoreFactor, Function<Collection<String>, Map<String, float[]>> rescoreLoader) {
+        this.mode = mode;
+        this.rescoreFactor = Math.max(1, rescoreFactor);
+        this.rescoreLoader = rescoreLoader;
+    }
+
+    @Override
+    public boolean add(String fragmentId, float[] vector) {
+        if (fragmentId == null || vector == null || vector.length == 0) {
+            return false;
+        }
+
+        float[] normalized = VectorMath.normalize(vector);
+        if (normalized == null) {
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (size == 0 && dimension != vector.length) {
+                dimension = vector.length;
+                stride = mode == Mode.INT8 ? dimension : (dimension + 63) / 64;
+                bytes = new byte[0];
+                scales = new float[0];
+                words = new long[0];
+                fragmentIds = new String[0];
+            }
+
+            if (vector.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Index: " + dimension +
+                        ", Vector: " + vector.length + " for fragment ID: " + fragmentId);
+                return false;
+            }
+
+            Integer row = rowsByFragmentId.get(fragmentId);
+            if (row == null) {
+                ensureCapacity(size + 1);
+                row = size++;
+                rowsByFragmentId.put(fragmentId, row);
+                fragmentIds[row] = fragmentId;
+            }
+
+            if (mode == Mode.INT8) {
+                scales[row] = quantize(normalized, bytes, row * stride);
+            } else {
+                binarize(normalized, words, row * stride);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String fragmentId) {
+        lock.writeLock().lock();
+        try {
+            return removeRow(fragmentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int removeAll(Collection<String> ids) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (String fragmentId : ids) {
+                if (removeRow(fragmentId)) {
+                    removed++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Scan the quantized codes, then rescore the best {@code max(candidates, limit * rescoreFactor)}
+     * candidates at full precision. Fragments rejected by the filter are never scored.
+     */
+    @Override
+    public List<Hit> search(float[] query, int limit, int candidates, FragmentFilter filter) {
+        if (query == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        float[] normalized = VectorMath.normalize(query);
+        if (normalized == null) {
+            return new ArrayList<>();
+        }
+
+        int pool = Math.max(candidates, limit * rescoreFactor);
+        List<Hit> approximate;
+        lock.readLock().lock();
+        try {
+            if (size == 0) {
+                return new ArrayList<>();
+            }
+
+            if (query.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Query: " + query.length +
+                        ", Index: " + dimension);
+                return new ArrayList<>();
+            }
+
+            int[] rows = selectRows(filter);
+            approximate = mode == Mode.INT8 ? scanInt8(normalized, pool, filter, rows) : scanBinary(normalized, pool, filter, rows);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (rescoreLoader == null) {
+            return approximate.size() > limit ? new ArrayList<>(approximate.subList(0, limit)) : approximate;
+        }
+
+        return rescore(normalized, approximate, limit);
+    }
+
+    /**
+     * @return The rows of a selective filter, or null if the whole index should be scanned
+     */
+    private int[] selectRows(FragmentFilter filter) {
+        if (filter == null || !filter.isSelective(size, 1.0)) {
+            return null;
+        }
+
+        int[] rows = new int[filter.cardinality()];
+        int count = 0;
+        for (String fragmentId : filter.fragmentIds()) {
+            Integer row = rowsByFragmentId.get(fragmentId);
+            if (row != null) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    private List<Hit> scanInt8(float[] query, int pool, FragmentFilter filter, int[] rows) {
+        byte[] codes = new byte[dimension];
+        float queryScale = quantize(query, codes, 0);
+
+        PriorityQueue<Hit> heap = new PriorityQueue<>(pool + 1, Hit.ASCENDING);
+        int count = rows != null ? rows.length : size;
+        for (int r = 0; r < count; r++) {
+            int row = rows != null ? rows[r] : r;
+            if (rows == null && filter != null && !filter.accept(fragmentIds[row])) {
+                continue;
+            }
+
+            int offset = row * stride;
+            int sum = 0;
+            for (int i = 0; i < dimension; i++) {
+                sum += codes[i] * bytes[offset + i];
+            }
+
+            offer(heap, row, sum * queryScale * scales[row], pool);
+        }
+        return sorted(heap);
+    }
+
+    private List<Hit> scanBinary(float[] query, int pool, FragmentFilter filter, int[] rows) {
+        long[] codes = new long[stride];
+        binarize(query, codes, 0);
+
+        PriorityQueue<Hit> heap = new PriorityQueue<>(pool + 1, Hit.ASCENDING);
+        int count = rows != null ? rows.length : size;
+        for (int r = 0; r < count; r++) {
+            int row = rows != null ? rows[r] : r;
+            if (rows == null && filter != null && !filter.accept(fragmentIds[row])) {
+                continue;
+            }
+
+            int offset = row * stride;
+            int distance = 0;
+            for (int i = 0; i < stride; i++) {
+                distance += Long.bitCount(codes[i] ^ words[offset + i]);
+            }
+
+            // Matching sign bits estimate the angle between the vectors
+            offer(heap, row, 1f - 2f * distance / dimension, pool);
+        }
+        return sorted(heap);
+    }
+
+    private void offer(PriorityQueue<Hit> heap, int row, float score, int pool) {
+        if (heap.size() < pool) {
+            heap.add(new Hit(fragmentIds[row], score));
+        } else if (score > heap.peek().score) {
+            heap.poll();
+            heap.add(new Hit(fragmentIds[row], score));
+        }
+    }
+
+    private static List<Hit> sorted(PriorityQueue<Hit> heap) {
+        List<Hit> hits = new ArrayList<>(heap);
+        hits.sort(Hit.ASCENDING.reversed());
+        return hits;
+    }
+
+    private List<Hit> rescore(float[] query, List<Hit> approximate, int limit) {
+        List<String> ids = new ArrayList<>(approximate.size());
+        for (Hit hit : approximate) {
+            ids.add(hit.fragmentId);
+        }
+
+        Map<String, float[]> vectors;
+        try {
+            vectors = rescoreLoader.apply(ids);
+        } catch (RuntimeException e) {
+            System.err.println("Warning: Rescoring failed, returning quantized scores: " + e.getMessage());
+            vectors = Collections.emptyMap();
+        }
+
+        List<Hit> hits = new ArrayList<>(approximate.size());
+        for (Hit hit : approximate) {
+            float[] vector = vectors.get(hit.fragmentId);
+            float[] normalized = vector != null && vector.length == dimension ? VectorMath.normalize(vector) : null;
+            hits.add(normalized != null ? new Hit(hit.fragmentId, VectorMath.dot(query, normalized)) : hit);
+        }
+
+        hits.sort(Hit.ASCENDING.reversed());
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    /**
+     * Quantize a unit vector to signed bytes with a symmetric per-vector scale
+     *
+     * @return The scale that maps a byte back to its float value
+     */
+    private static float quantize(float[] vector, byte[] target, int offset) {
+        float max = 0f;
+        for (float value : vector) {
+            max = Math.max(max, Math.abs(value));
+        }
+        if (max == 0f) {
+            return 0f;
+        }
+
+        float scale = 127f / max;
+        for (int i = 0; i < vector.length; i++) {
+            target[offset + i] = (byte) Math.round(vector[i] * scale);
+        }
+        return max / 127f;
+    }
+
+    private static void binarize(float[] vector, long[] target, int offset) {
+        int words = (vector.length + 63) / 64;
+        for (int w = 0; w < words; w++) {
+            target[offset + w] = 0L;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > 0f) {
+                target[offset + (i >>> 6)] |= 1L << (i & 63);
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(String fragmentId) {
+        lock.readLock().lock();
+        try {
+            return rowsByFragmentId.containsKey(fragmentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int dimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            rowsByFragmentId.clear();
+            bytes = new byte[0];
+            scales = new float[0];
+            words = new long[0];
+            fragmentIds = new String[0];
+            size = 0;
+            dimension = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String name() {
+        return mode == Mode.INT8 ? "int8" : "binary";
+    }
+
+    @Override
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) bytes.length + scales.length * 4L + words.length * 8L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean removeRow(String fragmentId) {
+        Integer row = rowsByFragmentId.remove(fragmentId);
+        if (row == null) {
+            return false;
+        }
+
+        int last = --size;
+        if (row != last) {
+            if (mode == Mode.INT8) {
+                System.arraycopy(bytes, last * stride, bytes, row * stride, stride);
+                scales[row] = scales[last];
+            } else {
+                System.arraycopy(words, last * stride, words, row * stride, stride);
+            }
+            fragmentIds[row] = fragmentIds[last];
+            rowsByFragmentId.put(fragmentIds[row], row);
+        }
+        fragmentIds[last] = null;
+        return true;
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= fragmentIds.length) {
+            return;
+        }
+
+        int capacity = Math.max(INITIAL_CAPACITY, fragmentIds.length * 2);
+        while (capacity < rows) {
+            capacity *= 2;
+        }
+
+        if (mode == Mode.INT8) {
+            bytes = Arrays.copyOf(bytes, capacity * stride);
+            scales = Arrays.copyOf(scales, capacity);
+        } else {
+            words = Arrays.copyOf(words, capacity * stride);
+        }
+        fragmentIds = Arrays.copyOf(fragmentIds, capacity);
+    }
+}
@@ -0,0 +1,230 @@
+package custom.util;
+
+import org.tinystruct.data.component.Builder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of query embeddings bounded by entry count and by vector bytes.
+ * Keys are SHA-256 digests of the model and the normalized query, so long contextual queries are not kept
+ * in memory, and entries expire after a time to live. The cache can be saved to a file and loaded on the next start.
+ */
+public class QueryEmbeddingCache {
+    private static final int FILE_MAGIC = 0x51454331;
+    // Approximate memory of a key, an entry and its map node besides the vector itself
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxEntries Maximum number of cached queries
+     * @param maxBytes   Maximum memory of the cached entries
+     * @param ttlMillis  Time an entry stays valid, 0 for no expiry
+     */
+    public QueryEmbeddingCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.ttlMillis = Math.max(0, ttlMillis);
+    }
+
+    /**
+     * Cache key of a query: the digest of the model and the normalized query text
+     */
+    public static String key(String model, String query) {
+        return DocumentProcessor.contentHash(model + " " + query);
+    }
+
+    /**
+     * @return The cached embedding of the query, or null on a miss or if the entry expired
+     */
+    public float[] get(String model, String query) {
+        String key = key(model, query);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+                remove(key);
+                expirations.increment();
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.vector;
+        }
+    }
+
+    public void put(String model, String query, float[] vector) {
+        if (vector == null) {
+            return;
+        }
+
+        put(key(model, query), new Entry(vector, System.currentTimeMillis()));
+    }
+
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= sizeOf(previous);
+            }
+            bytes += sizeOf(entry);
+
+            // Least recently used entries go first
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                if (eldest.getValue() == entry) {
+                    break;
+                }
+                bytes -= sizeOf(eldest.getValue());
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return Size, memory and hit, miss, eviction and expiration counters
+     */
+    public Builder stats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+
+        Builder builder = new Builder();
+        synchronized (entries) {
+            builder.put("entries", entries.size());
+            builder.put("bytes", bytes);
+        }
+        builder.put("maxEntries", maxEntries);
+        builder.put("maxBytes", maxBytes);
+        builder.put("hits", hitCount);
+        builder.put("misses", missCount);
+        builder.put("evictions", evictions.sum());
+        builder.put("expirations", expirations.sum());
+        builder.put("hitRate", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+        return builder;
+    }
+
+    /**
+     * Write the valid entries to a file, least recently used first. The file is replaced atomically.
+     */
+    public void save(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            long now = System.currentTimeMillis();
+            synchronized (entries) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    // Expired entries are written too, so the count matches; they are dropped on load
+                    out.writeUTF(item.getKey());
+                    out.writeLong(isExpired(entry, now) ? 0 : entry.createdAt);
+                    out.writeInt(entry.vector.length);
+                    for (float value : entry.vector) {
+                        out.writeFloat(value);
+                    }
+                    count++;
+                }
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Saved " + count + " query embeddings to " + file.getPath());
+    }
+
+    /**
+     * Add the entries of a file written by {@link #save(File)}; a missing file is ignored
+     */
+    public void load(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a query embedding cache file: " + file.getPath());
+            }
+
+            long now = System.currentTimeMillis();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long createdAt = in.readLong();
+                float[] vector = new float[in.readInt()];
+                for (int j = 0; j < vector.length; j++) {
+                    vector[j] = in.readFloat();
+                }
+
+                Entry entry = new Entry(vector, createdAt);
+                if (createdAt > 0 && !isExpired(entry, now)) {
+                    put(key, entry);
+                    loaded++;
+                }
+            }
+        }
+        System.out.println("Loaded " + loaded + " query embeddings from " + file.getPath());
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlMillis > 0 && now - entry.createdAt > ttlMillis;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= sizeOf(entry);
+        }
+    }
+
+    private static long sizeOf(Entry entry) {
+        return ENTRY_OVERHEAD + (long) entry.vector.length * Float.BYTES;
+    }
+
+    private static final class Entry {
+        final float[] vector;
+        final long createdAt;
+
+        Entry(float[] vector, long createdAt) {
+            this.vector = vector;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package custom.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Exact-search index over memory-mapped, append-only {@link VectorSegment} files.
+ * Vectors stay on disk and are paged in by the operating system while scanning, so the
+ * library can be larger than the heap and opening the index only maps the files.
+ *
+ * <p>Deletes are recorded in {@code tombstones.log} as {@code segment:row} lines. Segments with
+ * many deleted rows are rewritten by a background compaction.</p>
+ */
+public class SegmentIndex implements VectorSearchEngine, Closeable {
+    private static final String TOMBSTONE_LOG = "tombstones.log";
+    private static final double COMPACTION_RATIO = 0.3;
+    private static final int SCAN_BLOCK_ROWS = 64;
+
+    private final File directory;
+    private final int segmentRows;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<VectorSegment> segments = new ArrayList<>();
+    // Fragment ID to segment ID (high 32 bits) and row (low 32 bits)
+    private final Map<String, Long> locations = new HashMap<>();
+    private Writer tombstoneWriter;
+    private int dimension;
+    private int nextSegmentId = 1;
+
+    /**
+     * @param directory   Directory holding the segment files
+     * @param segmentRows Rows per segment file
+     */
+    public SegmentIndex(File directory, int segmentRows) {
+        this.directory = directory;
+        this.segmentRows = Math.max(1, segmentRows);
+    }
+
+    /**
+     * Map the existing segment files and rebuild the fragment locations from their ID files
+     */
+    public void open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closeSegments();
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Cannot create segment directory: " + directory);
+            }
+
+            File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".vec"));
+            List<Integer> ids = new ArrayList<>();
+            if (files != null) {
+                for (File file : files) {
+                    ids.add(Integer.parseInt(file.getName().substring(8, file.getName().length() - 4)));
+                }
+            }
+            Collections.sort(ids);
+
+            Map<Integer, VectorSegment> byId = new HashMap<>();
+            for (int id : ids) {
+                VectorSegment segment = VectorSegment.open(directory, id);
+                segments.add(segment);
+                byId.put(id, segment);
+                dimension = segment.dimension;
+                nextSegmentId = id + 1;
+            }
+
+            File log = new File(directory, TOMBSTONE_LOG);
+            if (log.exists()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int separator = line.indexOf(':');
+                        if (separator < 0) {
+                            continue;
+                        }
+                        VectorSegment segment = byId.get(Integer.parseInt(line.substring(0, separator)));
+                        if (segment != null) {
+                            segment.deleted().set(Integer.parseInt(line.substring(separator + 1)));
+                        }
+                    }
+                }
+            }
+
+            // Later segments win if a fragment was stored more than once
+            for (VectorSegment segment : segments) {
+                for (int row = 0; row < segment.rows(); row++) {
+                    if (segment.deleted().get(row)) {
+                        continue;
+                    }
+                    Long previous = locations.put(segment.fragmentId(row), location(segment.id, row));
+                    if (previous != null) {
+                        markDeleted(previous);
+                    }
+                }
+            }
+
+            System.out.println("Mapped " + segments.size() + " vector segments with " + locations.size() +
+                    " embeddings from " + directory);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean add(String fragmentId, float[] vector) {
+        if (fragmentId == null || vector == null || vector.length == 0 || fragmentId.indexOf('\n') >= 0) {
+            return false;
+        }
+
+        float[] normalized = VectorMath.normalize(vector);
+        if (normalized == null) {
+            return false;
+        }
+        float norm = (float) Math.sqrt(VectorMath.dot(vector, vector));
+
+        lock.writeLock().lock();
+        try {
+            if (locations.isEmpty() && segments.isEmpty()) {
+                dimension = vector.length;
+            }
+
+            if (vector.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Index: " + dimension +
+                        ", Vector: " + vector.length + " for fragment ID: " + fragmentId);
+                return false;
+            }
+
+            VectorSegment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || active.isFull() || active.dimension != dimension) {
+                active = VectorSegment.create(directory, nextSegmentId++, dimension, segmentRows);
+                segments.add(active);
+            }
+
+            int row = active.append(fragmentId, normalized, norm);
+            Long previous = locations.put(fragmentId, location(active.id, row));
+            if (previous != null) {
+                markDeleted(previous);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error appending embedding for fragment ID " + fragmentId + ": " + e.getMessage());
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String fragmentId) {
+        return removeAll(Collections.singletonList(fragmentId)) > 0;
+    }
+
+    @Override
+    public int removeAll(Collection<String> fragmentIds) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (String fragmentId : fragmentIds) {
+                Long location = locations.remove(fragmentId);
+                if (location != null) {
+                    markDeleted(location);
+                    removed++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (removed > 0) {
+            scheduleCompaction();
+        }
+        return removed;
+    }
+
+    /**
+     * Scan the mapped segments block by block. A selective filter reads only the allowed rows;
+     * otherwise rows rejected by the filter are skipped before scoring.
+     */
+    @Override
+    public List<Hit> search(float[] query, int limit, int candidates, FragmentFilter filter) {
+        if (query == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        float[] normalized = VectorMath.normalize(query);
+        if (normalized == null) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            if (locations.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            if (query.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Query: " + query.length +
+                        ", Index: " + dimension);
+                return new ArrayList<>();
+            }
+
+            PriorityQueue<Hit> heap = new PriorityQueue<>(limit + 1, Hit.ASCENDING);
+            int rowFloats = dimension + 1;
+            float[] block = new float[SCAN_BLOCK_ROWS * rowFloats];
+            if (filter != null && filter.isSelective(locations.size(), 1.0)) {
+                for (String fragmentId : filter.fragmentIds()) {
+                    Long location = locations.get(fragmentId);
+                    if (location != null) {
+                        segment(segmentId(location)).read(row(location), 1, block);
+                        offer(heap, fragmentId, VectorMath.dot(normalized, 0, block, 1, dimension), limit);
+                    }
+                }
+            } else {
+                for (VectorSegment segment : segments) {
+                    BitSet deleted = segment.deleted();
+                    int rows = segment.rows();
+                    for (int from = 0; from < rows; from += SCAN_BLOCK_ROWS) {
+                        int count = Math.min(SCAN_BLOCK_ROWS, rows - from);
+                        segment.read(from, count, block);
+                        for (int i = 0; i < count; i++) {
+                            String fragmentId = segment.fragmentId(from + i);
+                            if (deleted.get(from + i) || (filter != null && !filter.accept(fragmentId))) {
+                                continue;
+                            }
+
+                            // Skip the stored norm in front of each unit vector
+                            offer(heap, fragmentId, VectorMath.dot(normalized, 0, block, i * rowFloats + 1, dimension), limit);
+                        }
+                    }
+                }
+            }
+
+            List<Hit> hits = new ArrayList<>(heap);
+            hits.sort(Hit.ASCENDING.reversed());
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void offer(PriorityQueue<Hit> heap, String fragmentId, float similarity, int limit) {
+        if (heap.size() < limit) {
+            heap.add(new Hit(fragmentId, similarity));
+        } else if (similarity > heap.peek().score) {
+            heap.poll();
+            heap.add(new Hit(fragmentId, similarity));
+        }
+    }
+
+    @Override
+    public float[] vector(String fragmentId) {
+        lock.readLock().lock();
+        try {
+            Long location = locations.get(fragmentId);
+            if (location == null) {
+                return null;
+            }
+            return segment(segmentId(location)).vector(row(location));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String fragmentId) {
+        lock.readLock().lock();
+        try {
+            return locations.containsKey(fragmentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return locations.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int dimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete all segment files
+     */
+    @Override
+    public void clear() {
+        compactionLock.lock();
+        lock.writeLock().lock();
+        try {
+            for (VectorSegment segment : segments) {
+                segment.delete();
+            }
+            segments.clear();
+            locations.clear();
+            closeTombstoneWriter();
+            new File(directory, TOMBSTONE_LOG).delete();
+            dimension = 0;
+        } finally {
+            lock.writeLock().unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "mmap";
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Only the fragment locations live on the heap; the vectors are mapped from disk
+     */
+    @Override
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            // Rough size of a HashMap entry with a short String key and a Long value
+            return locations.size() * 96L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite sealed segments whose share of deleted rows exceeds the compaction ratio.
+     * Live rows are copied without blocking searches; the new segments replace the old
+     * ones under a short write lock.
+     */
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            List<VectorSegment> sources = new ArrayList<>();
+            Map<VectorSegment, BitSet> snapshots = new HashMap<>();
+            lock.readLock().lock();
+            try {
+                for (int i = 0; i < segments.size() - 1; i++) {
+                    VectorSegment segment = segments.get(i);
+                    if (segment.rows() > 0 && segment.deleted().cardinality() >= segment.rows() * COMPACTION_RATIO) {
+                        sources.add(segment);
+                        snapshots.put(segment, (BitSet) segment.deleted().clone());
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            if (sources.isEmpty()) {
+                return;
+            }
+
+            // Copy the live rows into new segments
+            List<VectorSegment> targets = new ArrayList<>();
+            List<long[]> moves = new ArrayList<>();
+            try {
+                VectorSegment target = null;
+                for (VectorSegment source : sources) {
+                    BitSet deleted = snapshots.get(source);
+                    for (int row = 0; row < source.rows(); row++) {
+                        if (deleted.get(row)) {
+                            continue;
+                        }
+
+                        if (target == null || target.isFull()) {
+                            if (target != null) {
+                                target.force();
+                            }
+                            target = VectorSegment.create(directory, reserveSegmentId(), source.dimension, segmentRows);
+                            targets.add(target);
+                        }
+
+                        float[] vector = source.vector(row);
+                        float norm = (float) Math.sqrt(VectorMath.dot(vector, vector));
+                        int newRow = target.append(source.fragmentId(row), VectorMath.normalize(vector), norm);
+                        moves.add(new long[]{location(source.id, row), location(target.id, newRow)});
+                    }
+                }
+                if (target != null) {
+                    target.force();
+                }
+            } catch (IOException | RuntimeException e) {
+                for (VectorSegment target : targets) {
+                    target.delete();
+                }
+                throw e;
+            }
+
+            Map<Integer, VectorSegment> targetsById = new HashMap<>();
+            for (VectorSegment target : targets) {
+                targetsById.put(target.id, target);
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (long[] move : moves) {
+                    VectorSegment moved = targetsById.get(segmentId(move[1]));
+                    String fragmentId = moved.fragmentId(row(move[1]));
+                    if (Long.valueOf(move[0]).equals(locations.get(fragmentId))) {
+                        locations.put(fragmentId, move[1]);
+                    } else {
+                        // Deleted or replaced while copying
+                        moved.deleted().set(row(move[1]));
+                    }
+                }
+
+                // Keep the active segment last so new rows keep going into it
+                VectorSegment active = segments.remove(segments.size() - 1);
+                segments.removeAll(sources);
+                segments.addAll(targets);
+                segments.add(active);
+                rewriteTombstoneLog();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            int removedRows = 0;
+            for (VectorSegment source : sources) {
+                removedRows += source.rows();
+                source.delete();
+            }
+            System.out.println("Compacted " + sources.size() + " vector segments: " + removedRows +
+                    " rows rewritten as " + moves.size());
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Flush mapped segments and stop the compaction thread
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        lock.writeLock().lock();
+        try {
+            closeSegments();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        compactor.submit(() -> {
+            compactionScheduled.set(false);
+            try {
+                compact();
+            } catch (Exception e) {
+                System.err.println("Vector segment compaction failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private int reserveSegmentId() {
+        lock.writeLock().lock();
+        try {
+            return nextSegmentId++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void markDeleted(long location) {
+        VectorSegment segment = segment(segmentId(location));
+        if (segment == null) {
+            return;
+        }
+
+        segment.deleted().set(row(location));
+        try {
+            if (tombstoneWriter == null) {
+                tombstoneWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(new File(directory, TOMBSTONE_LOG), true), StandardCharsets.UTF_8));
+            }
+            tombstoneWriter.write(segment.id + ":" + row(location) + "\n");
+            tombstoneWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to record deleted embedding: " + e.getMessage());
+        }
+    }
+
+    private void rewriteTombstoneLog() throws IOException {
+        closeTombstoneWriter();
+        File log = new File(directory, TOMBSTONE_LOG);
+        File temp = new File(directory, TOMBSTONE_LOG + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (VectorSegment segment : segments) {
+                BitSet deleted = segment.deleted();
+                for (int row = deleted.nextSetBit(0); row >= 0; row = deleted.nextSetBit(row + 1)) {
+                    writer.write(segment.id + ":" + row + "\n");
+                }
+            }
+        }
+        Files.move(temp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private VectorSegment segment(int id) {
+        for (VectorSegment segment : segments) {
+            if (segment.id == id) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private void closeSegments() throws IOException {
+        for (VectorSegment segment : segments) {
+            segment.force();
+            segment.close();
+        }
+        segments.clear();
+        locations.clear();
+        closeTombstoneWriter();
+    }
+
+    private void closeTombstoneWriter() {
+        if (tombstoneWriter != null) {
+            try {
+                tombstoneWriter.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Failed to close tombstone log: " + e.getMessage());
+            }
+            tombstoneWriter = null;
+        }
+    }
+
+    private static long location(int segmentId, int row) {
+        return ((long) segmentId << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int row(long location) {
+        return (int) location;
+    }
+}
@@ -0,0 +1,70 @@
+package custom.util;
+
+import org.tinystruct.data.component.Builder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A read-only copy of a message that is serialized once. Broadcasting a {@link Builder} to every session of a
+ * meeting serializes it again for each recipient; this copy returns the same JSON from {@link #toString()} and
+ * the same encoded SSE frame from {@link #writeFrame(OutputStream)} however many sessions it is pushed to.
+ *
+ * <p>The JSON is taken when the copy is made, so later changes to nested values of the original are not seen.</p>
+ */
+public class SerializedMessage extends Builder {
+    private final String json;
+    private final boolean frozen;
+    private volatile byte[] frame;
+
+    private SerializedMessage(Builder message) {
+        for (Map.Entry<String, Object> entry : message.entrySet()) {
+            super.put(entry.getKey(), entry.getValue());
+        }
+        this.json = message.toString();
+        this.frozen = true;
+    }
+
+    /**
+     * @return A serialized copy of the message, or the message itself if it is one already
+     */
+    public static SerializedMessage of(Builder message) {
+        return message instanceof SerializedMessage serialized ? serialized : new SerializedMessage(message);
+    }
+
+    /**
+     * Write the SSE frame {@code data: <json>\n\n} in UTF-8, encoded once and shared by all recipients
+     */
+    public void writeFrame(OutputStream out) throws IOException {
+        byte[] bytes = frame;
+        if (bytes == null) {
+            bytes = frame = ("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+        }
+        out.write(bytes);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (frozen) {
+            throw new UnsupportedOperationException("Serialized messages cannot be changed");
+        }
+        return super.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException("Serialized messages cannot be changed");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Serialized messages cannot be changed");
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
@@ -0,0 +1,129 @@
+package custom.util;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Micro benchmark of the similarity kernels at common embedding dimensions.
+ * Compares the former cosine similarity over {@code Vector<Double>} with the scalar and
+ * SIMD dot product kernels over pre-normalized float arrays.
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector -cp target/classes custom.util.SimilarityBenchmark
+ * </pre>
+ */
+public class SimilarityBenchmark {
+    private static final int VECTORS = 2000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    // Keeps the JIT from eliminating the measured loops
+    private static volatile double sink;
+
+    public static void main(String[] args) throws Exception {
+        int[] dimensions = {1536, 3072};
+        System.out.println("Kernel in use: " + VectorMath.kernelName());
+        System.out.println(String.format("%-10s %-28s %14s %10s", "dimension", "implementation", "ns/comparison", "speed-up"));
+
+        VectorMath.DotKernel scalar = new VectorMath.ScalarDotKernel();
+        VectorMath.DotKernel simd = null;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            simd = (VectorMath.DotKernel) Class.forName("custom.util.SimdDotKernel").getDeclaredConstructor().newInstance();
+        }
+
+        for (int dimension : dimensions) {
+            Random random = new Random(dimension);
+            float[][] vectors = new float[VECTORS][];
+            Vector<Double>[] boxed = newVectorArray(VECTORS);
+            for (int i = 0; i < VECTORS; i++) {
+                float[] vector = new float[dimension];
+                boxed[i] = new Vector<>(dimension);
+                for (int j = 0; j < dimension; j++) {
+                    vector[j] = (float) random.nextGaussian();
+                    boxed[i].add((double) vector[j]);
+                }
+                vectors[i] = VectorMath.normalize(vector);
+            }
+
+            float[] matrix = new float[VECTORS * dimension];
+            for (int i = 0; i < VECTORS; i++) {
+                System.arraycopy(vectors[i], 0, matrix, i * dimension, dimension);
+            }
+            float[] query = vectors[0];
+            Vector<Double> boxedQuery = boxed[0];
+
+            double legacy = measure(() -> {
+                double total = 0;
+                for (Vector<Double> vector : boxed) {
+                    total += cosineSimilarity(boxedQuery, vector);
+                }
+                sink = total;
+            });
+            report(dimension, "cosine over Vector<Double>", legacy, legacy);
+
+            double scalarTime = measure(() -> sink = scan(scalar, query, matrix, dimension));
+            report(dimension, "scalar dot, normalized", scalarTime, legacy);
+
+            if (simd != null) {
+                VectorMath.DotKernel kernel = simd;
+                double simdTime = measure(() -> sink = scan(kernel, query, matrix, dimension));
+                report(dimension, simd.name() + " dot, normalized", simdTime, legacy);
+            } else {
+                System.out.println("SIMD kernel skipped: start with --add-modules jdk.incubator.vector");
+            }
+        }
+    }
+
+    private static float scan(VectorMath.DotKernel kernel, float[] query, float[] matrix, int dimension) {
+        float total = 0f;
+        for (int offset = 0; offset < matrix.length; offset += dimension) {
+            total += kernel.dot(query, 0, matrix, offset, dimension);
+        }
+        return total;
+    }
+
+    /**
+     * @return Mean nanoseconds per comparison
+     */
+    private static double measure(Runnable round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            round.run();
+        }
+        return (System.nanoTime() - start) / (double) (MEASURED_ROUNDS * VECTORS);
+    }
+
+    private static void report(int dimension, String name, double nanos, double baseline) {
+        System.out.println(String.format("%-10d %-28s %14.1f %9.1fx", dimension, name, nanos, baseline / nanos));
+    }
+
+    /**
+     * The cosine similarity previously used by EmbeddingManager.findSimilar
+     */
+    private static double cosineSimilarity(Vector<Double> v1, Vector<Double> v2) {
+        double dotProduct = 0.0;
+        double norm1 = 0.0;
+        double norm2 = 0.0;
+
+        for (int i = 0; i < v1.size(); i++) {
+            dotProduct += v1.get(i) * v2.get(i);
+            norm1 += v1.get(i) * v1.get(i);
+            norm2 += v2.get(i) * v2.get(i);
+        }
+
+        if (norm1 == 0.0 || norm2 == 0.0) {
+            return 0.0;
+        }
+
+        return dotProduct / (Math.sqrt(norm1) * Math.sqrt(norm2));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Vector<Double>[] newVectorArray(int size) {
+        return (Vector<Double>[]) new Vector<?>[size];
+    }
+}
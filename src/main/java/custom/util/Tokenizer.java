@@ -0,0 +1,450 @@
+package custom.util;
+
+import org.tinystruct.ApplicationRuntimeException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte pair encoding token counter compatible with the OpenAI {@code cl100k_base} and {@code o200k_base} vocabularies.
+ * Text is split by the pre-tokenizer pattern of the encoding, and each piece is counted by merging its UTF-8 bytes
+ * by rank, as tiktoken does. The ranks are read from {@code /tokenizers/<encoding>.tiktoken} on the class path;
+ * a piece is counted without allocating. Without the vocabulary file the counts are estimated per piece, which
+ * is still much closer than a character ratio for code and CJK text.
+ */
+public class Tokenizer {
+    public static final String CL100K_BASE = "cl100k_base";
+    public static final String O200K_BASE = "o200k_base";
+    private static final String RESOURCE_DIRECTORY = "/tokenizers/";
+
+    private static final Pattern CL100K_PATTERN = Pattern.compile(
+            "'(?i:[sdmt]|ll|ve|re)|[^\\r\\n\\p{L}\\p{N}]?+\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]++[\\r\\n]*" +
+                    "|\\s*[\\r\\n]|\\s+(?!\\S)|\\s+", Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Pattern O200K_PATTERN = Pattern.compile(
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?" +
+                    "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?" +
+                    "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+", Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static final Map<String, Tokenizer> ENCODINGS = new ConcurrentHashMap<>();
+
+    private final String encoding;
+    private final Pattern pattern;
+    private final RankTable ranks;
+    private final ThreadLocal<Scratch> scratch;
+
+    private Tokenizer(String encoding, Pattern pattern, RankTable ranks) {
+        this.encoding = encoding;
+        this.pattern = pattern;
+        this.ranks = ranks;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(pattern));
+    }
+
+    /**
+     * @param model A chat or embedding model name, or null for the current chat models
+     * @return The tokenizer of the model's encoding
+     */
+    public static Tokenizer forModel(String model) {
+        return forEncoding(encodingOf(model));
+    }
+
+    /**
+     * @return The encoding used by a model: o200k_base for the GPT-4o and o-series models, cl100k_base otherwise
+     */
+    public static String encodingOf(String model) {
+        if (model == null) {
+            return O200K_BASE;
+        }
+
+        String name = model.toLowerCase(Locale.ROOT);
+        int slash = name.lastIndexOf('/');
+        if (slash >= 0) {
+            name = name.substring(slash + 1);
+        }
+        if (name.startsWith("gpt-4o") || name.startsWith("chatgpt-4o") || name.startsWith("gpt-4.1") ||
+                name.startsWith("gpt-4.5") || name.startsWith("gpt-5") || name.matches("o\\d.*")) {
+            return O200K_BASE;
+        }
+        return CL100K_BASE;
+    }
+
+    /**
+     * Load every vocabulary, so that a missing one is reported at startup rather than at the first upload
+     *
+     * @throws ApplicationRuntimeException if a vocabulary is unreadable
+     */
+    public static void load() {
+        forEncoding(CL100K_BASE);
+        forEncoding(O200K_BASE);
+    }
+
+    /**
+     * @throws ApplicationRuntimeException if the vocabulary is unreadable
+     */
+    public static Tokenizer forEncoding(String encoding) {
+        return ENCODINGS.computeIfAbsent(encoding, name -> {
+            Pattern pattern = O200K_BASE.equals(name) ? O200K_PATTERN : CL100K_PATTERN;
+            return new Tokenizer(name, pattern, RankTable.load(name));
+        });
+    }
+
+    public String encoding() {
+        return encoding;
+    }
+
+    /**
+     * @return The number of tokens of the text
+     */
+    public int count(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+
+        Scratch buffers = scratch.get();
+        Matcher matcher = buffers.matcher.reset(text);
+        int tokens = 0;
+        while (matcher.find()) {
+            tokens += countPiece(buffers, text, matcher.start(), matcher.end());
+        }
+        matcher.reset("");
+        return tokens;
+    }
+
+    /**
+     * Length of the longest prefix of the text within a token budget. The prefix ends between pre-tokenizer pieces;
+     * a piece that does not fit as a whole is cut in proportion to its tokens.
+     *
+     * @return Number of characters of the prefix
+     */
+    public int prefixLength(CharSequence text, int maxTokens) {
+        if (text == null || maxTokens <= 0) {
+            return 0;
+        }
+
+        Scratch buffers = scratch.get();
+        Matcher matcher = buffers.matcher.reset(text);
+        int tokens = 0;
+        int length = text.length();
+        while (matcher.find()) {
+            int pieceTokens = countPiece(buffers, text, matcher.start(), matcher.end());
+            if (tokens + pieceTokens > maxTokens) {
+                // Start from a proportional cut and shorten it until the rest of the piece fits
+                int start = matcher.start();
+                int cut = start + (int) ((long) (matcher.end() - start) * (maxTokens - tokens) / pieceTokens);
+                while (cut > start) {
+                    if (Character.isHighSurrogate(text.charAt(cut - 1))) {
+                        cut--;
+                    } else if (countPiece(buffers, text, start, cut) > maxTokens - tokens) {
+                        cut--;
+                    } else {
+                        break;
+                    }
+                }
+                length = cut;
+                break;
+            }
+            tokens += pieceTokens;
+        }
+        matcher.reset("");
+        return length;
+    }
+
+    /**
+     * @return The text cut to at most the given number of tokens
+     */
+    public String truncate(String text, int maxTokens) {
+        if (text == null) {
+            return null;
+        }
+
+        int length = prefixLength(text, maxTokens);
+        return length >= text.length() ? text : text.substring(0, length);
+    }
+
+    private int countPiece(Scratch buffers, CharSequence text, int start, int end) {
+        if (ranks == null) {
+            return estimatePiece(text, start, end);
+        }
+
+        int length = buffers.encode(text, start, end);
+        byte[] bytes = buffers.bytes;
+        if (length <= 1 || ranks.rank(bytes, 0, length) >= 0) {
+            return 1;
+        }
+
+        // Merge the adjacent pair with the lowest rank until no pair is in the vocabulary
+        int parts = length + 1;
+        int[] starts = buffers.starts(parts);
+        int[] pairRanks = buffers.pairRanks;
+        for (int i = 0; i < parts; i++) {
+            starts[i] = i;
+        }
+        for (int i = 0; i < parts - 2; i++) {
+            pairRanks[i] = ranks.rank(bytes, i, 2);
+        }
+
+        while (parts > 2) {
+            int lowest = -1;
+            int lowestRank = Integer.MAX_VALUE;
+            for (int i = 0; i < parts - 2; i++) {
+                int rank = pairRanks[i];
+                if (rank >= 0 && rank < lowestRank) {
+                    lowestRank = rank;
+                    lowest = i;
+                }
+            }
+            if (lowest < 0) {
+                break;
+            }
+
+            // Parts lowest and lowest + 1 become one; the pairs around it are ranked again
+            System.arraycopy(starts, lowest + 2, starts, lowest + 1, parts - lowest - 2);
+            System.arraycopy(pairRanks, lowest + 1, pairRanks, lowest, Math.max(0, parts - lowest - 3));
+            parts--;
+            if (lowest > 0) {
+                pairRanks[lowest - 1] = pairRank(bytes, starts, parts, lowest - 1);
+            }
+            if (lowest < parts - 2) {
+                pairRanks[lowest] = pairRank(bytes, starts, parts, lowest);
+            }
+        }
+        return parts - 1;
+    }
+
+    /**
+     * Rank of the bytes covered by parts i and i + 1, or -1
+     */
+    private int pairRank(byte[] bytes, int[] starts, int parts, int i) {
+        return i + 2 < parts ? ranks.rank(bytes, starts[i], starts[i + 2] - starts[i]) : -1;
+    }
+
+    /**
+     * Estimate of a piece without the vocabulary. Short ASCII words are one token, longer runs split every
+     * few characters, and CJK characters count one token each.
+     */
+    private static int estimatePiece(CharSequence text, int start, int end) {
+        int ascii = 0;
+        int wide = 0;
+        int other = 0;
+        for (int i = start; i < end; i++) {
+            char ch = text.charAt(i);
+            if (ch < 0x80) {
+                ascii++;
+            } else if (Character.isLowSurrogate(ch)) {
+                continue;
+            } else if (isWide(Character.codePointAt(text, i))) {
+                wide++;
+            } else {
+                other++;
+            }
+        }
+
+        int tokens = wide + (other + 1) / 2;
+        if (ascii > 0) {
+            tokens += 1 + Math.max(0, ascii - 8) / 5;
+        }
+        return Math.max(1, tokens);
+    }
+
+    private static boolean isWide(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA ||
+                script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL ||
+                Character.getType(codePoint) == Character.OTHER_SYMBOL;
+    }
+
+    /**
+     * Reusable buffers of one thread
+     */
+    private static final class Scratch {
+        final Matcher matcher;
+        byte[] bytes = new byte[256];
+        int[] starts = new int[257];
+        int[] pairRanks = new int[257];
+
+        Scratch(Pattern pattern) {
+            this.matcher = pattern.matcher("");
+        }
+
+        int[] starts(int parts) {
+            if (starts.length < parts) {
+                starts = new int[parts * 2];
+                pairRanks = new int[parts * 2];
+            }
+            return starts;
+        }
+
+        /**
+         * Encode a range of the text as UTF-8 into {@link #bytes}
+         *
+         * @return Number of bytes
+         */
+        int encode(CharSequence text, int start, int end) {
+            int needed = (end - start) * 3;
+            if (bytes.length < needed) {
+                bytes = new byte[Math.max(needed, bytes.length * 2)];
+            }
+
+            int length = 0;
+            for (int i = start; i < end; i++) {
+                int ch = text.charAt(i);
+                if (ch < 0x80) {
+                    bytes[length++] = (byte) ch;
+                } else if (ch < 0x800) {
+                    bytes[length++] = (byte) (0xC0 | ch >> 6);
+                    bytes[length++] = (byte) (0x80 | ch & 0x3F);
+                } else if (Character.isHighSurrogate((char) ch) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint((char) ch, text.charAt(++i));
+                    bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    if (Character.isSurrogate((char) ch)) {
+                        // A lone surrogate is encoded as the replacement character, as String.getBytes does
+                        ch = 0xFFFD;
+                    }
+                    bytes[length++] = (byte) (0xE0 | ch >> 12);
+                    bytes[length++] = (byte) (0x80 | ch >> 6 & 0x3F);
+                    bytes[length++] = (byte) (0x80 | ch & 0x3F);
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Open addressing table from token bytes to rank. All token bytes live in one array,
+     * so a lookup by a slice of a byte array does not allocate.
+     */
+    static final class RankTable {
+        private final byte[] arena;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final int[] ranks;
+        private final int[] slots;
+        private final int mask;
+
+        private RankTable(byte[] arena, int[] offsets, int[] lengths, int[] ranks, int count) {
+            this.arena = arena;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.ranks = ranks;
+
+            int capacity = Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1;
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            for (int entry = 0; entry < count; entry++) {
+                int slot = hash(arena, offsets[entry], lengths[entry]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = entry + 1;
+            }
+        }
+
+        /**
+         * @return The rank of the bytes, or -1 if they are not a token
+         */
+        int rank(byte[] bytes, int offset, int length) {
+            int slot = hash(bytes, offset, length) & mask;
+            for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+                if (equals(entry - 1, bytes, offset, length)) {
+                    return ranks[entry - 1];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean equals(int entry, byte[] bytes, int offset, int length) {
+            if (lengths[entry] != length) {
+                return false;
+            }
+
+            int start = offsets[entry];
+            for (int i = 0; i < length; i++) {
+                if (arena[start + i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(byte[] bytes, int offset, int length) {
+            int hash = 0x811C9DC5;
+            for (int i = offset; i < offset + length; i++) {
+                hash = (hash ^ bytes[i]) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        /**
+         * Read a tiktoken file of base64 token and rank lines from the class path
+         *
+         * @return The table, or null if the file is not available
+         * @throws ApplicationRuntimeException if the file is unreadable
+         */
+        static RankTable load(String encoding) {
+            String resource = RESOURCE_DIRECTORY + encoding + ".tiktoken";
+            InputStream in = Tokenizer.class.getResourceAsStream(resource);
+            if (in == null) {
+                System.err.println("Warning: Tokenizer vocabulary " + resource + " not found, token counts are estimated; " +
+                        "build with -Ptokenizers to fetch it");
+                return null;
+            }
+
+            long started = System.currentTimeMillis();
+            byte[] arena = new byte[1 << 20];
+            int[] offsets = new int[1 << 16];
+            int[] lengths = new int[1 << 16];
+            int[] ranks = new int[1 << 16];
+            int count = 0;
+            int size = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+                Base64.Decoder decoder = Base64.getDecoder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space <= 0) {
+                        continue;
+                    }
+
+                    byte[] token = decoder.decode(line.substring(0, space));
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                        ranks = Arrays.copyOf(ranks, count * 2);
+                    }
+                    if (size + token.length > arena.length) {
+                        arena = Arrays.copyOf(arena, Math.max(arena.length * 2, size + token.length));
+                    }
+
+                    System.arraycopy(token, 0, arena, size, token.length);
+                    offsets[count] = size;
+                    lengths[count] = token.length;
+                    ranks[count] = Integer.parseInt(line.substring(space + 1).trim());
+                    size += token.length;
+                    count++;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                throw new ApplicationRuntimeException("Failed to read tokenizer vocabulary " + resource + ": " + e.getMessage(), e);
+            }
+            if (count == 0) {
+                throw new ApplicationRuntimeException("Tokenizer vocabulary " + resource + " is empty");
+            }
+
+            System.out.println("Loaded " + count + " " + encoding + " tokens in " + (System.currentTimeMillis() - started) + " ms");
+            return new RankTable(arena, offsets, lengths, ranks, count);
+        }
+    }
+}
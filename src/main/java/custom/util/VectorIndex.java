@@ -0,0 +1,380 @@
+package custom.util;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Resident in-memory index of document embeddings with exact (brute-force) search.
+ * Keeps all vectors in one contiguous float[] matrix (row-major) alongside a fragment id array,
+ * so similarity queries can be answered without touching the database. Rows are normalized
+ * when added, so cosine similarity is a single dot product per row.
+ */
+public class VectorIndex implements VectorSearchEngine {
+    private static final int INITIAL_CAPACITY = 1024;
+    public static final int DEFAULT_PARTITION_SIZE = 16384;
+
+    private final ForkJoinPool pool;
+    private final int partitionSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> rowsByFragmentId = new HashMap<>();
+
+    private int dimension;
+    private int size;
+    private float[] matrix = new float[0];
+    private String[] fragmentIds = new String[0];
+
+    /**
+     * Index scanning large matrices on the common ForkJoin pool
+     */
+    public VectorIndex() {
+        this(ForkJoinPool.commonPool(), DEFAULT_PARTITION_SIZE);
+    }
+
+    /**
+     * @param pool          Pool for partitioned scans, or null to always scan on the calling thread
+     * @param partitionSize Rows per partition; indexes up to this size are scanned sequentially
+     */
+    public VectorIndex(ForkJoinPool pool, int partitionSize) {
+        this.pool = pool;
+        this.partitionSize = Math.max(1, partitionSize);
+    }
+
+    /**
+     * Add or replace the vector stored for a fragment
+     *
+     * @param fragmentId The document fragment ID
+     * @param vector     The embedding vector
+     * @return true if the vector was indexed, false if it was rejected
+     */
+    @Override
+    public boolean add(String fragmentId, float[] vector) {
+        if (fragmentId == null || vector == null || vector.length == 0) {
+            return false;
+        }
+
+        float[] normalized = VectorMath.normalize(vector);
+        if (normalized == null) {
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (size == 0 && dimension != vector.length) {
+                // The first vector fixes the dimension of the matrix
+                dimension = vector.length;
+                matrix = new float[0];
+                fragmentIds = new String[0];
+            }
+
+            if (vector.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Index: " + dimension +
+                        ", Vector: " + vector.length + " for fragment ID: " + fragmentId);
+                return false;
+            }
+
+            Integer row = rowsByFragmentId.get(fragmentId);
+            if (row == null) {
+                ensureCapacity(size + 1);
+                row = size++;
+                rowsByFragmentId.put(fragmentId, row);
+                fragmentIds[row] = fragmentId;
+            }
+
+            System.arraycopy(normalized, 0, matrix, row * dimension, dimension);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the vector stored for a fragment. The last row is moved into the freed slot
+     * so the matrix stays contiguous.
+     *
+     * @param fragmentId The document fragment ID
+     * @return true if a vector was removed
+     */
+    @Override
+    public boolean remove(String fragmentId) {
+        lock.writeLock().lock();
+        try {
+            return removeRow(fragmentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the vectors stored for several fragments
+     *
+     * @param ids The document fragment IDs
+     * @return Number of vectors removed
+     */
+    @Override
+    public int removeAll(Collection<String> ids) {
+        int removed = 0;
+        lock.writeLock().lock();
+        try {
+            for (String fragmentId : ids) {
+                if (removeRow(fragmentId)) {
+                    removed++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Find the fragments whose vectors are most similar to the query by cosine similarity.
+     * Every vector is scored, so the candidate pool size is not used. Large indexes are
+     * scanned in fixed partitions on the ForkJoin pool; ties are broken by row so the result
+     * is the same as a sequential scan.
+     *
+     * <p>With a selective filter only the allowed rows are looked up and scored;
+     * otherwise rows rejected by the filter are skipped during the scan.</p>
+     *
+     * @param query      The query vector
+     * @param limit      Maximum number of results to return
+     * @param candidates Ignored by exact search
+     * @param filter     Fragments that may be returned, or null for all
+     * @return Hits ordered by descending similarity
+     */
+    @Override
+    public List<Hit> search(float[] query, int limit, int candidates, FragmentFilter filter) {
+        return search(query, limit, filter, true);
+    }
+
+    /**
+     * Same as {@link #search(float[], int, int, FragmentFilter)} on the calling thread only
+     */
+    public List<Hit> searchSequential(float[] query, int limit, FragmentFilter filter) {
+        return search(query, limit, filter, false);
+    }
+
+    private List<Hit> search(float[] query, int limit, FragmentFilter filter, boolean parallel) {
+        if (query == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            if (size == 0) {
+                return new ArrayList<>();
+            }
+
+            if (query.length != dimension) {
+                System.err.println("Warning: Vector dimension mismatch. Query: " + query.length +
+                        ", Index: " + dimension);
+                return new ArrayList<>();
+            }
+
+            float[] normalized = VectorMath.normalize(query);
+            if (normalized == null) {
+                return new ArrayList<>();
+            }
+
+            PriorityQueue<RowScore> heap;
+            if (filter != null && filter.isSelective(size, 1.0)) {
+                heap = new PriorityQueue<>(limit + 1, RowScore.WORST_FIRST);
+                for (String fragmentId : filter.fragmentIds()) {
+                    Integer row = rowsByFragmentId.get(fragmentId);
+                    if (row != null) {
+                        float similarity = VectorMath.dot(normalized, 0, matrix, row * dimension, dimension);
+                        offer(heap, new RowScore(row, similarity), limit);
+                    }
+                }
+            } else if (parallel && pool != null && size > partitionSize) {
+                List<PartitionScan> partitions = new ArrayList<>();
+                for (int from = 0; from < size; from += partitionSize) {
+                    partitions.add(new PartitionScan(normalized, limit, filter, from, Math.min(from + partitionSize, size)));
+                }
+
+                List<ForkJoinTask<PriorityQueue<RowScore>>> tasks = new ArrayList<>(partitions.size());
+                for (PartitionScan partition : partitions) {
+                    tasks.add(pool.submit(partition));
+                }
+
+                // Merge the partition heaps; the order of partitions does not affect the result
+                heap = new PriorityQueue<>(limit + 1, RowScore.WORST_FIRST);
+                for (ForkJoinTask<PriorityQueue<RowScore>> task : tasks) {
+                    for (RowScore candidate : task.join()) {
+                        offer(heap, candidate, limit);
+                    }
+                }
+            } else {
+                heap = scan(normalized, limit, filter, 0, size);
+            }
+
+            List<RowScore> ordered = new ArrayList<>(heap);
+            ordered.sort(RowScore.WORST_FIRST.reversed());
+
+            List<Hit> hits = new ArrayList<>(ordered.size());
+            for (RowScore candidate : ordered) {
+                hits.add(new Hit(fragmentIds[candidate.row], candidate.score));
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Score rows [from, to) and keep the best {@code limit} in a min-heap
+     */
+    private PriorityQueue<RowScore> scan(float[] query, int limit, FragmentFilter filter, int from, int to) {
+        PriorityQueue<RowScore> heap = new PriorityQueue<>(limit + 1, RowScore.WORST_FIRST);
+        for (int row = from; row < to; row++) {
+            if (filter != null && !filter.accept(fragmentIds[row])) {
+                continue;
+            }
+
+            float similarity = VectorMath.dot(query, 0, matrix, row * dimension, dimension);
+            if (heap.size() < limit || similarity > heap.peek().score) {
+                offer(heap, new RowScore(row, similarity), limit);
+            }
+        }
+        return heap;
+    }
+
+    private static void offer(PriorityQueue<RowScore> heap, RowScore candidate, int limit) {
+        if (heap.size() < limit) {
+            heap.add(candidate);
+        } else if (RowScore.WORST_FIRST.compare(candidate, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(candidate);
+        }
+    }
+
+    @Override
+    public boolean contains(String fragmentId) {
+        lock.readLock().lock();
+        try {
+            return rowsByFragmentId.containsKey(fragmentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int dimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            rowsByFragmentId.clear();
+            matrix = new float[0];
+            fragmentIds = new String[0];
+            size = 0;
+            dimension = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "exact";
+    }
+
+    @Override
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            return matrix.length * 4L;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean removeRow(String fragmentId) {
+        Integer row = rowsByFragmentId.remove(fragmentId);
+        if (row == null) {
+            return false;
+        }
+
+        int last = --size;
+        if (row != last) {
+            System.arraycopy(matrix, last * dimension, matrix, row * dimension, dimension);
+            fragmentIds[row] = fragmentIds[last];
+            rowsByFragmentId.put(fragmentIds[row], row);
+        }
+        fragmentIds[last] = null;
+        return true;
+    }
+
+    private final class PartitionScan extends RecursiveTask<PriorityQueue<RowScore>> {
+        private static final long serialVersionUID = 1L;
+
+        private final float[] query;
+        private final int limit;
+        private final FragmentFilter filter;
+        private final int from;
+        private final int to;
+
+        PartitionScan(float[] query, int limit, FragmentFilter filter, int from, int to) {
+            this.query = query;
+            this.limit = limit;
+            this.filter = filter;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected PriorityQueue<RowScore> compute() {
+            return scan(query, limit, filter, from, to);
+        }
+    }
+
+    private static final class RowScore {
+        // Lower score first; on equal scores the higher row counts as worse
+        static final Comparator<RowScore> WORST_FIRST = (a, b) -> {
+            int compare = Float.compare(a.score, b.score);
+            return compare != 0 ? compare : Integer.compare(b.row, a.row);
+        };
+
+        final int row;
+        final float score;
+
+        RowScore(int row, float score) {
+            this.row = row;
+            this.score = score;
+        }
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= fragmentIds.length) {
+            return;
+        }
+
+        int capacity = Math.max(INITIAL_CAPACITY, fragmentIds.length * 2);
+        while (capacity < rows) {
+            capacity *= 2;
+        }
+
+        matrix = Arrays.copyOf(matrix, capacity * dimension);
+        fragmentIds = Arrays.copyOf(fragmentIds, capacity);
+    }
+}
@@ -0,0 +1,100 @@
+package custom.util;
+
+/**
+ * Similarity kernels for embedding vectors.
+ * Uses the JDK Vector API (SIMD) when the jdk.incubator.vector module is available,
+ * e.g. when started with {@code --add-modules jdk.incubator.vector}, and a scalar loop otherwise.
+ * Set {@code -Dembedding.simd=false} to force the scalar kernel.
+ */
+public final class VectorMath {
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final DotKernel kernel = loadKernel();
+
+    private VectorMath() {
+    }
+
+    /**
+     * Dot product of two vectors of the same length
+     */
+    public static float dot(float[] a, float[] b) {
+        return kernel.dot(a, 0, b, 0, a.length);
+    }
+
+    /**
+     * Dot product of {@code length} values starting at the given offsets,
+     * e.g. a query against one row of a row-major matrix
+     */
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        return kernel.dot(a, aOffset, b, bOffset, length);
+    }
+
+    /**
+     * Return a unit-length copy of the vector, so cosine similarity becomes a dot product
+     *
+     * @return The normalized copy, or null for a zero vector
+     */
+    public static float[] normalize(float[] vector) {
+        float sum = kernel.dot(vector, 0, vector, 0, vector.length);
+        if (sum == 0f || Float.isNaN(sum)) {
+            return null;
+        }
+
+        float scale = (float) (1.0 / Math.sqrt(sum));
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] * scale;
+        }
+        return normalized;
+    }
+
+    /**
+     * @return Name of the kernel in use
+     */
+    public static String kernelName() {
+        return kernel.name();
+    }
+
+    private static DotKernel loadKernel() {
+        if (!"false".equalsIgnoreCase(System.getProperty("embedding.simd"))
+                && ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            try {
+                // Loaded by name so this class never links against the incubator module
+                return (DotKernel) Class.forName("custom.util.SimdDotKernel").getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                System.err.println("Warning: SIMD kernel unavailable, using scalar kernel: " + e);
+            }
+        }
+
+        return new ScalarDotKernel();
+    }
+
+    interface DotKernel {
+        float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+        String name();
+    }
+
+    static final class ScalarDotKernel implements DotKernel {
+        @Override
+        public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            // Four independent accumulators let the JIT overlap the multiply-adds
+            float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+            int i = 0;
+            for (int bound = length - 3; i < bound; i += 4) {
+                s0 += a[aOffset + i] * b[bOffset + i];
+                s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+                s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+                s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+            }
+            for (; i < length; i++) {
+                s0 += a[aOffset + i] * b[bOffset + i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package custom.util;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Similarity search engine over document embeddings.
+ * Implementations keep vectors keyed by fragment ID and answer top-k cosine similarity queries.
+ */
+public interface VectorSearchEngine {
+
+    /**
+     * Add or replace the vector stored for a fragment
+     *
+     * @param fragmentId The document fragment ID
+     * @param vector     The embedding vector
+     * @return true if the vector was indexed, false if it was rejected
+     */
+    boolean add(String fragmentId, float[] vector);
+
+    /**
+     * Remove the vector stored for a fragment
+     *
+     * @param fragmentId The document fragment ID
+     * @return true if a vector was removed
+     */
+    boolean remove(String fragmentId);
+
+    /**
+     * Remove the vectors stored for several fragments
+     *
+     * @param fragmentIds The document fragment IDs
+     * @return Number of vectors removed
+     */
+    default int removeAll(Collection<String> fragmentIds) {
+        int removed = 0;
+        for (String fragmentId : fragmentIds) {
+            if (remove(fragmentId)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Find the fragments most similar to the query
+     *
+     * @param query      The query vector
+     * @param limit      Maximum number of results to return
+     * @param candidates Size of the candidate pool explored by approximate engines (ef)
+     * @return Hits ordered by descending similarity
+     */
+    default List<Hit> search(float[] query, int limit, int candidates) {
+        return search(query, limit, candidates, null);
+    }
+
+    /**
+     * Find the fragments most similar to the query among those accepted by a filter
+     *
+     * @param query      The query vector
+     * @param limit      Maximum number of results to return
+     * @param candidates Size of the candidate pool explored by approximate engines (ef)
+     * @param filter     Fragments that may be returned, or null for all
+     * @return Hits ordered by descending similarity
+     */
+    List<Hit> search(float[] query, int limit, int candidates, FragmentFilter filter);
+
+    boolean contains(String fragmentId);
+
+    int size();
+
+    int dimension();
+
+    void clear();
+
+    /**
+     * @return Short name of the engine, used in logs and reports
+     */
+    String name();
+
+    /**
+     * Get the stored vector of a fragment, for engines that keep the original values
+     *
+     * @param fragmentId The document fragment ID
+     * @return The vector, or null if the engine does not keep it
+     */
+    default float[] vector(String fragmentId) {
+        return null;
+    }
+
+    /**
+     * @return true if the engine stores vectors itself and does not need to be rebuilt from the database
+     */
+    default boolean isPersistent() {
+        return false;
+    }
+
+    /**
+     * @return Approximate heap used by the stored vectors and search structures, in bytes
+     */
+    long memoryBytes();
+
+    /**
+     * A scored fragment ID returned by a search
+     */
+    class Hit {
+        static final Comparator<Hit> ASCENDING = Comparator.comparingDouble(hit -> hit.score);
+
+        public final String fragmentId;
+        public final float score;
+
+        public Hit(String fragmentId, float score) {
+            this.fragmentId = fragmentId;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package custom.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * One append-only, memory-mapped file of embedding rows used by {@link SegmentIndex}.
+ *
+ * <pre>
+ * segment-NNNNNN.vec   header: magic "SEGV", version, dimension, row count (int32 each, little-endian)
+ *                      rows:   norm, then the unit-length vector (float32 each)
+ * segment-NNNNNN.ids   one fragment ID per line, in row order
+ * </pre>
+ * A row is written first and the row count in the header is updated last, so a row only
+ * becomes visible once it is complete.
+ */
+final class VectorSegment implements Closeable {
+    private static final int MAGIC = 0x56474553; // "SEGV" little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int ROWS_OFFSET = 12;
+
+    final int id;
+    final int dimension;
+    final int capacity;
+    final int rowFloats;
+
+    private final File vectorFile;
+    private final File idFile;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final FloatBuffer floats;
+    private final List<String> fragmentIds;
+    private final BitSet deleted = new BitSet();
+    private Writer idWriter;
+    private volatile int rows;
+
+    private VectorSegment(int id, File vectorFile, File idFile, FileChannel channel, int dimension, int capacity,
+                          int rows, List<String> fragmentIds) throws IOException {
+        this.id = id;
+        this.vectorFile = vectorFile;
+        this.idFile = idFile;
+        this.channel = channel;
+        this.dimension = dimension;
+        this.capacity = capacity;
+        this.rowFloats = dimension + 1;
+        this.rows = rows;
+        this.fragmentIds = fragmentIds;
+
+        long size = HEADER_BYTES + (long) capacity * rowFloats * 4;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Segment too large: " + capacity + " rows of dimension " + dimension);
+        }
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.position(HEADER_BYTES);
+        this.floats = this.buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    static File vectorFile(File directory, int id) {
+        return new File(directory, String.format("segment-%06d.vec", id));
+    }
+
+    static File idFile(File directory, int id) {
+        return new File(directory, String.format("segment-%06d.ids", id));
+    }
+
+    /**
+     * Create an empty segment with room for {@code capacity} rows
+     */
+    static VectorSegment create(File directory, int id, int dimension, int capacity) throws IOException {
+        File vectorFile = vectorFile(directory, id);
+        File idFile = idFile(directory, id);
+        FileChannel channel = FileChannel.open(vectorFile.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        new FileOutputStream(idFile).close();
+
+        VectorSegment segment = new VectorSegment(id, vectorFile, idFile, channel, dimension, capacity, 0, new ArrayList<>());
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.buffer.putInt(8, dimension);
+        segment.buffer.putInt(ROWS_OFFSET, 0);
+        return segment;
+    }
+
+    /**
+     * Open an existing segment, dropping IDs written after the last committed row
+     */
+    static VectorSegment open(File directory, int id) throws IOException {
+        File vectorFile = vectorFile(directory, id);
+        File idFile = idFile(directory, id);
+        FileChannel channel = FileChannel.open(vectorFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a vector segment: " + vectorFile);
+            }
+
+            int dimension = header.getInt(8);
+            int rows = header.getInt(ROWS_OFFSET);
+            int capacity = (int) ((channel.size() - HEADER_BYTES) / ((dimension + 1) * 4L));
+
+            List<String> fragmentIds = new ArrayList<>(rows);
+            boolean uncommittedIds = false;
+            if (idFile.exists()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(idFile), StandardCharsets.UTF_8))) {
+                    String line;
+                    while (fragmentIds.size() < rows && (line = reader.readLine()) != null) {
+                        fragmentIds.add(line);
+                    }
+                    uncommittedIds = reader.readLine() != null;
+                }
+            }
+
+            if (fragmentIds.size() < rows) {
+                throw new IOException("Segment " + id + " has " + rows + " rows but only " + fragmentIds.size() + " IDs");
+            }
+
+            VectorSegment segment = new VectorSegment(id, vectorFile, idFile, channel, dimension, capacity, rows, fragmentIds);
+            if (uncommittedIds) {
+                segment.rewriteIds();
+            }
+            return segment;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Append a row
+     *
+     * @return The row number
+     */
+    int append(String fragmentId, float[] unitVector, float norm) throws IOException {
+        if (rows >= capacity) {
+            throw new IOException("Segment " + id + " is full");
+        }
+
+        int row = rows;
+        int offset = row * rowFloats;
+        floats.put(offset, norm);
+        floats.put(offset + 1, unitVector);
+
+        if (idWriter == null) {
+            idWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(idFile, true), StandardCharsets.UTF_8));
+        }
+        idWriter.write(fragmentId);
+        idWriter.write('\n');
+        idWriter.flush();
+
+        fragmentIds.add(fragmentId);
+        rows = row + 1;
+        buffer.putInt(ROWS_OFFSET, rows);
+        return row;
+    }
+
+    /**
+     * Copy whole rows (norm followed by the unit vector) into {@code target}
+     */
+    void read(int fromRow, int count, float[] target) {
+        floats.get(fromRow * rowFloats, target, 0, count * rowFloats);
+    }
+
+    /**
+     * @return The original (not normalized) vector of a row
+     */
+    float[] vector(int row) {
+        float[] values = new float[dimension];
+        int offset = row * rowFloats;
+        float norm = floats.get(offset);
+        floats.get(offset + 1, values);
+        for (int i = 0; i < values.length; i++) {
+            values[i] *= norm;
+        }
+        return values;
+    }
+
+    String fragmentId(int row) {
+        return fragmentIds.get(row);
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    boolean isFull() {
+        return rows >= capacity;
+    }
+
+    BitSet deleted() {
+        return deleted;
+    }
+
+    int liveRows() {
+        return rows - deleted.cardinality();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Delete the segment files. The mapping itself is released when the buffer is collected.
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            System.err.println("Warning: Failed to close segment " + id + ": " + e.getMessage());
+        }
+
+        for (File file : new File[]{vectorFile, idFile}) {
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (idWriter != null) {
+            idWriter.close();
+            idWriter = null;
+        }
+        channel.close();
+    }
+
+    private void rewriteIds() throws IOException {
+        // Drop IDs of rows that were not committed before a crash
+        File temp = new File(idFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (String fragmentId : fragmentIds) {
+                writer.write(fragmentId);
+                writer.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), idFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -35,6 +35,7 @@ CREATE TABLE IF NOT EXISTS document_fragments (
     title VARCHAR(255),
     description TEXT,
     is_public BOOLEAN DEFAULT TRUE,
+    content_hash VARCHAR(64),
     FOREIGN KEY (user_id) REFERENCES users(id)
 );
 -- Create indexes for document_fragments
@@ -43,6 +44,7 @@ CREATE INDEX idx_fragment_index ON document_fragments(fragment_index);
 CREATE INDEX idx_created_at ON document_fragments(created_at);
 CREATE INDEX idx_fragment_user_id ON document_fragments(user_id);
 CREATE INDEX idx_is_public ON document_fragments(is_public);
+CREATE INDEX idx_content_hash ON document_fragments(content_hash);
 
 DROP TABLE IF EXISTS document_embeddings;
 CREATE TABLE IF NOT EXISTS document_embeddings (
@@ -50,10 +52,12 @@ CREATE TABLE IF NOT EXISTS document_embeddings (
     fragment_id VARCHAR(100) NOT NULL,
     embedding BLOB NOT NULL,
     embedding_dimension INTEGER NOT NULL,
+    model VARCHAR(100),
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
 );
 -- Create indexes for document_embeddings
 CREATE INDEX idx_fragment_id ON document_embeddings(fragment_id);
+CREATE INDEX idx_embedding_model ON document_embeddings(model, fragment_id);
 CREATE INDEX idx_embedding_created_at ON document_embeddings(created_at);
 
 DROP TABLE IF EXISTS chat_history;